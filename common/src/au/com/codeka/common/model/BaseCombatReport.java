@@ -266,6 +266,11 @@ public class BaseCombatReport {
             mFleets.addAll(otherFleet.getFleets());
             mNumShips += otherFleet.getNumShips();
         }
+        public void addFleet(BaseFleet fleet) {
+            mFleetKeys.add(fleet.getKey());
+            mFleets.add(fleet);
+            mNumShips += fleet.getNumShips();
+        }
         public void removeShips(float numShips) {
             mNumShips -= numShips;
             if (mNumShips < 0) {
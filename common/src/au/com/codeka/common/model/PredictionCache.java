@@ -0,0 +1,229 @@
+package au.com.codeka.common.model;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+/**
+ * Caches the results of the 24 hour "prediction" phase of a {@link Simulation}, keyed by a hash of
+ * the star's state at the start of the prediction.
+ *
+ * The prediction only ever compares times against each other, so if two predictions start with
+ * the same state (with all times expressed relative to the start of the prediction), they'll come
+ * up with the same results, shifted by however far apart they started. The exception is combat,
+ * which happens on whole minutes, so we don't cache stars which have fleets in attack mode (combat
+ * can't start during a prediction unless a fleet is already attacking).
+ *
+ * Most stars are in a steady state (populations and goods at their maximum, nothing being built)
+ * so this lets us skip the prediction altogether for the majority of simulations.
+ */
+public class PredictionCache {
+    public static PredictionCache i = new PredictionCache();
+
+    /** The maximum number of stars we'll keep predictions for. */
+    private static final int MAX_ENTRIES = 2000;
+
+    /** Marker for a time that the prediction didn't change. */
+    private static final long UNCHANGED = Long.MIN_VALUE;
+
+    private static final long YEAR_2K_MILLIS = new DateTime(2000, 1, 1, 0, 0).getMillis();
+
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PredictionCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Determines whether the prediction for the given star can be cached. We can't cache it if
+     * there's any chance of combat during the prediction.
+     */
+    public static boolean isCacheable(BaseStar star) {
+        if (star.getKey() == null) {
+            return false;
+        }
+        for (BaseFleet fleet : star.getFleets()) {
+            if (fleet.getState() == BaseFleet.State.ATTACKING) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Calculates a hash of all the state that affects the prediction for the given star, with
+     * times relative to the given prediction start time.
+     */
+    public static long getStateHash(BaseStar star, long startMillis) {
+        Hasher hasher = new Hasher();
+        hasher.add(star.getKey());
+
+        for (BaseEmpirePresence empire : star.getEmpirePresences()) {
+            hasher.add(empire.getKey());
+            hasher.add(empire.getEmpireKey());
+            hasher.add(empire.getTotalGoods());
+            hasher.add(empire.getTotalMinerals());
+            hasher.add(empire.getMaxGoods());
+            hasher.add(empire.getMaxMinerals());
+            hasher.add(relativeTime(empire.getGoodsZeroTime(), startMillis));
+        }
+
+        for (BaseColony colony : star.getColonies()) {
+            hasher.add(colony.getKey());
+            hasher.add(colony.getEmpireKey());
+            hasher.add(colony.getPlanetIndex());
+            hasher.add(colony.getPopulation());
+            hasher.add(colony.getMaxPopulation());
+            hasher.add(colony.getFarmingFocus());
+            hasher.add(colony.getMiningFocus());
+            hasher.add(colony.getConstructionFocus());
+            hasher.add(colony.getPopulationFocus());
+            hasher.add(colony.isInCooldown() ? 1 : 0);
+        }
+
+        for (BaseBuildRequest br : star.getBuildRequests()) {
+            hasher.add(br.getKey());
+            hasher.add(br.getColonyKey());
+            hasher.add(br.getDesignKind().toString());
+            hasher.add(br.getDesignID());
+            hasher.add(br.getCount());
+            hasher.add(br.getProgress(false));
+            hasher.add(br.getExistingFleetID() == null ? 0 : 1);
+            hasher.add(br.getUpgradeID());
+            hasher.add(relativeTime(br.getStartTime(), startMillis));
+            hasher.add(relativeTime(br.getEndTime(), startMillis));
+        }
+
+        return hasher.get();
+    }
+
+    /**
+     * If we have a cached prediction for the given star's state, apply it to the star and return
+     * true. Otherwise, return false and the caller needs to run the prediction itself.
+     */
+    public boolean apply(BaseStar star, long stateHash, long startMillis, DateTimeZone zone) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(star.getKey());
+        }
+        if (entry == null || entry.stateHash != stateHash) {
+            return false;
+        }
+
+        for (BaseBuildRequest br : star.getBuildRequests()) {
+            Long offset = entry.buildRequestEndTimes.get(br.getKey());
+            if (offset != null && offset != UNCHANGED) {
+                br.setEndTime(new DateTime(startMillis + offset, zone));
+            }
+        }
+        for (BaseEmpirePresence empire : star.getEmpirePresences()) {
+            Long offset = entry.goodsZeroTimes.get(empire.getKey());
+            if (offset != null && offset != UNCHANGED) {
+                empire.setGoodsZeroTime(new DateTime(startMillis + offset, zone));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Records the result of a prediction. {@code star} is the star before the prediction results
+     * have been copied back to it, {@code predictionStar} is the star the prediction was run on.
+     */
+    public void put(BaseStar star, BaseStar predictionStar, long stateHash, long startMillis) {
+        Entry entry = new Entry(stateHash);
+
+        HashMap<String, DateTime> originalTimes = new HashMap<String, DateTime>();
+        for (BaseBuildRequest br : star.getBuildRequests()) {
+            originalTimes.put(br.getKey(), br.getEndTime());
+        }
+        for (BaseBuildRequest br : predictionStar.getBuildRequests()) {
+            entry.buildRequestEndTimes.put(br.getKey(),
+                    getOffset(originalTimes.get(br.getKey()), br.getEndTime(), startMillis));
+        }
+
+        originalTimes.clear();
+        for (BaseEmpirePresence empire : star.getEmpirePresences()) {
+            originalTimes.put(empire.getKey(), empire.getGoodsZeroTime());
+        }
+        for (BaseEmpirePresence empire : predictionStar.getEmpirePresences()) {
+            entry.goodsZeroTimes.put(empire.getKey(),
+                    getOffset(originalTimes.get(empire.getKey()), empire.getGoodsZeroTime(), startMillis));
+        }
+
+        synchronized (entries) {
+            entries.put(star.getKey(), entry);
+        }
+    }
+
+    private static long getOffset(DateTime original, DateTime predicted, long startMillis) {
+        if (predicted == null || (original != null && original.getMillis() == predicted.getMillis())) {
+            return UNCHANGED;
+        }
+        return predicted.getMillis() - startMillis;
+    }
+
+    /**
+     * Gets the given time relative to the start of the prediction. All times before the start of
+     * the prediction behave the same way, so they're all treated the same (except for the special
+     * "before the year 2000" case, which the simulation checks for explicitly).
+     */
+    private static long relativeTime(DateTime time, long startMillis) {
+        if (time == null) {
+            return Long.MIN_VALUE;
+        }
+        long millis = time.getMillis();
+        if (millis < startMillis) {
+            return millis > YEAR_2K_MILLIS ? -1 : -2;
+        }
+        return millis - startMillis;
+    }
+
+    private static class Entry {
+        public final long stateHash;
+        public final HashMap<String, Long> buildRequestEndTimes = new HashMap<String, Long>();
+        public final HashMap<String, Long> goodsZeroTimes = new HashMap<String, Long>();
+
+        public Entry(long stateHash) {
+            this.stateHash = stateHash;
+        }
+    }
+
+    /** A simple 64-bit FNV-1a hash. */
+    private static class Hasher {
+        private long hash = 0xcbf29ce484222325L;
+
+        public void add(long value) {
+            for (int i = 0; i < 8; i++) {
+                hash ^= (value & 0xff);
+                hash *= 0x100000001b3L;
+                value >>>= 8;
+            }
+        }
+
+        public void add(float value) {
+            add((long) Float.floatToIntBits(value));
+        }
+
+        public void add(String value) {
+            if (value == null) {
+                add(-1L);
+                return;
+            }
+            add((long) value.length());
+            for (int i = 0; i < value.length(); i++) {
+                add((long) value.charAt(i));
+            }
+        }
+
+        public long get() {
+            return hash;
+        }
+    }
+}
@@ -1,15 +1,14 @@
 package au.com.codeka.common.model;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Duration;
-import org.joda.time.Interval;
-import org.joda.time.Seconds;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.common.model.BaseFleet.Stance;
@@ -24,9 +23,19 @@ public class Simulation {
     private final boolean predict;
     private DateTime now;
 
+    /** The time zone of the step currently being simulated, used for any DateTimes we create. */
+    private DateTimeZone zone;
+
     private static boolean sDebug = false;
     private static int sNumSimulations;
     private static DateTime year2k = new DateTime(2000, 1, 1, 0, 0);
+    private static final long YEAR_2K_MILLIS = year2k.getMillis();
+
+    /** The length of each simulation step. */
+    private static final long STEP_MS = 15 * 60 * 1000L;
+
+    /** How far past "now" we simulate in prediction mode. */
+    private static final long PREDICTION_MS = 24 * 60 * 60 * 1000L;
 
     public Simulation() {
         this(DateTime.now(DateTimeZone.UTC), true, sDebug ? new BasicLogHandler() : null);
@@ -96,40 +105,66 @@ public class Simulation {
             endTime = startTime.plusSeconds(3);
         }
 
+        // The main loop works in epoch millis, we only create DateTimes (in the same zone as the
+        // time they're derived from) when we need to store one back into the star.
+        long startMillis = startTime.getMillis();
+        long endMillis = endTime.getMillis();
+        zone = startTime.getZone();
+        ArrayList<EmpireIndex> empireIndices = buildEmpireIndices(star, empireKeys);
+
         // We'll simulate in "prediction mode" for an extra bit of time so that we can get a
         // more accurate estimate of the end time for builds. We won't *record* the population
         // growth and such, just the end time of builds. We'll also record the time that the
         // population drops below a certain threshold so that we can warn the player.
-        DateTime predictionTime = endTime.plusHours(24);
+        long predictionMillis = endMillis + PREDICTION_MS;
         BaseStar predictionStar = null;
+        ArrayList<EmpireIndex> predictionEmpireIndices = null;
+        boolean cacheable = false;
+        long stateHash = 0;
         while (true) {
-            Duration dt = Duration.standardMinutes(15);
-            DateTime stepEndTime = startTime.plus(dt);
-            if (stepEndTime.compareTo(endTime) < 0) {
-                simulateStepForAllEmpires(dt, startTime, star, empireKeys);
-                startTime = stepEndTime;
-            } else if (predictionStar == null && startTime.isBefore(endTime)) {
+            long dtMillis = STEP_MS;
+            long stepEndMillis = startMillis + dtMillis;
+            if (stepEndMillis < endMillis) {
+                simulateStepForAllEmpires(dtMillis, startMillis, star, empireIndices);
+                startMillis = stepEndMillis;
+            } else if (predictionStar == null && startMillis < endMillis) {
                 // We have to do the last little before of the simulation before predicting
                 now = endTime;
-                dt = new Interval(startTime, endTime).toDuration();
-                if (dt.getMillis() > 1000) {
-                    simulateStepForAllEmpires(dt, startTime, star, empireKeys);
+                dtMillis = endMillis - startMillis;
+                if (dtMillis > 1000) {
+                    simulateStepForAllEmpires(dtMillis, startMillis, star, empireIndices);
                 }
-                startTime = endTime;
+                startMillis = endMillis;
+                zone = endTime.getZone();
 
                 if (predict) {
+                    // if we've already predicted this exact state, we can reuse that result
+                    cacheable = PredictionCache.isCacheable(star);
+                    if (cacheable) {
+                        stateHash = PredictionCache.getStateHash(star, endMillis);
+                        if (PredictionCache.i.apply(star, stateHash, endMillis, zone)) {
+                            log("Reusing cached prediction.");
+                            break;
+                        }
+                    }
+
                     predictionStar = star.clone();
-                    dt = Duration.standardMinutes(15);
+                    predictionEmpireIndices = buildEmpireIndices(predictionStar, empireKeys);
                 }
-            } else if (predict && stepEndTime.compareTo(predictionTime) < 0) {
-                simulateStepForAllEmpires(dt, startTime, predictionStar, empireKeys);
-                startTime = stepEndTime;
+            } else if (predictionStar != null && stepEndMillis < predictionMillis) {
+                simulateStepForAllEmpires(dtMillis, startMillis, predictionStar,
+                        predictionEmpireIndices);
+                startMillis = stepEndMillis;
             } else {
                 break;
             }
         }
 
         if (predictionStar != null) {
+            if (cacheable) {
+                PredictionCache.i.put(star, predictionStar, stateHash, endMillis);
+            }
+
             // copy the end times for builds from prediction_star_pb
             for (BaseBuildRequest starBuildRequest : star.getBuildRequests()) {
                 for (BaseBuildRequest predictedBuildRequest : predictionStar.getBuildRequests()) {
@@ -201,16 +236,82 @@ public class Simulation {
         return lastSimulation;
     }
 
-    private void simulateStepForAllEmpires(Duration dt, DateTime now, BaseStar star, Set<String> empireKeys) {
-        log(String.format("- Step [dt=%.2f hrs] [now=%s]", (float)(dt.toStandardSeconds().getSeconds()) / 3600.0f, now));
+    /**
+     * Builds an index of the colonies, build requests and empire presence of each empire on the
+     * given star. Colonies and build requests aren't added or removed during a simulation, so we
+     * only need to do this once per star, rather than rescanning the lists in every step.
+     */
+    private static ArrayList<EmpireIndex> buildEmpireIndices(BaseStar star, Set<String> empireKeys) {
+        ArrayList<EmpireIndex> indices = new ArrayList<EmpireIndex>(empireKeys.size());
         for (String empireKey : empireKeys) {
-            log(String.format("-- Empire [%s]", empireKey == null ? "Native" : empireKey));
-            simulateStep(dt, now, star, empireKey);
+            EmpireIndex index = new EmpireIndex();
+            index.empireKey = empireKey;
+            for (BaseEmpirePresence e : star.getEmpires()) {
+                if (equalEmpireKey(e.getEmpireKey(), empireKey)) {
+                    index.empire = e;
+                }
+            }
+
+            ArrayList<BaseColony> colonies = new ArrayList<BaseColony>();
+            for (BaseColony colony : star.getColonies()) {
+                if (equalEmpireKey(colony.getEmpireKey(), empireKey)) {
+                    colonies.add(colony);
+                }
+            }
+            index.colonies = colonies.toArray(new BaseColony[colonies.size()]);
+            index.planets = new BasePlanet[index.colonies.length];
+            index.buildRequests = new BaseBuildRequest[index.colonies.length][];
+            for (int i = 0; i < index.colonies.length; i++) {
+                BaseColony colony = index.colonies[i];
+                index.planets[i] = star.getPlanets()[colony.getPlanetIndex() - 1];
+
+                ArrayList<BaseBuildRequest> buildRequests = new ArrayList<BaseBuildRequest>();
+                for (BaseBuildRequest br : star.getBuildRequests()) {
+                    if (br.getColonyKey().equals(colony.getKey())) {
+                        buildRequests.add(br);
+                    }
+                }
+                index.buildRequests[i] =
+                        buildRequests.toArray(new BaseBuildRequest[buildRequests.size()]);
+            }
+            indices.add(index);
+        }
+        return indices;
+    }
+
+    private void simulateStepForAllEmpires(long dtMillis, long nowMillis, BaseStar star,
+            ArrayList<EmpireIndex> empireIndices) {
+        if (logHandler != null) {
+            log(String.format("- Step [dt=%.2f hrs] [now=%s]",
+                    (float)(dtMillis / 1000) / 3600.0f, new DateTime(nowMillis, zone)));
+        }
+        for (int i = 0; i < empireIndices.size(); i++) {
+            EmpireIndex empireIndex = empireIndices.get(i);
+            if (logHandler != null) {
+                log(String.format("-- Empire [%s]",
+                        empireIndex.empireKey == null ? "Native" : empireIndex.empireKey));
+            }
+            simulateStep(dtMillis, nowMillis, empireIndex);
         }
 
         // Don't forget to simulate combat for this step as well (what to do if combat continues
         // after the prediction phase?)
-        simulateCombat(star, now, dt);
+        if (hasAttackingFleet(star, nowMillis)) {
+            simulateCombat(star, new DateTime(nowMillis, zone), new Duration(dtMillis));
+        }
+    }
+
+    private static boolean hasAttackingFleet(BaseStar star, long nowMillis) {
+        for (BaseFleet fleet : star.getFleets()) {
+            if (fleet.getState() != BaseFleet.State.ATTACKING) {
+                continue;
+            }
+            if (isDestroyed(fleet, nowMillis)) {
+                continue;
+            }
+            return true;
+        }
+        return false;
     }
 
     private static boolean equalEmpireKey(String keyOne, String keyTwo) {
@@ -223,38 +324,36 @@ public class Simulation {
         return keyOne.equals(keyTwo);
     }
 
-    private void simulateStep(Duration dt, DateTime now, BaseStar star, String empireKey) {
+    private void simulateStep(long dtMillis, long nowMillis, EmpireIndex empireIndex) {
         float totalGoods = 50.0f;
         float totalMinerals = 50.0f;
         float totalPopulation = 0.0f;
         float maxGoods = 50.0f;
         float maxMinerals = 50.0f;
         float totalTaxPerHour = 0.0f;
+        boolean logging = (logHandler != null);
 
-        BaseEmpirePresence empire = null;
-        for (BaseEmpirePresence e : star.getEmpires()) {
-            if (!equalEmpireKey(e.getEmpireKey(), empireKey)) {
-                continue;
-            }
-            empire = e;
+        BaseEmpirePresence empire = empireIndex.empire;
+        if (empire != null) {
             totalGoods = empire.getTotalGoods();
             totalMinerals = empire.getTotalMinerals();
             maxGoods = empire.getMaxGoods();
             maxMinerals = empire.getMaxMinerals();
         }
 
-        float dtInHours = ((float) dt.getMillis()) / (1000.0f * 3600.0f);
+        long stepEndMillis = nowMillis + dtMillis;
+        float dtInHours = ((float) dtMillis) / (1000.0f * 3600.0f);
         float goodsDeltaPerHour = 0.0f;
         float mineralsDeltaPerHour = 0.0f;
 
-        for (BaseColony colony : star.getColonies()) {
-            if (!equalEmpireKey(colony.getEmpireKey(), empireKey)) {
-                continue;
+        BaseColony[] colonies = empireIndex.colonies;
+        for (int i = 0; i < colonies.length; i++) {
+            BaseColony colony = colonies[i];
+            if (logging) {
+                log(String.format("--- Colony [planetIndex=%d] [population=%.2f]",
+                        colony.getPlanetIndex(), colony.getPopulation()));
             }
-
-            log(String.format("--- Colony [planetIndex=%d] [population=%.2f]",
-                    colony.getPlanetIndex(), colony.getPopulation()));
-            BasePlanet planet = star.getPlanets()[colony.getPlanetIndex() - 1];
+            BasePlanet planet = empireIndex.planets[i];
 
             // calculate the output from farming this turn and add it to the star global
             float goods = colony.getPopulation() * colony.getFarmingFocus() *
@@ -262,7 +361,9 @@ public class Simulation {
             colony.setGoodsDelta(goods);
             totalGoods += goods * dtInHours;
             goodsDeltaPerHour += goods;
-            log(String.format("    Goods: [delta=%.2f / hr] [this turn=%.2f]", goods, goods * dtInHours));
+            if (logging) {
+                log(String.format("    Goods: [delta=%.2f / hr] [this turn=%.2f]", goods, goods * dtInHours));
+            }
 
             // calculate the output from mining this turn and add it to the star global
             float minerals = colony.getPopulation() * colony.getMiningFocus() *
@@ -270,7 +371,9 @@ public class Simulation {
             colony.setMineralsDelta(minerals);
             totalMinerals += minerals * dtInHours;
             mineralsDeltaPerHour += minerals;
-            log(String.format("    Minerals: [delta=%.2f / hr] [this turn=%.2f]", goods, goods * dtInHours));
+            if (logging) {
+                log(String.format("    Minerals: [delta=%.2f / hr] [this turn=%.2f]", goods, goods * dtInHours));
+            }
 
             totalPopulation += colony.getPopulation();
 
@@ -278,35 +381,30 @@ public class Simulation {
             float taxPerPopulationPerHour = 0.012f;
             float taxPerHour = taxPerPopulationPerHour * colony.getPopulation();
             float taxThisTurn = taxPerHour * dtInHours;
-            log(String.format("    Taxes %.2f + %.2f = %.2f uncollected", colony.getUncollectedTaxes(), taxThisTurn, colony.getUncollectedTaxes() + taxThisTurn));
+            if (logging) {
+                log(String.format("    Taxes %.2f + %.2f = %.2f uncollected", colony.getUncollectedTaxes(), taxThisTurn, colony.getUncollectedTaxes() + taxThisTurn));
+            }
             totalTaxPerHour += taxPerHour;
             colony.setUncollectedTaxes(colony.getUncollectedTaxes() + taxThisTurn);
         }
 
         // A second loop though the colonies, once the goods/minerals have been calculated. This way,
         // goods minerals are shared between colonies
-        for (BaseColony colony : star.getColonies()) {
-            if (!equalEmpireKey(colony.getEmpireKey(), empireKey)) {
-                continue;
-            }
-
-            ArrayList<BaseBuildRequest> buildRequests = new ArrayList<BaseBuildRequest>();
-            for (BaseBuildRequest br : star.getBuildRequests()) {
-                if (br.getColonyKey().equals(colony.getKey())) {
-                    buildRequests.add(br);
-                }
-            }
+        for (int i = 0; i < colonies.length; i++) {
+            BaseColony colony = colonies[i];
+            BaseBuildRequest[] buildRequests = empireIndex.buildRequests[i];
 
             // not all build requests will be processed this turn. We divide up the population
             // based on the number of ACTUAL build requests they'll be working on this turn
             int numValidBuildRequests = 0;
             for (BaseBuildRequest br : buildRequests) {
-                if (br.getStartTime().compareTo(now.plus(dt)) > 0) {
+                if (br.getStartTime().getMillis() > stepEndMillis) {
                     continue;
                 }
 
                 // the end_time will be accurate, since it'll have been updated last step
-                if (br.getEndTime().compareTo(now) < 0 && br.getEndTime().compareTo(year2k) > 0) {
+                long endMillis = br.getEndTime().getMillis();
+                if (endMillis < nowMillis && endMillis > YEAR_2K_MILLIS) {
                     continue;
                 }
 
@@ -318,8 +416,10 @@ public class Simulation {
             if (numValidBuildRequests > 0) {
                 float totalWorkers = colony.getPopulation() * colony.getConstructionFocus();
                 float workersPerBuildRequest = totalWorkers / numValidBuildRequests;
-                log(String.format("--- Building [buildRequests=%d] [planetIndex=%d] [totalWorker=%.2f]",
-                        numValidBuildRequests, colony.getPlanetIndex(), totalWorkers));
+                if (logging) {
+                    log(String.format("--- Building [buildRequests=%d] [planetIndex=%d] [totalWorker=%.2f]",
+                            numValidBuildRequests, colony.getPlanetIndex(), totalWorkers));
+                }
 
                 // OK, we can spare at least ONE population
                 if (workersPerBuildRequest < 1.0f) {
@@ -333,11 +433,13 @@ public class Simulation {
 
                 for (BaseBuildRequest br : buildRequests) {
                     Design design = BaseDesignManager.i.getDesign(br.getDesignKind(), br.getDesignID());
-                    log(String.format("---- Building [design=%s %s] [count=%d]",
-                            br.getDesignKind(), br.getDesignID(), br.getCount()));
+                    if (logging) {
+                        log(String.format("---- Building [design=%s %s] [count=%d]",
+                                br.getDesignKind(), br.getDesignID(), br.getCount()));
+                    }
 
-                    DateTime startTime = br.getStartTime();
-                    if (startTime.compareTo(now.plus(dt)) > 0) {
+                    long startMillis = br.getStartTime().getMillis();
+                    if (startMillis > stepEndMillis) {
                         continue;
                     }
 
@@ -362,13 +464,15 @@ public class Simulation {
                         // if there's less than 10 seconds to go, just say it's done now.
                         timeRemainingInHours = 0.0f;
                     }
-                    log(String.format("     Time [total=%.2f hrs] [remaining=%.2f hrs]",
-                            totalBuildTimeInHours, timeRemainingInHours));
+                    if (logging) {
+                        log(String.format("     Time [total=%.2f hrs] [remaining=%.2f hrs]",
+                                totalBuildTimeInHours, timeRemainingInHours));
+                    }
 
                     float dtUsed = dtInHours;
-                    if (startTime.isAfter(now)) {
-                        Duration startOffset = new Interval(now, startTime).toDuration();
-                        dtUsed -= startOffset.getMillis() / (1000.0f * 3600.0f);
+                    if (startMillis > nowMillis) {
+                        long startOffsetMillis = startMillis - nowMillis;
+                        dtUsed -= startOffsetMillis / (1000.0f * 3600.0f);
                     }
                     if (dtUsed > timeRemainingInHours) {
                         dtUsed = timeRemainingInHours;
@@ -377,17 +481,19 @@ public class Simulation {
                     // what is the current amount of time we have now as a percentage of the total build
                     // time?
                     float progressThisTurn = dtUsed / totalBuildTimeInHours;
-                    log(String.format("Progress this turn: %f", progressThisTurn));
+                    if (logging) {
+                        log(String.format("Progress this turn: %f", progressThisTurn));
+                    }
                     if (progressThisTurn <= 0) {
-                        DateTime endTime;
+                        long endMillis;
                         timeRemainingInHours = (1.0f - br.getProgress(false)) * totalBuildTimeInHours;
                         if (timeRemainingInHours < (10.0f / 3600.0f)) {
-                            endTime = now;
+                            endMillis = nowMillis;
                         } else {
-                            endTime = now.plus((long)(timeRemainingInHours * 3600.0f * 1000.0f));
+                            endMillis = nowMillis + (long)(timeRemainingInHours * 3600.0f * 1000.0f);
                         }
-                        if (br.getEndTime().compareTo(endTime) > 0) {
-                            br.setEndTime(endTime);
+                        if (br.getEndTime().getMillis() > endMillis) {
+                            br.setEndTime(new DateTime(endMillis, zone));
                         }
                         log("    Finished this turn.");
                         continue;
@@ -395,28 +501,36 @@ public class Simulation {
 
                     // work out how many minerals we require for this turn
                     float mineralsRequired = br.getCount() * buildCost.getCostInMinerals() * progressThisTurn;
-                    log(String.format("Cost in minerals: %f", mineralsRequired));
+                    if (logging) {
+                        log(String.format("Cost in minerals: %f", mineralsRequired));
+                    }
                     if (mineralsRequired > mineralsPerBuildRequest) {
                         // if we don't have enough minerals, we'll just do a percentage of the work
                         // this turn
                         totalMinerals -= mineralsPerBuildRequest;
                         float percentMineralsAvailable = mineralsPerBuildRequest / mineralsRequired;
                         br.setProgress(br.getProgress(false) + (progressThisTurn * percentMineralsAvailable));
-                        log(String.format("     Progress %.4f%% + %.4f%% (this turn, adjusted - %.4f%% originally) ",
-                            br.getProgress(false) * 100.0f,
-                            progressThisTurn * percentMineralsAvailable * 100.0f,
-                            progressThisTurn * 100.0f));
+                        if (logging) {
+                            log(String.format("     Progress %.4f%% + %.4f%% (this turn, adjusted - %.4f%% originally) ",
+                                br.getProgress(false) * 100.0f,
+                                progressThisTurn * percentMineralsAvailable * 100.0f,
+                                progressThisTurn * 100.0f));
+                        }
                     } else {
                         // awesome, we have enough minerals so we can make some progress. We'll start by
                         // removing the minerals we need from the global pool...
                         totalMinerals -= mineralsRequired;
                         br.setProgress(br.getProgress(false) + progressThisTurn);
-                        log(String.format("     Progress %.4f%% + %.4f%% (this turn)",
-                            br.getProgress(false) * 100.0f, progressThisTurn * 100.0f));
+                        if (logging) {
+                            log(String.format("     Progress %.4f%% + %.4f%% (this turn)",
+                                br.getProgress(false) * 100.0f, progressThisTurn * 100.0f));
+                        }
                     }
                     mineralsDeltaPerHour -= mineralsRequired / dtInHours;
-                    log(String.format("     Minerals [required=%.2f] [available=%.2f] [available per build=%.2f]",
-                            mineralsRequired, totalMinerals, mineralsPerBuildRequest));
+                    if (logging) {
+                        log(String.format("     Minerals [required=%.2f] [available=%.2f] [available per build=%.2f]",
+                                mineralsRequired, totalMinerals, mineralsPerBuildRequest));
+                    }
 
                     // adjust the end_time for this turn
                     timeRemainingInHours = (1.0f - br.getProgress(false)) * totalBuildTimeInHours;
@@ -425,9 +539,12 @@ public class Simulation {
                         // avoid overflow errors.
                         timeRemainingInHours = 100000;
                     }
-                    DateTime endTime = now.plus((long)(dtUsed * 1000 * 3600) + (long)(timeRemainingInHours * 1000 * 3600));
+                    long endMillis = nowMillis + (long)(dtUsed * 1000 * 3600) + (long)(timeRemainingInHours * 1000 * 3600);
+                    DateTime endTime = new DateTime(endMillis, zone);
                     br.setEndTime(endTime);
-                    log(String.format("     End Time: %s (%.2f hrs)", endTime, Seconds.secondsBetween(now, endTime).getSeconds() / 3600.0f));
+                    if (logging) {
+                        log(String.format("     End Time: %s (%.2f hrs)", endTime, ((endMillis - nowMillis) / 1000) / 3600.0f));
+                    }
 
                     if (br.getProgress(false) >= 1.0f) {
                         // if we've finished this turn, just set progress
@@ -463,19 +580,15 @@ public class Simulation {
             totalGoods = 0.0f;
 
             if (empire != null) {
-                if (empire.getGoodsZeroTime() == null || empire.getGoodsZeroTime().isAfter(now.plus(dt))) {
+                if (empire.getGoodsZeroTime() == null || empire.getGoodsZeroTime().getMillis() > stepEndMillis) {
                     log(String.format("    GOODS HAVE HIT ZERO"));
-                    empire.setGoodsZeroTime(now.plus(dt));
+                    empire.setGoodsZeroTime(new DateTime(stepEndMillis, zone));
                 }
             }
         }
 
         // now loop through the colonies and update the population/goods counter
-        for (BaseColony colony : star.getColonies()) {
-            if (!equalEmpireKey(colony.getEmpireKey(), empireKey)) {
-                continue;
-            }
-
+        for (BaseColony colony : colonies) {
             float populationIncrease;
             if (goodsEfficiency >= 1.0f) {
                 populationIncrease = Math.max(colony.getPopulation(), 10.0f);
@@ -498,8 +611,10 @@ public class Simulation {
             if (newPopulation < 100.0f && colony.isInCooldown()) {
                 newPopulation = 100.0f;
             }
-            log(String.format("    Colony[%d]: [delta=%.2f] [new=%.2f]",
-                              colony.getPlanetIndex(), populationIncrease, newPopulation));
+            if (logging) {
+                log(String.format("    Colony[%d]: [delta=%.2f] [new=%.2f]",
+                                  colony.getPlanetIndex(), populationIncrease, newPopulation));
+            }
             colony.setPopulation(newPopulation);
         }
 
@@ -523,7 +638,7 @@ public class Simulation {
         // if there's no fleets in ATTACKING mode, then there's nothing to do
         int numAttacking = 0;
         for (BaseFleet fleet : star.getFleets()) {
-            if (fleet.getState() != BaseFleet.State.ATTACKING || isDestroyed(fleet, now)) {
+            if (fleet.getState() != BaseFleet.State.ATTACKING || isDestroyed(fleet, now.getMillis())) {
                 continue;
             }
             numAttacking ++;
@@ -574,6 +689,9 @@ public class Simulation {
             return;
         }
 
+        // the designs won't change over the course of the combat, so we only look them up once.
+        CombatDesigns designs = new CombatDesigns();
+
         // attacks happen in turns, each turn lasts for one minute
         DateTime attackEndTime = now.plus(dt);
         while (now.isBefore(attackEndTime)) {
@@ -588,8 +706,10 @@ public class Simulation {
             BaseCombatReport.CombatRound round = new BaseCombatReport.CombatRound();
             round.setStarKey(star.getKey());
             round.setRoundTime(now);
-            log(String.format("--- Round #%d [%s]", combatReport.getCombatRounds().size() + 1, now));
-            boolean stillAttacking = simulateCombatRound(now, star, round);
+            if (logHandler != null) {
+                log(String.format("--- Round #%d [%s]", combatReport.getCombatRounds().size() + 1, now));
+            }
+            boolean stillAttacking = simulateCombatRound(now, star, round, designs);
             if (combatReport.getStartTime() == null) {
                 combatReport.setStartTime(now);
             }
@@ -604,9 +724,19 @@ public class Simulation {
         }
     }
 
-    private boolean simulateCombatRound(DateTime now, BaseStar star, BaseCombatReport.CombatRound round) {
+    private boolean simulateCombatRound(DateTime now, BaseStar star,
+            BaseCombatReport.CombatRound round, CombatDesigns designs) {
+        long nowMillis = now.getMillis();
+        boolean logging = (logHandler != null);
+
+        // Build the fleet summaries, joining fleets together as we go. A fleet is joined to the
+        // first summary that's friendly and has the same design, stance and state, so we only
+        // need to check the summaries with the same design.
+        List<BaseCombatReport.FleetSummary> summaries = round.getFleets();
+        HashMap<String, ArrayList<BaseCombatReport.FleetSummary>> summariesByDesign =
+                new HashMap<String, ArrayList<BaseCombatReport.FleetSummary>>();
         for (BaseFleet fleet : star.getFleets()) {
-            if (isDestroyed(fleet, now)) {
+            if (isDestroyed(fleet, nowMillis)) {
                 continue;
             }
             // if it's got a cloaking device and it's not aggressive, then it's invisible to combat
@@ -614,113 +744,123 @@ public class Simulation {
                 continue;
             }
 
-            BaseCombatReport.FleetSummary fleetSummary = new BaseCombatReport.FleetSummary(fleet);
-            round.getFleets().add(fleetSummary);
-        }
-
-        // now we go through the fleet summaries and join them together
-        for (int i = 0; i < round.getFleets().size(); i++) {
-            BaseCombatReport.FleetSummary fs1 = round.getFleets().get(i);
-            for (int j = i + 1; j < round.getFleets().size(); j++) {
-                BaseCombatReport.FleetSummary fs2 = round.getFleets().get(j);
+            ArrayList<BaseCombatReport.FleetSummary> candidates =
+                    summariesByDesign.get(fleet.getDesignID());
+            if (candidates == null) {
+                candidates = new ArrayList<BaseCombatReport.FleetSummary>();
+                summariesByDesign.put(fleet.getDesignID(), candidates);
+            }
 
-                if (!isFriendly(fs1, fs2)) {
-                    continue;
-                }
-                if (!fs1.getDesignID().equals(fs2.getDesignID())) {
-                    continue;
-                }
-                if (fs1.getFleetStance() != fs2.getFleetStance()) {
-                    continue;
-                }
-                if (fs1.getFleetState() != fs2.getFleetState()) {
-                    continue;
+            BaseCombatReport.FleetSummary joined = null;
+            for (int i = 0; i < candidates.size(); i++) {
+                BaseCombatReport.FleetSummary candidate = candidates.get(i);
+                BaseFleet firstFleet = candidate.getFleets().get(0);
+                if (firstFleet.getStance() == fleet.getStance()
+                        && firstFleet.getState() == fleet.getState()
+                        && isFriendly(firstFleet, fleet)) {
+                    joined = candidate;
+                    break;
                 }
+            }
 
+            if (joined != null) {
                 // same empire, same design, same stance/state -- join 'em!
-                fs1.addShips(fs2);
-                round.getFleets().remove(j);
-                j--;
+                joined.addFleet(fleet);
+            } else {
+                BaseCombatReport.FleetSummary fleetSummary = new BaseCombatReport.FleetSummary(fleet);
+                summaries.add(fleetSummary);
+                candidates.add(fleetSummary);
             }
         }
 
-        for (int i = 0; i < round.getFleets().size(); i++) {
-            BaseCombatReport.FleetSummary fleet = round.getFleets().get(i);
+        // Everything we need to know about each summary for this round is kept in arrays indexed
+        // by the summary's index.
+        int numSummaries = summaries.size();
+        BaseFleet[] firstFleets = new BaseFleet[numSummaries];
+        ShipDesign[] summaryDesigns = new ShipDesign[numSummaries];
+        double[] hits = new double[numSummaries];
+        boolean[] wasHit = new boolean[numSummaries];
+        for (int i = 0; i < numSummaries; i++) {
+            BaseCombatReport.FleetSummary fleet = summaries.get(i);
             fleet.setIndex(i);
+            firstFleets[i] = fleet.getFleets().get(0);
+            summaryDesigns[i] = designs.get(fleet.getDesignID());
         }
 
         // each fleet targets and fires at once
-        TreeMap<Integer, Double> hits = new TreeMap<Integer, Double>();
-        for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
-            if (fleet.getFleetState() != BaseFleet.State.ATTACKING) {
+        for (int i = 0; i < numSummaries; i++) {
+            BaseCombatReport.FleetSummary fleet = summaries.get(i);
+            if (firstFleets[i].getState() != BaseFleet.State.ATTACKING) {
                 continue;
             }
 
-            BaseCombatReport.FleetSummary target = findTarget(round, fleet);
-            if (target == null) {
+            int targetIndex = findTarget(i, firstFleets, summaryDesigns);
+            if (targetIndex < 0) {
                 // if there's no more available targets, then we're no longer attacking
-                log(String.format("    Fleet #%d no suitable target.", fleet.getIndex()));
+                if (logging) {
+                    log(String.format("    Fleet #%d no suitable target.", i));
+                }
                 fleet.setFleetState(BaseFleet.State.IDLE);
                 continue;
-            } else {
-                log(String.format("    Fleet #%d attacking fleet #%d", fleet.getIndex(), target.getIndex()));
+            }
+            BaseCombatReport.FleetSummary target = summaries.get(targetIndex);
+            if (logging) {
+                log(String.format("    Fleet #%d attacking fleet #%d", i, targetIndex));
             }
 
-            ShipDesign fleetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-            float damage = fleet.getNumShips() * fleetDesign.getBaseAttack();
-            log(String.format("    Fleet #%d (%s x %.2f) hit by fleet #%d (%s x %.2f) for %.2f damage",
-                    target.getIndex(), target.getDesignID(), target.getNumShips(),
-                    fleet.getIndex(), fleet.getDesignID(), fleet.getNumShips(), damage));
+            float damage = fleet.getNumShips() * summaryDesigns[i].getBaseAttack();
+            if (logging) {
+                log(String.format("    Fleet #%d (%s x %.2f) hit by fleet #%d (%s x %.2f) for %.2f damage",
+                        targetIndex, target.getDesignID(), target.getNumShips(),
+                        i, fleet.getDesignID(), fleet.getNumShips(), damage));
+            }
 
-            Double totalDamage = hits.get(target.getIndex());
-            if (totalDamage == null) {
-                hits.put(target.getIndex(), new Double(damage));
+            if (wasHit[targetIndex]) {
+                hits[targetIndex] += damage;
             } else {
-                hits.put(target.getIndex(), new Double(totalDamage + damage));
+                hits[targetIndex] = damage;
+                wasHit[targetIndex] = true;
             }
 
             BaseCombatReport.FleetAttackRecord attackRecord = new BaseCombatReport.FleetAttackRecord(
-                    round.getFleets(), fleet.getIndex(), target.getIndex(), damage);
+                    summaries, i, targetIndex, damage);
             round.getFleetAttackRecords().add(attackRecord);
         }
 
         // any fleets that were attacked this round will want to change to attacking for the next
         // round, if they're not attacking already...
-        for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
-            if (!hits.keySet().contains(fleet.getIndex())) {
+        for (int i = 0; i < numSummaries; i++) {
+            if (!wasHit[i]) {
                 continue;
             }
-            for (BaseFleet targetFleet : fleet.getFleets()) {
+            for (BaseFleet targetFleet : summaries.get(i).getFleets()) {
                 if (targetFleet.getState() == BaseFleet.State.IDLE) {
-                    ShipDesign targetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-                    ArrayList<ShipEffect> effects = targetDesign.getEffects(ShipEffect.class);
-                    for (ShipEffect effect : effects) {
+                    for (ShipEffect effect : designs.getEffects(summaryDesigns[i])) {
                         effect.onAttacked(star, targetFleet);
                     }
                 }
             }
-
         }
 
         // next, apply the damage from this round
-        for (BaseCombatReport.FleetSummary fleet : round.getFleets()) {
-            Double damage = hits.get(fleet.getIndex());
-            if (damage == null) {
+        for (int i = 0; i < numSummaries; i++) {
+            if (!wasHit[i]) {
                 continue;
             }
+            BaseCombatReport.FleetSummary fleet = summaries.get(i);
 
-            ShipDesign fleetDesign = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, fleet.getDesignID());
-            damage /= fleetDesign.getBaseDefence();
-            fleet.removeShips((float) (double) damage);
-            log(String.format("    Fleet #%d %.2f ships lost (%.2f ships remaining)", fleet.getIndex(), damage, fleet.getNumShips()));
+            double damage = hits[i] / summaryDesigns[i].getBaseDefence();
+            fleet.removeShips((float) damage);
+            if (logging) {
+                log(String.format("    Fleet #%d %.2f ships lost (%.2f ships remaining)", i, damage, fleet.getNumShips()));
+            }
 
             BaseCombatReport.FleetDamagedRecord damageRecord = new BaseCombatReport.FleetDamagedRecord(
-                    round.getFleets(), fleet.getIndex(), (float) damage.doubleValue());
+                    summaries, i, (float) damage);
             round.getFleetDamagedRecords().add(damageRecord);
 
             // go through the "real" fleets and apply the damage as well
-            for (String fleetKey : fleet.getFleetKeys()) {
-                BaseFleet realFleet = star.findFleet(fleetKey);
+            for (BaseFleet realFleet : fleet.getFleets()) {
                 float newNumShips = (float)(realFleet.getNumShips() - damage);
                 if (newNumShips <= 0) {
                     newNumShips = 0;
@@ -737,16 +877,22 @@ public class Simulation {
         }
 
         // if all the fleets are friendly (or running away), we can stop attacking
+        List<BaseFleet> fleets = star.getFleets();
+        int numFleets = fleets.size();
+        boolean[] destroyed = new boolean[numFleets];
+        for (int i = 0; i < numFleets; i++) {
+            destroyed[i] = isDestroyed(fleets.get(i), nowMillis);
+        }
         boolean enemyExists = false;
-        for (int i = 0; i < star.getFleets().size(); i++) {
-            BaseFleet fleet1 = star.getFleets().get(i);
-            if (isDestroyed(fleet1, now) || fleet1.getState() == BaseFleet.State.MOVING) {
+        for (int i = 0; i < numFleets && !enemyExists; i++) {
+            BaseFleet fleet1 = fleets.get(i);
+            if (destroyed[i] || fleet1.getState() == BaseFleet.State.MOVING) {
                 continue;
             }
 
-            for (int j = i + 1; j < star.getFleets().size(); j++) {
-                BaseFleet fleet2 = star.getFleets().get(j);
-                if (isDestroyed(fleet2, now)) {
+            for (int j = i + 1; j < numFleets; j++) {
+                BaseFleet fleet2 = fleets.get(j);
+                if (destroyed[j]) {
                     continue;
                 }
 
@@ -756,11 +902,12 @@ public class Simulation {
                         continue;
                     }
                     enemyExists = true;
+                    break;
                 }
             }
         }
         if (!enemyExists) {
-            for (BaseFleet fleet : star.getFleets()) {
+            for (BaseFleet fleet : fleets) {
                 // switch back from attacking mode to idle
                 if (fleet.getState() == BaseFleet.State.ATTACKING) {
                     fleet.idle(now);
@@ -772,34 +919,30 @@ public class Simulation {
     }
 
     /**
-     * Searches for an enemy fleet with the lowest priority.
+     * Searches for an enemy fleet with the lowest priority, returning it's index or -1 if there
+     * are no enemies to attack.
      */
-    private BaseCombatReport.FleetSummary findTarget(BaseCombatReport.CombatRound round,
-                                                     BaseCombatReport.FleetSummary fleet) {
+    private static int findTarget(int fleetIndex, BaseFleet[] firstFleets, ShipDesign[] designs) {
         int foundPriority = 9999;
-        BaseCombatReport.FleetSummary foundFleet = null;
+        int foundIndex = -1;
 
-        for (BaseCombatReport.FleetSummary otherFleet : round.getFleets()) {
+        BaseFleet fleet = firstFleets[fleetIndex];
+        for (int i = 0; i < firstFleets.length; i++) {
+            BaseFleet otherFleet = firstFleets[i];
             if (isFriendly(fleet, otherFleet)) {
                 continue;
             }
-            if (otherFleet.getFleetState() == BaseFleet.State.MOVING) {
+            if (otherFleet.getState() == BaseFleet.State.MOVING) {
                 continue;
             }
-            ShipDesign design = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, otherFleet.getDesignID());
-            if (foundFleet == null || design.getCombatPriority() < foundPriority) {
-                foundFleet = otherFleet;
-                foundPriority = design.getCombatPriority();
+            int priority = designs[i].getCombatPriority();
+            if (foundIndex < 0 || priority < foundPriority) {
+                foundIndex = i;
+                foundPriority = priority;
             }
         }
 
-        return foundFleet;
-    }
-
-    private static boolean isFriendly(BaseCombatReport.FleetSummary fleet1, BaseCombatReport.FleetSummary fleet2) {
-        BaseFleet baseFleet1 = fleet1.getFleets().get(0);
-        BaseFleet baseFleet2 = fleet2.getFleets().get(0);
-        return isFriendly(baseFleet1, baseFleet2);
+        return foundIndex;
     }
 
     public static boolean isFriendly(BaseFleet fleet1, BaseFleet fleet2) {
@@ -826,13 +969,41 @@ public class Simulation {
         return false;
     }
 
-    private boolean isDestroyed(BaseFleet fleet, DateTime now) {
-        if (fleet.getTimeDestroyed() != null && !fleet.getTimeDestroyed().isAfter(now)) {
+    private static boolean isDestroyed(BaseFleet fleet, long nowMillis) {
+        if (fleet.getTimeDestroyed() != null && fleet.getTimeDestroyed().getMillis() <= nowMillis) {
             return true;
         }
         return false;
     }
 
+    /**
+     * Caches the {@link ShipDesign}s (and their {@link ShipEffect}s) used in a combat, so that we
+     * don't have to look them up for every fleet in every round.
+     */
+    private static class CombatDesigns {
+        private final HashMap<String, ShipDesign> designs = new HashMap<String, ShipDesign>();
+        private final HashMap<ShipDesign, ArrayList<ShipEffect>> effects =
+                new HashMap<ShipDesign, ArrayList<ShipEffect>>();
+
+        public ShipDesign get(String designID) {
+            ShipDesign design = designs.get(designID);
+            if (design == null) {
+                design = (ShipDesign) BaseDesignManager.i.getDesign(DesignKind.SHIP, designID);
+                designs.put(designID, design);
+            }
+            return design;
+        }
+
+        public ArrayList<ShipEffect> getEffects(ShipDesign design) {
+            ArrayList<ShipEffect> designEffects = effects.get(design);
+            if (designEffects == null) {
+                designEffects = design.getEffects(ShipEffect.class);
+                effects.put(design, designEffects);
+            }
+            return designEffects;
+        }
+    }
+
     /**
      * This interface is used to help debug the simulation code. Implement it to receive a bunch
      * of debug log messages during the simulation process.
@@ -842,6 +1013,15 @@ public class Simulation {
         void log(String message);
     }
 
+    /** The colonies, build requests and empire presence of a single empire on a star. */
+    private static class EmpireIndex {
+        public String empireKey;
+        public BaseEmpirePresence empire;
+        public BaseColony[] colonies;
+        public BasePlanet[] planets;
+        public BaseBuildRequest[][] buildRequests;
+    }
+
     private static class BasicLogHandler implements LogHandler {
         private static final Log log = new Log("Simulation");
         private String starName;
@@ -0,0 +1,6 @@
+-- The purge cron jobs delete the oldest sessions and combat reports in chunks, ordered by
+-- (time, id), so make sure that's an index scan.
+CREATE INDEX ix_sessions_login_time ON sessions USING btree (login_time, id);
+
+CREATE INDEX ix_combat_reports_end_time ON combat_reports USING btree (end_time, id);
+DROP INDEX idx_27664_ix_combat_reports_end_time;
@@ -0,0 +1,7 @@
+-- A HyperLogLog sketch of the empires that logged in each (UTC) day, see ActiveEmpireCounters.
+CREATE TABLE active_empire_sketches (
+  date DATE NOT NULL PRIMARY KEY,
+  sketch BYTEA NOT NULL
+);
+
+ALTER TABLE dashboard_stats ADD COLUMN active_30d BIGINT NOT NULL DEFAULT 0;
@@ -21,7 +21,8 @@ sleep $((DELAY*60))
 # Simulate all the stars, so populations are up-to-date
 ./run-blitz.sh cron simulate-stars 0
 
-# Final update of statistics
+# Final update of statistics. The totals are kept up-to-date by the server (and rebuilt by it's
+# daily "update-ranks rebuild" job), so this just has to rank them.
 ./run-blitz.sh cron update-ranks
 
 # Save off the ranks into the history table
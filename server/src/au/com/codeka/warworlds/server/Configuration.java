@@ -3,6 +3,8 @@ package au.com.codeka.warworlds.server;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -33,6 +35,10 @@ public class Configuration {
   private String dataDirectory;
   private int listenPort;
   private Integer numStarSimulationThreads;
+  private boolean loadStarsInOneRoundTrip;
+  private String pushSender;
+  private String translator;
+  private ArrayList<CronJobConfiguration> cron;
   private DatabaseConfiguration database;
   private SinbinConfiguration sinbin;
 
@@ -55,6 +61,44 @@ public class Configuration {
     return numStarSimulationThreads.intValue();
   }
 
+  /**
+   * If true, {@code StarController} sends all of the queries it needs to load a batch of stars
+   * as a single multi-statement query, rather than one query (and connection) per table.
+   */
+  public boolean getLoadStarsInOneRoundTrip() {
+    return loadStarsInOneRoundTrip;
+  }
+
+  /**
+   * The kind of push sender to use for notifications to devices: "gcm" (the default) or "fake",
+   * which doesn't actually send anything (useful for testing).
+   */
+  public String getPushSender() {
+    if (pushSender == null) {
+      return "gcm";
+    }
+    return pushSender;
+  }
+
+  /**
+   * The translator to use for chat messages: "google" (the default) or "fake", which doesn't
+   * call out to anything (useful for testing offline).
+   */
+  public String getTranslator() {
+    if (translator == null) {
+      return "google";
+    }
+    return translator;
+  }
+
+  /** The cron jobs we run in-process, see {@link au.com.codeka.warworlds.server.cron.CronScheduler}. */
+  public List<CronJobConfiguration> getCronJobs() {
+    if (cron == null) {
+      return new ArrayList<CronJobConfiguration>();
+    }
+    return cron;
+  }
+
   public DatabaseConfiguration getDatabaseConfig() {
     return database;
   }
@@ -96,6 +140,38 @@ public class Configuration {
     }
   }
 
+  public static class CronJobConfiguration {
+    private String job;
+    private String extra;
+    private int intervalMinutes;
+    private Integer jitterMinutes;
+
+    /** The name of the job, as registered in {@link au.com.codeka.warworlds.server.cron.CronJobRegistry}. */
+    public String getJob() {
+      return job;
+    }
+
+    /** The "extra" parameter to pass to the job, may be null. */
+    public String getExtra() {
+      return extra;
+    }
+
+    public int getIntervalMinutes() {
+      return intervalMinutes;
+    }
+
+    /**
+     * Up to this many minutes is randomly added to each interval, so that jobs don't all run at
+     * once. Defaults to a tenth of the interval.
+     */
+    public int getJitterMinutes() {
+      if (jitterMinutes == null) {
+        return intervalMinutes / 10;
+      }
+      return jitterMinutes;
+    }
+  }
+
   public static class SinbinConfiguration {
     private boolean enabled;
     private int uniqueEmpireVotes;
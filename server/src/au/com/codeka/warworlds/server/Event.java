@@ -6,6 +6,7 @@ import org.joda.time.DateTime;
 
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.model.Star;
 
 /**
  * This is the base class for events, which the \see EventProcessor uses to schedule
@@ -30,6 +31,12 @@ public abstract class Event {
         }
     }
 
+    /**
+     * Gets the \see DateTime the next event of this type is supposed to run on the given star, or
+     * null if there's no event of this type scheduled for the star.
+     */
+    public abstract DateTime getNextEventTime(Star star);
+
     /**
      * This is called when it's time to process (at least) one event. We'll need to fetch details
      * from the database of the event and perform whatever actions are required.
@@ -1,31 +1,54 @@
 package au.com.codeka.warworlds.server;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.DateTime;
-import org.joda.time.Seconds;
 
 import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
 import au.com.codeka.warworlds.server.events.*;
+import au.com.codeka.warworlds.server.model.Star;
 
 /**
  * The \c EventProcessor looks at all events scheduled for the future (e.g. fleet arrives at
  * star, build completes, etc) and schedules itself to pick up the work of the event when it's
  * scheduled to occur.
+ *
+ * Event times are kept in an in-memory \c DelayQueue. It's populated from the database when the
+ * thread starts, and kept up-to-date by \c StarController, which calls \see onStarUpdated every
+ * time a star is saved. Once an event of a given type has been processed, we check the database
+ * for the next event of that type, which catches anything we missed (e.g. because it was saved
+ * in a transaction that was later rolled back).
  */
 public class EventProcessor {
     private final Log log = new Log("EventProcessor");
     public static EventProcessor i = new EventProcessor();
 
-    private static ArrayList<Class<?>> sEventClasses;
+    /**
+     * If nothing is scheduled for this long, we'll re-check the database for all event types in
+     * case something was scheduled without going through \c StarController.
+     */
+    private static final long RESYNC_INTERVAL_MS = 10 * 60 * 1000L;
+
+    private static ArrayList<Event> sEvents;
     static {
-        sEventClasses = new ArrayList<Class<?>>();
-        sEventClasses.add(FleetMoveCompleteEvent.class);
-        sEventClasses.add(BuildCompleteEvent.class);
-        sEventClasses.add(FleetDestroyedEvent.class);
-        sEventClasses.add(EmpireStarGoodsReachedZeroEvent.class);
+        sEvents = new ArrayList<Event>();
+        sEvents.add(new FleetMoveCompleteEvent());
+        sEvents.add(new BuildCompleteEvent());
+        sEvents.add(new FleetDestroyedEvent());
+        sEvents.add(new EmpireStarGoodsReachedZeroEvent());
     }
 
+    private final DelayQueue<ScheduledEvent> mQueue = new DelayQueue<ScheduledEvent>();
+    private final ConcurrentHashMap<ScheduledEvent, Boolean> mPending =
+            new ConcurrentHashMap<ScheduledEvent, Boolean>();
+
     private Thread mThread;
     private Runnable mThreadRunnable = new Runnable() {
         @Override
@@ -37,81 +60,131 @@ public class EventProcessor {
     };
 
     /**
-     * Call this every now and then (at the very least, every time a new event is scheduled)
-     * to make sure we're going to wake up at the correct time to handle the next event.
+     * Call this every now and then to make sure the event processor thread is running. New events
+     * are picked up via \see onStarUpdated, so there's no need to ping every time one is
+     * scheduled.
      */
-    public void ping() {
+    public synchronized void ping() {
         if (mThread == null || !mThread.isAlive()) {
             mThread = new Thread(mThreadRunnable);
             mThread.setDaemon(true);
             mThread.setName("EventProcessor");
             mThread.start();
-        } else {
-            // calling interrupt will cause the thread to wake up and loop around again
-            mThread.interrupt();
+        }
+    }
+
+    /**
+     * Called whenever a star is saved to the database. We'll schedule ourselves to wake up for the
+     * earliest event of each type on the star.
+     */
+    public void onStarUpdated(Star star) {
+        for (Event event : sEvents) {
+            DateTime next = event.getNextEventTime(star);
+            if (next != null) {
+                schedule(event, next.getMillis());
+            }
+        }
+    }
+
+    private void schedule(Event event, long timeMillis) {
+        ScheduledEvent scheduledEvent = new ScheduledEvent(event, timeMillis);
+        if (mPending.putIfAbsent(scheduledEvent, Boolean.TRUE) == null) {
+            mQueue.add(scheduledEvent);
+        }
+    }
+
+    /** Re-check the database for the next event time of the given event type. */
+    private void scheduleFromDatabase(Event event) {
+        DateTime next = event.getNextEventTime();
+        if (next != null) {
+            log.debug(String.format("Event %s says next event is at %s",
+                    event.getClass().getName(), next));
+            schedule(event, next.getMillis());
         }
     }
 
     /**
      * This method is called in a background thread to actually process events. Basically, we
-     * just loop forever checking for new events and waiting for those events to happen.
+     * just loop forever waiting for the next event in the queue and processing it.
      */
     private void threadProc() {
         log.info("EventProcessor thread starting.");
-        DateTime lastEventDateTime = null;
+        for (Event event : sEvents) {
+            scheduleFromDatabase(event);
+        }
 
         while (true) {
-            // work out when the next event is scheduled
-            DateTime nextEventDateTime = null;
-            ArrayList<Event> events = new ArrayList<Event>();
-            for (Class<?> eventClass : sEventClasses) {
-                Event event;
-                try {
-                    event = (Event) eventClass.newInstance();
-                } catch (InstantiationException | IllegalAccessException e) {
-                    continue;
-                }
-
-                DateTime next = event.getNextEventTime();
-                if (next != null) {
-                    log.debug(String.format("Event %s says next event is at %s", eventClass.getName(), next));
-                }
-                if (next != null && next.isBefore(DateTime.now())) {
-                    events.add(event);
-                }
-                if (next != null && (nextEventDateTime == null || next.isBefore(nextEventDateTime))) {
-                    nextEventDateTime = next;
-                }
+            ScheduledEvent scheduledEvent;
+            try {
+                scheduledEvent = mQueue.poll(RESYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
             }
-
-            if (nextEventDateTime == null) {
-                // if there's nothing scheduled, let's just sleep for ten minutes and try again
-                nextEventDateTime = DateTime.now().plusMinutes(10);
+            if (scheduledEvent == null) {
+                for (Event event : sEvents) {
+                    scheduleFromDatabase(event);
+                }
+                continue;
             }
 
-            if (lastEventDateTime == null || (nextEventDateTime.getMillis() / 1000) != (lastEventDateTime.getMillis() / 1000)) {
-                log.info(String.format("Next event is scheduled at %s", nextEventDateTime));
-                lastEventDateTime = nextEventDateTime;
+            // grab everything else that's due as well, so that we only process each type of
+            // event once, no matter how many of them were scheduled for this time.
+            LinkedHashSet<Event> events = new LinkedHashSet<Event>();
+            while (scheduledEvent != null) {
+                mPending.remove(scheduledEvent);
+                events.add(scheduledEvent.event);
+                scheduledEvent = mQueue.poll();
             }
 
-            // make sure we don't try to sleep for a negative amount of time...
-            if (nextEventDateTime.isBefore(DateTime.now())) {
-                nextEventDateTime = DateTime.now();
-            } else {
+            for (Event event : events) {
+                UnitOfWork unitOfWork = DB.beginUnitOfWork();
                 try {
-                    int seconds = Seconds.secondsBetween(DateTime.now(), nextEventDateTime).getSeconds();
-                    Thread.sleep(seconds * 1000);
-                } catch(InterruptedException e) {
-                    // if we get interrupted it's because somebody pinged us and we need to
-                    // check the next time again
-                    log.debug("EventProcessor pinged, checking for new events.");
-                    continue;
+                    event.process();
+                } catch (Exception e) {
+                    log.error("Error processing event.", e);
+                } finally {
+                    unitOfWork.close();
                 }
+                scheduleFromDatabase(event);
             }
+        }
+    }
 
-            for (Event event : events) {
-                event.process();
+    private static class ScheduledEvent implements Delayed {
+        private final Event event;
+        private final long timeMillis;
+
+        public ScheduledEvent(Event event, long timeMillis) {
+            this.event = event;
+            this.timeMillis = timeMillis;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(timeMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof ScheduledEvent) {
+                return Long.compare(timeMillis, ((ScheduledEvent) other).timeMillis);
+            }
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS),
+                    other.getDelay(TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof ScheduledEvent)) {
+                return false;
             }
+            ScheduledEvent se = (ScheduledEvent) other;
+            return se.event == event && se.timeMillis == timeMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return event.hashCode() * 31 + (int) (timeMillis ^ (timeMillis >>> 32));
         }
     }
 }
@@ -27,7 +27,9 @@ import javax.servlet.http.HttpServletResponse;
 import au.com.codeka.common.Log;
 import au.com.codeka.common.protoformat.PbFormatter;
 import au.com.codeka.warworlds.server.ctrl.AdminController;
+import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlStateTranslater;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
 import au.com.codeka.warworlds.server.model.BackendUser;
 
 /**
@@ -42,6 +44,9 @@ public class RequestHandler {
   private Session session;
   private String extraOption;
 
+  /** Set when the client already has the current version of the response, see setCacheTime. */
+  private boolean notModified;
+
   protected String getUrlParameter(String name) {
     try {
       return routeMatcher.group(name);
@@ -72,8 +77,19 @@ public class RequestHandler {
     // start off with status 200, but the handler might change it
     this.response.setStatus(200);
 
+    // everything this request does outside of a transaction shares a single connection
+    UnitOfWork unitOfWork = DB.beginUnitOfWork();
+    try {
+      handleWithRetries();
+    } finally {
+      unitOfWork.close();
+    }
+  }
+
+  private void handleWithRetries() {
     RequestException lastException = null;
     for (int retries = 0; retries < 10; retries++) {
+      notModified = false;
       try {
         onBeforeHandle();
         if (request.getMethod().equals("GET")) {
@@ -108,6 +124,7 @@ public class RequestHandler {
           log.info("Request: " + getRequestDebugString(request));
           log.error("Unhandled error in URL: " + request.getRequestURI(), e);
         }
+        notModified = false;
         e.populate(this.response);
         setResponseBody(e.getGenericError());
         return;
@@ -120,6 +137,7 @@ public class RequestHandler {
 
     // if we get here, it's because we exceeded the number of retries.
     if (lastException != null) {
+      notModified = false;
       log.error("Too many retries: " + request.getRequestURI(), lastException);
       lastException.populate(this.response);
       handleException(lastException);
@@ -169,6 +187,9 @@ public class RequestHandler {
    * Sets the required headers so that the client will know this response can be cached for the
    * given number of hours. The default response includes no caching headers.
    *
+   * <p>If an ETag is given and it matches the request's If-None-Match header, the response is
+   * changed to a 304 and any body the handler sets afterwards is not sent.
+   *
    * @param hours
    * @param etag An optional value to include in the ETag header. This can be any string at all,
    *             and we will hash and base-64 encode it for you.
@@ -177,13 +198,39 @@ public class RequestHandler {
     response.setHeader("Cache-Control", String.format("private, max-age=%d",
         (int)(hours * 3600)));
     if (etag != null) {
-      etag = BaseEncoding.base64().encode(
-          Hashing.sha1().hashString(etag, Charset.defaultCharset()).asBytes());
-      response.setHeader("ETag", String.format("\"%s\"", etag));
+      etag = String.format("\"%s\"", BaseEncoding.base64().encode(
+          Hashing.sha1().hashString(etag, Charset.defaultCharset()).asBytes()));
+      response.setHeader("ETag", etag);
+
+      if (matchesIfNoneMatch(etag)) {
+        response.setStatus(304);
+        notModified = true;
+      }
     }
   }
 
+  /** Returns true if the given (quoted) ETag is one of the values in the If-None-Match header. */
+  private boolean matchesIfNoneMatch(String etag) {
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch == null || !request.getMethod().equals("GET")) {
+      return false;
+    }
+    for (String value : ifNoneMatch.split(",")) {
+      value = value.trim();
+      if (value.startsWith("W/")) {
+        value = value.substring(2);
+      }
+      if (value.equals("*") || value.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   protected void setResponseText(String text) {
+    if (notModified) {
+      return;
+    }
     response.setContentType("text/plain");
     response.setCharacterEncoding("utf-8");
     try {
@@ -194,6 +241,9 @@ public class RequestHandler {
   }
 
   protected void setResponseJson(JsonObject json) {
+    if (notModified) {
+      return;
+    }
     response.setContentType("application/json");
     response.setCharacterEncoding("utf-8");
     try {
@@ -204,7 +254,7 @@ public class RequestHandler {
   }
 
   protected void setResponseBody(Message pb) {
-    if (pb == null) {
+    if (pb == null || notModified) {
       return;
     }
 
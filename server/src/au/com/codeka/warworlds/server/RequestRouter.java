@@ -1,7 +1,10 @@
 package au.com.codeka.warworlds.server;
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,7 +24,9 @@ import au.com.codeka.warworlds.server.monitor.MonitorManager;
 
 public class RequestRouter extends AbstractHandler {
     private static final Log log = new Log("RequestRouter");
+    private static final String REALM_PREFIX = "/realms/";
     private static ArrayList<Route> sRoutes;
+    private static RouteTrie sRouteTrie;
 
     private final MonitorManager monitorManager = new MonitorManager();
 
@@ -88,6 +93,8 @@ public class RequestRouter extends AbstractHandler {
         sRoutes.add(new Route("admin/debug/purchases", AdminDebugPurchasesHandler.class, "admin/"));
         sRoutes.add(new Route("admin/debug/error-reports", AdminDebugErrorReportsHandler.class, "admin/"));
         sRoutes.add(new Route("admin/debug/retrace", AdminDebugRetraceHandler.class, "admin/"));
+        sRoutes.add(new Route("admin/debug/sql-stats", AdminDebugSqlStatsHandler.class, "admin/"));
+        sRoutes.add(new Route("admin/debug/cron", AdminDebugCronHandler.class, "admin/"));
         sRoutes.add(new Route("admin/empire/shields", AdminEmpireShieldsHandler.class, "admin/"));
         sRoutes.add(new Route("admin/empire/alts", AdminEmpireAltsHandler.class, "admin/"));
         sRoutes.add(new Route("admin/(?<path>empire/ban)", AdminEmpireBanHandler.class, "admin/"));
@@ -106,12 +113,17 @@ public class RequestRouter extends AbstractHandler {
 
         // Special route for the root favicon.ico
         sRoutes.add(new Route("/(?<path>[^/]+)", true, StaticFileHandler.class, "/"));
+
+        sRouteTrie = new RouteTrie();
+        for (Route route : sRoutes) {
+            sRouteTrie.add(route);
+        }
     }
 
     @Override
     public void handle(String target, Request baseRequest, HttpServletRequest request,
                        HttpServletResponse response) throws IOException, ServletException {
-        for (Route route : sRoutes) {
+        for (Route route : sRouteTrie.getCandidates(target)) {
             Matcher matcher = route.pattern.matcher(target);
             if (matcher.matches()) {
                 handle(matcher, route, request, response);
@@ -128,9 +140,11 @@ public class RequestRouter extends AbstractHandler {
                         HttpServletResponse response) {
         RequestHandler handler;
         try {
-            handler = (RequestHandler) route.handlerClass.newInstance();
-        } catch (InstantiationException | IllegalAccessException e) {
-            return; // TODO: error
+            handler = route.newHandler();
+        } catch (Exception e) {
+            log.error("Error creating handler: " + route.handlerClass.getName(), e);
+            response.setStatus(500);
+            return;
         }
 
         Session session = null;
@@ -163,20 +177,186 @@ public class RequestRouter extends AbstractHandler {
     }
 
     private static class Route {
+        private static final Pattern PARAM_SEGMENT_PATTERN =
+                Pattern.compile("\\(\\?<[a-zA-Z]+>(\\[[a-z0-9-]+\\][*+])\\)");
+        private static final Pattern LITERAL_SEGMENT_PATTERN = Pattern.compile("[a-zA-Z0-9_-]+");
+
         public java.util.regex.Pattern pattern;
         public Class<?> handlerClass;
         public String extraOption;
 
+        /** The order this route was added in, earlier routes take precedence. */
+        public int index;
+
+        /** Whether this route is under /realms/{realm}/ or not. */
+        public boolean inRealm;
+
+        /**
+         * The leading segments of the route's pattern that can be matched without the full
+         * regular expression: either a literal, or a pattern for a single path segment (e.g. an
+         * ID). Once we hit a segment that's more complicated than that, we stop.
+         */
+        public ArrayList<String> literalSegments = new ArrayList<String>();
+        public ArrayList<Pattern> paramSegments = new ArrayList<Pattern>();
+
+        private final Constructor<?> handlerConstructor;
+
         public Route(String pattern, Class<?> handlerClass) {
             this(pattern, handlerClass, null);
         }
         public Route(String pattern, Class<?> handlerClass, String extraOption) {
             this("/realms/(?<realm>[a-z]+)/"+pattern, false, handlerClass, extraOption);
+            inRealm = true;
+            parseSegments(pattern);
         }
         public Route(String pattern, boolean dontAddRealm, Class<?> handlerClass, String extraOption) {
             this.pattern = Pattern.compile(pattern);
             this.handlerClass = handlerClass;
             this.extraOption = extraOption;
+            try {
+                this.handlerConstructor = handlerClass.getConstructor();
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(
+                        handlerClass.getName() + " has no public default constructor.", e);
+            }
+        }
+
+        public RequestHandler newHandler() throws Exception {
+            return (RequestHandler) handlerConstructor.newInstance();
+        }
+
+        /**
+         * Splits the (realm-relative) pattern into segments, and records the ones at the start
+         * that are simple enough to put in the {@link RouteTrie}.
+         */
+        private void parseSegments(String pattern) {
+            String[] segments = pattern.split("/", -1);
+            for (int i = 0; i < segments.length; i++) {
+                // if the "/" after this segment is optional (e.g. "admin/?") then this segment
+                // might not be a whole path segment, so we have to stop.
+                if (i < segments.length - 1 && segments[i + 1].length() > 0
+                        && "?*+{".indexOf(segments[i + 1].charAt(0)) >= 0) {
+                    break;
+                }
+
+                if (LITERAL_SEGMENT_PATTERN.matcher(segments[i]).matches()) {
+                    literalSegments.add(segments[i]);
+                    paramSegments.add(null);
+                    continue;
+                }
+                Matcher matcher = PARAM_SEGMENT_PATTERN.matcher(segments[i]);
+                if (matcher.matches()) {
+                    literalSegments.add(null);
+                    paramSegments.add(Pattern.compile(matcher.group(1)));
+                    continue;
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * A trie of path segments, used to narrow down the routes that could possibly match a given
+     * URL so that we only need to try a handful of regular expressions, rather than all of them.
+     * Each route is stored at the node for the segments at the start of its pattern that we were
+     * able to parse (see {@link Route#parseSegments}), and a URL's candidates are the routes at
+     * every node that its segments lead to, plus the (few) routes that aren't under /realms/.
+     */
+    private static class RouteTrie {
+        private final Node root = new Node();
+        private final ArrayList<Route> nonRealmRoutes = new ArrayList<Route>();
+        private int numRoutes;
+
+        public void add(Route route) {
+            route.index = numRoutes++;
+            if (!route.inRealm) {
+                nonRealmRoutes.add(route);
+                return;
+            }
+
+            Node node = root;
+            for (int i = 0; i < route.literalSegments.size(); i++) {
+                String literal = route.literalSegments.get(i);
+                if (literal != null) {
+                    Node child = node.literalChildren.get(literal);
+                    if (child == null) {
+                        child = new Node();
+                        node.literalChildren.put(literal, child);
+                    }
+                    node = child;
+                } else {
+                    Pattern param = route.paramSegments.get(i);
+                    Node child = null;
+                    for (int j = 0; j < node.paramPatterns.size(); j++) {
+                        if (node.paramPatterns.get(j).pattern().equals(param.pattern())) {
+                            child = node.paramChildren.get(j);
+                            break;
+                        }
+                    }
+                    if (child == null) {
+                        child = new Node();
+                        node.paramPatterns.add(param);
+                        node.paramChildren.add(child);
+                    }
+                    node = child;
+                }
+            }
+            node.routes.add(route);
+        }
+
+        /**
+         * Gets the routes that could match the given target, in the order they were added. The
+         * caller still needs to check each route's full pattern.
+         */
+        public List<Route> getCandidates(String target) {
+            if (!target.startsWith(REALM_PREFIX)) {
+                return nonRealmRoutes;
+            }
+            int realmEnd = target.indexOf('/', REALM_PREFIX.length());
+            if (realmEnd < 0) {
+                return nonRealmRoutes;
+            }
+
+            String[] segments = target.substring(realmEnd + 1).split("/", -1);
+            boolean[] matched = new boolean[numRoutes];
+            collect(root, segments, 0, matched);
+            for (Route route : nonRealmRoutes) {
+                matched[route.index] = true;
+            }
+
+            ArrayList<Route> candidates = new ArrayList<Route>();
+            for (int i = 0; i < numRoutes; i++) {
+                if (matched[i]) {
+                    candidates.add(sRoutes.get(i));
+                }
+            }
+            return candidates;
+        }
+
+        private static void collect(Node node, String[] segments, int index, boolean[] matched) {
+            for (Route route : node.routes) {
+                matched[route.index] = true;
+            }
+            if (index >= segments.length) {
+                return;
+            }
+
+            Node child = node.literalChildren.get(segments[index]);
+            if (child != null) {
+                collect(child, segments, index + 1, matched);
+            }
+            for (int i = 0; i < node.paramPatterns.size(); i++) {
+                if (node.paramPatterns.get(i).matcher(segments[index]).matches()) {
+                    collect(node.paramChildren.get(i), segments, index + 1, matched);
+                }
+            }
+        }
+
+        private static class Node {
+            public final HashMap<String, Node> literalChildren = new HashMap<String, Node>();
+            public final ArrayList<Pattern> paramPatterns = new ArrayList<Pattern>();
+            public final ArrayList<Node> paramChildren = new ArrayList<Node>();
+            public final ArrayList<Route> routes = new ArrayList<Route>();
         }
     }
 }
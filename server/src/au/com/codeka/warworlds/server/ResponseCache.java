@@ -0,0 +1,129 @@
+package au.com.codeka.warworlds.server;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.codeka.common.Pair;
+import au.com.codeka.warworlds.server.model.Star;
+
+import com.google.common.hash.Hashing;
+import com.google.protobuf.Message;
+
+/**
+ * A cache of the (sanitized) responses we send for stars and sectors, so that clients panning
+ * around the starfield don't cause us to load and sanitize the same stars over and over.
+ *
+ * <p>Every time a star is saved, we give it (and it's sector) a new version number. Cached
+ * responses remember the version they were built from, and are ignored once the version changes.
+ * Version numbers come from a single counter, so the version of a group of sectors is simply the
+ * highest version of any of them.
+ *
+ * <p>Not everything that affects a response goes through {@link #onStarUpdated} (for example a
+ * new radar in a neighbouring sector, or some of the direct SQL updates to fleets) so responses
+ * are also only used for a short time after they were built.
+ */
+public class ResponseCache {
+  public static ResponseCache i = new ResponseCache();
+
+  /** The maximum number of responses we'll keep. */
+  private static final int MAX_ENTRIES = 2000;
+
+  /** Responses older than this are never used, even if the version hasn't changed. */
+  private static final long MAX_AGE_MS = 60 * 1000L;
+
+  private final AtomicLong nextVersion = new AtomicLong(1);
+  private final ConcurrentHashMap<Integer, Long> starVersions =
+      new ConcurrentHashMap<Integer, Long>();
+  private final ConcurrentHashMap<Pair<Long, Long>, Long> sectorVersions =
+      new ConcurrentHashMap<Pair<Long, Long>, Long>();
+
+  private final LinkedHashMap<String, CachedResponse> responses =
+      new LinkedHashMap<String, CachedResponse>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+
+  /** Called whenever a star is saved, any cached response containing the star is invalidated. */
+  public void onStarUpdated(Star star) {
+    long version = nextVersion.getAndIncrement();
+    starVersions.put(star.getID(), version);
+    sectorVersions.put(new Pair<Long, Long>(star.getSectorX(), star.getSectorY()), version);
+  }
+
+  /** Called when a sector is created, or stars are added or removed from it. */
+  public void onSectorUpdated(long sectorX, long sectorY) {
+    sectorVersions.put(new Pair<Long, Long>(sectorX, sectorY), nextVersion.getAndIncrement());
+  }
+
+  public long getStarVersion(int starID) {
+    Long version = starVersions.get(starID);
+    return version == null ? 0 : version;
+  }
+
+  /** Gets the version of the given sectors, which is the highest version of any of them. */
+  public long getSectorsVersion(List<Pair<Long, Long>> coords) {
+    long maxVersion = 0;
+    for (Pair<Long, Long> coord : coords) {
+      Long version = sectorVersions.get(coord);
+      if (version != null && version > maxVersion) {
+        maxVersion = version;
+      }
+    }
+    return maxVersion;
+  }
+
+  /**
+   * Gets the cached response with the given key, or null if there isn't one or if it was built
+   * from a different version.
+   */
+  public CachedResponse get(String key, long version) {
+    CachedResponse response;
+    synchronized (responses) {
+      response = responses.get(key);
+    }
+    if (response == null || response.version != version
+        || response.createTime < System.currentTimeMillis() - MAX_AGE_MS) {
+      return null;
+    }
+    return response;
+  }
+
+  /** Caches the given response, which was built from the given version. */
+  public CachedResponse put(String key, long version, Message message) {
+    CachedResponse response = new CachedResponse(version, message);
+    synchronized (responses) {
+      responses.put(key, response);
+    }
+    return response;
+  }
+
+  public static class CachedResponse {
+    private final long version;
+    private final long createTime;
+    private final Message message;
+    private final String etag;
+
+    private CachedResponse(long version, Message message) {
+      this.version = version;
+      this.createTime = System.currentTimeMillis();
+      this.message = message;
+      this.etag = Hashing.sha1().hashBytes(message.toByteArray()).toString();
+    }
+
+    public Message getMessage() {
+      return message;
+    }
+
+    /** Gets a value for the ETag header, based on the contents of the response. */
+    public String getETag() {
+      return etag;
+    }
+  }
+}
@@ -5,8 +5,11 @@ import org.eclipse.jetty.server.Server;
 import au.com.codeka.common.Log;
 import au.com.codeka.warworlds.server.cron.CronJob;
 import au.com.codeka.warworlds.server.cron.CronJobRegistry;
+import au.com.codeka.warworlds.server.cron.CronScheduler;
 import au.com.codeka.warworlds.server.ctrl.NameGenerator;
+import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SchemaUpdater;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
 import au.com.codeka.warworlds.server.model.DesignManager;
 
 /** Main entry-point for the server. */
@@ -39,15 +42,20 @@ public class Runner {
   private static void cronMain(String method, String extra) throws Exception {
     CronJob job = CronJobRegistry.getJob(method);
     if (job != null) {
-      job.run(extra);
+      UnitOfWork unitOfWork = DB.beginUnitOfWork();
+      try {
+        job.run(extra);
+      } finally {
+        unitOfWork.close();
+      }
     }
   }
 
   private static void gameMain() throws Exception {
     EventProcessor.i.ping();
 
-    StarSimulatorThreadManager starSimulatorThreadManager = new StarSimulatorThreadManager();
-    starSimulatorThreadManager.start();
+    StarSimulatorThreadManager.i.start();
+    CronScheduler.i.start();
 
     int port = Configuration.i.getListenPort();
     Server server = new Server(port);
@@ -56,6 +64,6 @@ public class Runner {
     log.info("Server started on http://localhost:%d/", port);
     server.join();
 
-    starSimulatorThreadManager.stop();
+    StarSimulatorThreadManager.i.stop();
   }
 }
@@ -0,0 +1,75 @@
+package au.com.codeka.warworlds.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory priority queue of stars, ordered by the time they're next due to be simulated.
+ * Any number of {@link StarSimulatorThread}s can block on {@link #take()} and they'll each be
+ * handed the next star that's due, so whichever thread is free picks up the next bit of work.
+ *
+ * <p>A star can be rescheduled at any time (e.g. when it's simulated by a request thread). Rather
+ * than searching the queue for the old entry, we just remember the latest due time for each star
+ * and skip any stale entries as they come off the head of the queue.
+ */
+public class StarSimulationQueue {
+  private final DelayQueue<Entry> queue = new DelayQueue<Entry>();
+  private final ConcurrentHashMap<Integer, Long> dueTimes = new ConcurrentHashMap<Integer, Long>();
+
+  /** Schedules the given star to be simulated at the given time (in epoch millis). */
+  public void schedule(int starID, long dueTimeMillis) {
+    Long existing = dueTimes.put(starID, dueTimeMillis);
+    if (existing == null || existing != dueTimeMillis) {
+      queue.add(new Entry(starID, dueTimeMillis));
+    }
+  }
+
+  /** Removes the given star from the queue, it'll no longer be handed out by {@link #take}. */
+  public void remove(int starID) {
+    dueTimes.remove(starID);
+  }
+
+  /**
+   * Blocks until the next star is due for simulation, and returns it's ID. Once a star has been
+   * returned it's no longer in the queue until it is {@link #schedule}d again.
+   */
+  public int take() throws InterruptedException {
+    while (true) {
+      Entry entry = queue.take();
+      if (dueTimes.remove(entry.starID, entry.dueTimeMillis)) {
+        return entry.starID;
+      }
+      // otherwise it's a stale entry (the star has been rescheduled or removed), ignore it.
+    }
+  }
+
+  /** Gets the number of stars that are currently scheduled. */
+  public int size() {
+    return dueTimes.size();
+  }
+
+  private static class Entry implements Delayed {
+    private final int starID;
+    private final long dueTimeMillis;
+
+    public Entry(int starID, long dueTimeMillis) {
+      this.starID = starID;
+      this.dueTimeMillis = dueTimeMillis;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueTimeMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      if (other instanceof Entry) {
+        return Long.compare(dueTimeMillis, ((Entry) other).dueTimeMillis);
+      }
+      return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+    }
+  }
+}
@@ -1,17 +1,18 @@
 package au.com.codeka.warworlds.server;
 
 import org.joda.time.DateTime;
-import org.joda.time.Seconds;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.common.model.Simulation;
 import au.com.codeka.warworlds.server.ctrl.StarController;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
 import au.com.codeka.warworlds.server.model.Star;
 
 /**
- * This is a background thread that runs every 2 seconds and simulates the
- * oldest star in the system. This ensures we never let our stars get TOO
- * out-of-date.
+ * This is a background thread that waits for stars to become due in the
+ * {@link StarSimulatorThreadManager}'s queue and simulates them. This ensures
+ * we never let our stars get TOO out-of-date.
  */
 public class StarSimulatorThread {
   private static final Log log = new Log("StarSimulatorThread");
@@ -19,8 +20,6 @@ public class StarSimulatorThread {
   private boolean stopped;
   private final StarSimulatorThreadManager manager;
 
-  private static int WAIT_TIME_NO_STARS = 10 * 60 * 1000; // 10 minutes, after
-                                                          // no stars found
   private static int WAIT_TIME_ERROR = 60 * 1000; // 1 minute, in case of error
   private static int WAIT_TIME_NORMAL = 0; // don't wait if there's more stars
                                            // to simulate
@@ -85,22 +84,23 @@ public class StarSimulatorThread {
   }
 
   private int simulateOneStar() {
+    int starID = manager.getNextStar();
+    if (starID == 0) {
+      // we were interrupted, probably because we're stopping.
+      return WAIT_TIME_NORMAL;
+    }
+
+    UnitOfWork unitOfWork = DB.beginUnitOfWork();
     try {
-      int starID = manager.getNextStar();
-      if (starID == 0) {
-        return WAIT_TIME_NO_STARS;
-      }
       log.debug("Simulating star: " + starID);
       long startTime = System.currentTimeMillis();
 
       Star star = new StarController().getStar(starID);
       if (star.getLastSimulation().isAfter(DateTime.now().minusHours(1))) {
-        // how long would we have to wait (in seconds) before there WOULD HAVE
-        // been one
-        // hour since it was last simulated?
-        int seconds = Seconds
-            .secondsBetween(DateTime.now().minusHours(1), star.getLastSimulation()).getSeconds();
-        return seconds * 1000;
+        // it's been simulated since it was scheduled, just schedule it again for one hour
+        // after that simulation.
+        manager.scheduleStar(starID, star.getLastSimulation());
+        return WAIT_TIME_NORMAL;
       }
 
       new Simulation().simulate(star);
@@ -120,7 +120,10 @@ public class StarSimulatorThread {
       // TODO: if there are errors, it'll just keep reporting
       // over and over... probably a good thing because we'll
       // definitely need to fix it!
+      manager.scheduleStar(starID, DateTime.now());
       return WAIT_TIME_ERROR;
+    } finally {
+      unitOfWork.close();
     }
   }
 }
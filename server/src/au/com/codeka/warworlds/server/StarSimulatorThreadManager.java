@@ -1,25 +1,35 @@
 package au.com.codeka.warworlds.server;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.Set;
+
+import org.joda.time.DateTime;
 
 import au.com.codeka.common.Log;
+import au.com.codeka.common.model.BaseEmpirePresence;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.model.Star;
 
 public class StarSimulatorThreadManager {
   private static final Log log = new Log("StarSimulatorThreadManager");
+  public static StarSimulatorThreadManager i = new StarSimulatorThreadManager();
+
+  /** Stars are simulated once they've gone this long without a simulation. */
+  private static final long SIMULATION_INTERVAL_MS = 60 * 60 * 1000L;
 
   private final ArrayList<StarSimulatorThread> threads = new ArrayList<StarSimulatorThread>();
-  private final Queue<Integer> starIDs = new ArrayDeque<Integer>();
-  private final Set<Integer> lastStarIDs = new HashSet<Integer>();
-  private final Object lock = new Object();
+  private final StarSimulationQueue queue = new StarSimulationQueue();
+  private volatile boolean started;
 
   public void start() {
+    if (Configuration.i.getNumStarSimulationThreads() <= 0) {
+      return;
+    }
+
+    seedQueue();
+    started = true;
+
     for (int i = 0; i < Configuration.i.getNumStarSimulationThreads(); i++) {
       StarSimulatorThread thread = new StarSimulatorThread(this);
       thread.start();
@@ -32,40 +42,63 @@ public class StarSimulatorThreadManager {
     for (StarSimulatorThread thread : threads) {
       thread.stop();
     }
+    started = false;
   }
 
-  /** Returns the ID of the next star to simulate. */
+  /**
+   * Returns the ID of the next star to simulate, blocking until one is due. Returns 0 if we
+   * were interrupted before a star became due.
+   */
   public int getNextStar() {
-    synchronized(lock) {
-      if (starIDs.isEmpty()) {
-        // Grab 50 stars at a time, to save all those queries.
-        String sql = "SELECT id FROM stars" + " WHERE empire_count > 0"
-            + " ORDER BY last_simulation ASC LIMIT 50";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-          SqlResult res = stmt.select();
-          while (res.next()) {
-            int starID = res.getInt(1);
-            // If this starID was handed out in the last set, it's possible that another thread
-            // is still simulating it. Ignore it for now, and wait for the next time around.
-            if (lastStarIDs.contains(starID)) {
-              continue;
-            }
-            starIDs.add(starID);
-          }
-        } catch (Exception e) {
-          log.error("Error fetching starIDs to simulate.", e);
-        }
-
-        // clear out the lastStarIDs set and start afresh with this new batch.
-        lastStarIDs.clear();
+    try {
+      return queue.take();
+    } catch (InterruptedException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Called by {@link au.com.codeka.warworlds.server.ctrl.StarController} whenever a star is
+   * saved, so that we can schedule it's next simulation (or stop simulating it altogether, if
+   * there's no empires left).
+   */
+  public void onStarUpdated(Star star) {
+    if (!started) {
+      return;
+    }
+
+    boolean hasEmpire = false;
+    for (BaseEmpirePresence empirePresence : star.getEmpirePresences()) {
+      if (empirePresence.getEmpireKey() != null) {
+        hasEmpire = true;
+        break;
       }
+    }
+
+    if (hasEmpire) {
+      scheduleStar(star.getID(), star.getLastSimulation());
+    } else {
+      queue.remove(star.getID());
+    }
+  }
+
+  /** Schedules the given star to be simulated one interval after it was last simulated. */
+  public void scheduleStar(int starID, DateTime lastSimulation) {
+    long lastSimulationMillis = lastSimulation == null ? 0 : lastSimulation.getMillis();
+    queue.schedule(starID, lastSimulationMillis + SIMULATION_INTERVAL_MS);
+  }
 
-      if (starIDs.isEmpty()) {
-        return 0;
+  /** Populates the queue with all of the stars in the database that have an empire on them. */
+  private void seedQueue() {
+    String sql = "SELECT id, last_simulation FROM stars WHERE empire_count > 0";
+    try (SqlStmt stmt = DB.prepare(sql)) {
+      SqlResult res = stmt.select();
+      while (res.next()) {
+        scheduleStar(res.getInt(1), res.getDateTime(2));
       }
-      int starID = starIDs.remove();
-      lastStarIDs.add(starID);
-      return starID;
+    } catch (Exception e) {
+      log.error("Error fetching starIDs to simulate.", e);
     }
+    log.info("Scheduled %d stars for simulation.", queue.size());
   }
 }
@@ -1,11 +1,37 @@
 package au.com.codeka.warworlds.server.cron;
 
+import org.joda.time.DateTime;
+
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.SqlStmt;
+
 /**
  * This is the base class for all cron jobs. 
  */
 public abstract class CronJob {
+    /** The maximum number of rows we'll delete in one statement in {@link #deleteOlderThan}. */
+    private static final int DELETE_CHUNK_SIZE = 1000;
+
+    /** How long we pause between chunks in {@link #deleteOlderThan}. */
+    private static final long DELETE_CHUNK_DELAY_MS = 50;
+
+    private boolean mRunningInServer;
+
     public abstract void run(String extra) throws Exception;
 
+    /**
+     * Returns {@code true} if we're being run by the {@link CronScheduler} inside the game server,
+     * or {@code false} if we were started from the command-line in a process of our own (in which
+     * case we can't see any of the server's in-memory state).
+     */
+    protected boolean isRunningInServer() {
+        return mRunningInServer;
+    }
+
+    void setRunningInServer(boolean runningInServer) {
+        mRunningInServer = runningInServer;
+    }
+
     protected static int extraToNum(String extra, int minNumber, int defaultNumber) {
         int num = defaultNumber;
         if (extra != null) {
@@ -16,4 +42,37 @@ public abstract class CronJob {
         }
         return num;
     }
+
+    /**
+     * Deletes every row from the given table where the given time column is older than the given
+     * date. Rather than one big DELETE (which holds it's locks for ages and causes deadlocks with
+     * whatever else is using the table), we delete the oldest {@link #DELETE_CHUNK_SIZE} rows at a
+     * time, in (timeColumn, id) order, with each chunk in it's own statement. There should be an
+     * index on (timeColumn, id) so that finding each chunk is cheap.
+     *
+     * @return The total number of rows deleted.
+     */
+    protected static int deleteOlderThan(String table, String timeColumn, DateTime dt)
+            throws Exception {
+        String sql = "DELETE FROM " + table + " WHERE id IN (" +
+                        "SELECT id FROM " + table +
+                        " WHERE " + timeColumn + " < ?" +
+                        " ORDER BY " + timeColumn + ", id" +
+                        " LIMIT " + DELETE_CHUNK_SIZE + ")";
+        int total = 0;
+        while (true) {
+            int numDeleted;
+            try (SqlStmt stmt = DB.prepare(sql)) {
+                stmt.setDateTime(1, dt);
+                numDeleted = stmt.update();
+            }
+            total += numDeleted;
+            if (numDeleted < DELETE_CHUNK_SIZE) {
+                return total;
+            }
+
+            // give everything else a chance to get at the table.
+            Thread.sleep(DELETE_CHUNK_DELAY_MS);
+        }
+    }
 }
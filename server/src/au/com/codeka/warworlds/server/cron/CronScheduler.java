@@ -0,0 +1,252 @@
+package au.com.codeka.warworlds.server.cron;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.Configuration;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
+
+/**
+ * Runs the cron jobs in {@link CronJobRegistry} inside the server process, on the schedules
+ * given in the "cron" section of the config file. This saves starting up a whole new JVM (and
+ * loading all the designs, connecting to the database and so on) every time a job runs.
+ *
+ * <p>Each job runs on it's own thread. If a job is still running when it's next due, that run is
+ * skipped, and a random amount of "jitter" is added to each interval so that jobs don't all run
+ * at once.
+ */
+public class CronScheduler {
+    private static final Log log = new Log("CronScheduler");
+    public static CronScheduler i = new CronScheduler();
+
+    /** We wait at least this long after startup before running anything. */
+    private static final long STARTUP_DELAY_MS = 60 * 1000L;
+
+    private final Random random = new Random();
+    private final Object lock = new Object();
+    private final ArrayList<ScheduledJob> jobs = new ArrayList<ScheduledJob>();
+
+    private Thread thread;
+    private Runnable threadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                threadProc();
+            }
+        }
+    };
+
+    /** Schedules all of the jobs in the config file and starts running them. */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            for (Configuration.CronJobConfiguration config : Configuration.i.getCronJobs()) {
+                if (CronJobRegistry.getJob(config.getJob()) == null) {
+                    log.error("Unknown cron job '%s', ignoring.", config.getJob());
+                    continue;
+                }
+                if (config.getIntervalMinutes() <= 0) {
+                    log.error("Cron job '%s' has no interval, ignoring.", config.getJob());
+                    continue;
+                }
+
+                ScheduledJob job = new ScheduledJob(config);
+                job.nextRunTime = now + STARTUP_DELAY_MS + getJitterMs(config);
+                jobs.add(job);
+                log.info("Scheduled cron job '%s' every %d minutes.", job.getName(),
+                        config.getIntervalMinutes());
+            }
+        }
+        if (jobs.isEmpty()) {
+            return;
+        }
+
+        thread = new Thread(threadRunnable);
+        thread.setDaemon(true);
+        thread.setName("CronScheduler");
+        thread.start();
+    }
+
+    /** Gets all of the jobs we've scheduled, along with their stats. */
+    public List<ScheduledJob> getJobs() {
+        synchronized (lock) {
+            return new ArrayList<ScheduledJob>(jobs);
+        }
+    }
+
+    /**
+     * Runs the given job now, unless it's already running.
+     *
+     * @return true if the job was started, false if it was already running.
+     */
+    public boolean runNow(ScheduledJob job) {
+        synchronized (lock) {
+            return startJob(job);
+        }
+    }
+
+    private long getJitterMs(Configuration.CronJobConfiguration config) {
+        long jitterMs = config.getJitterMinutes() * 60 * 1000L;
+        if (jitterMs <= 0) {
+            return 0;
+        }
+        return (long) (random.nextDouble() * jitterMs);
+    }
+
+    private void threadProc() {
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            long nextRunTime = Long.MAX_VALUE;
+            for (ScheduledJob job : jobs) {
+                if (job.nextRunTime <= now) {
+                    if (!startJob(job)) {
+                        job.numSkipped++;
+                        log.warning("Cron job '%s' is still running, skipping this run.",
+                                job.getName());
+                    }
+                    job.nextRunTime = now + job.config.getIntervalMinutes() * 60 * 1000L
+                            + getJitterMs(job.config);
+                }
+                nextRunTime = Math.min(nextRunTime, job.nextRunTime);
+            }
+
+            try {
+                lock.wait(Math.max(1, nextRunTime - now));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /** Starts the given job on a new thread. Must be called with {@link #lock} held. */
+    private boolean startJob(final ScheduledJob job) {
+        if (job.running) {
+            return false;
+        }
+        job.running = true;
+
+        Thread jobThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runJob(job);
+            }
+        });
+        jobThread.setDaemon(true);
+        jobThread.setName("Cron-" + job.getName());
+        jobThread.start();
+        return true;
+    }
+
+    private void runJob(ScheduledJob job) {
+        log.info("Running cron job '%s'", job.getName());
+        DateTime startTime = DateTime.now();
+        long startNanos = System.nanoTime();
+        String error = null;
+        UnitOfWork unitOfWork = DB.beginUnitOfWork();
+        try {
+            CronJob cronJob = CronJobRegistry.getJob(job.config.getJob());
+            cronJob.setRunningInServer(true);
+            cronJob.run(job.config.getExtra());
+        } catch (Exception e) {
+            log.error("Error running cron job '%s'", job.getName(), e);
+            error = e.toString();
+        } finally {
+            unitOfWork.close();
+        }
+        long durationMs = (System.nanoTime() - startNanos) / 1000000L;
+        log.info("Cron job '%s' finished in %dms", job.getName(), durationMs);
+
+        synchronized (lock) {
+            job.running = false;
+            job.numRuns++;
+            if (error != null) {
+                job.numFailures++;
+                job.lastError = error;
+            }
+            job.lastStartTime = startTime;
+            job.lastDurationMs = durationMs;
+            job.totalDurationMs += durationMs;
+            job.maxDurationMs = Math.max(job.maxDurationMs, durationMs);
+        }
+    }
+
+    /** A job that we're running on a schedule, and the stats about it's previous runs. */
+    public static class ScheduledJob {
+        private final Configuration.CronJobConfiguration config;
+        private long nextRunTime;
+        private boolean running;
+        private long numRuns;
+        private long numFailures;
+        private long numSkipped;
+        private DateTime lastStartTime;
+        private String lastError;
+        private long lastDurationMs;
+        private long totalDurationMs;
+        private long maxDurationMs;
+
+        private ScheduledJob(Configuration.CronJobConfiguration config) {
+            this.config = config;
+        }
+
+        public String getName() {
+            if (config.getExtra() == null) {
+                return config.getJob();
+            }
+            return config.getJob() + " " + config.getExtra();
+        }
+
+        public int getIntervalMinutes() {
+            return config.getIntervalMinutes();
+        }
+
+        public DateTime getNextRunTime() {
+            return new DateTime(nextRunTime);
+        }
+
+        public boolean isRunning() {
+            return running;
+        }
+
+        public long getNumRuns() {
+            return numRuns;
+        }
+
+        public long getNumFailures() {
+            return numFailures;
+        }
+
+        /** The number of times the job was due while it was still running from last time. */
+        public long getNumSkipped() {
+            return numSkipped;
+        }
+
+        public DateTime getLastStartTime() {
+            return lastStartTime;
+        }
+
+        public String getLastError() {
+            return lastError;
+        }
+
+        public long getLastDurationMs() {
+            return lastDurationMs;
+        }
+
+        public long getTotalDurationMs() {
+            return totalDurationMs;
+        }
+
+        public long getMaxDurationMs() {
+            return maxDurationMs;
+        }
+    }
+}
@@ -1,17 +1,17 @@
 package au.com.codeka.warworlds.server.cron;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Locale;
 
 import au.com.codeka.common.Log;
-import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
 import au.com.codeka.warworlds.server.model.Empire;
 import au.com.codeka.warworlds.server.model.Sector;
-import au.com.codeka.warworlds.server.model.Star;
 
 /**
  * An abandoned empire is one where the user hasn't logged in for a while, and they only have one
@@ -24,10 +24,20 @@ import au.com.codeka.warworlds.server.model.Star;
  * If they later log in and their star has been taken, they'll get a standard "empire reset"
  * message with help text explaining that their empire expired. If they log in again and their
  * name has been changed, they'll be required to choose another.
+ *
+ * For each abandoned star, we also work out how far it is from the nearest star of an active
+ * empire, so that new empires aren't put right next door to someone. Rather than querying the
+ * neighbourhood of every star, we load all the active empires' stars into a k-d tree up front.
  */
 public class FindAbandonedEmpiresCronJob extends CronJob {
     private static final Log log = new Log("FindAbandonedEmpiresCronJob");
 
+    /** Active empires further away than this many sectors (in x or y) aren't counted. */
+    private static final int MAX_SECTOR_DISTANCE = 2;
+
+    /** The distance we use for stars that have no active empires nearby. */
+    private static final double NO_ACTIVE_EMPIRE_DISTANCE = 9999.0;
+
     @Override
     public void run(String extra) throws Exception {
         ArrayList<Integer> abandonedEmpires = new ArrayList<Integer>();
@@ -43,7 +53,7 @@ public class FindAbandonedEmpiresCronJob extends CronJob {
                      "SELECT empire_id, COUNT(*) AS num_stars FROM empire_presences" +
                      " GROUP BY empire_id) stars ON stars.empire_id = empires.id" +
                      " WHERE state = " + Empire.State.ACTIVE.getValue() +
-                       " AND last_login < DATE_ADD(NOW(), INTERVAL -14 DAY)" +
+                       " AND last_login < NOW() - INTERVAL '14 days'" +
                        " AND num_stars <= 1";
         try (SqlStmt stmt = DB.prepare(sql)) {
             SqlResult res = stmt.select();
@@ -57,12 +67,15 @@ public class FindAbandonedEmpiresCronJob extends CronJob {
             }
         }
 
-        sql = "UPDATE empires SET state = ? WHERE id = ?";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setInt(1, Empire.State.ABANDONED.getValue());
-            for (Integer empireID : abandonedEmpires) {
-                stmt.setInt(2, empireID);
-                stmt.update();
+        if (!abandonedEmpires.isEmpty()) {
+            sql = "UPDATE empires SET state = ? WHERE id = ?";
+            try (SqlStmt stmt = DB.prepare(sql)) {
+                for (Integer empireID : abandonedEmpires) {
+                    stmt.setInt(1, Empire.State.ABANDONED.getValue());
+                    stmt.setInt(2, empireID);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
             }
         }
 
@@ -70,84 +83,177 @@ public class FindAbandonedEmpiresCronJob extends CronJob {
     }
 
     private void updateAbandonedStars() throws Exception {
-        String sql = "SELECT stars.id, empires.id" +
+        // load the position of every star with an active empire on it
+        ArrayList<StarPosition> activeStars = new ArrayList<StarPosition>();
+        String sql = "SELECT DISTINCT sectors.x, sectors.y, stars.x, stars.y" +
                      " FROM stars" +
-                     " INNER JOIN empire_presences ON empire_presences.star_id = stars.id" + 
-                     " INNER JOIN empires ON empires.id = empire_presences.empire_id" + 
-                     " WHERE empires.state = " + Empire.State.ABANDONED.getValue();
+                     " INNER JOIN sectors ON sectors.id = stars.sector_id" +
+                     " INNER JOIN empire_presences ON empire_presences.star_id = stars.id" +
+                     " INNER JOIN empires ON empire_presences.empire_id = empires.id" +
+                     " WHERE empires.state = " + Empire.State.ACTIVE.getValue();
         try (SqlStmt stmt = DB.prepare(sql)) {
             SqlResult res = stmt.select();
             while (res.next()) {
-                int starID = res.getInt(1);
-                int empireID = res.getInt(2);
-                try {
-                    updateAbandonedStar(starID, empireID);
-                } catch (Exception e) {
-                    log.error("Error marking star abandoned, starID="+starID, e);
-                }
+                activeStars.add(new StarPosition(0, 0, res.getLong(1), res.getLong(2),
+                        res.getInt(3), res.getInt(4)));
             }
         }
-    }
+        KdTree tree = new KdTree(activeStars);
 
-    private void updateAbandonedStar(int starID, int empireID) throws Exception {
-        Star star = new StarController().getStar(starID);
-        float distanceToNonAbandonedEmpire = 0.0f;
-
-        // find all stars around us with non-abandoned empires on them
-        String sql = "SELECT sectors.x, sectors.y, stars.x, stars.y" +
-                     " FROM stars" +
-                     " INNER JOIN sectors ON sectors.id = stars.sector_id" +
-                     " INNER JOIN empire_presences ON empire_presences.star_id = stars.id" +
-                     " INNER JOIN empires ON empire_presences.empire_id = empires.id" +
-                     " WHERE sectors.x < ? AND sectors.x > ?" +
-                       " AND sectors.y < ? AND sectors.y > ?" +
-                       " AND empires.state = " + Empire.State.ACTIVE.getValue();
+        // then all of the stars with abandoned empires on them
+        ArrayList<StarPosition> abandonedStars = new ArrayList<StarPosition>();
+        sql = "SELECT stars.id, empires.id, sectors.x, sectors.y, stars.x, stars.y" +
+              " FROM stars" +
+              " INNER JOIN sectors ON sectors.id = stars.sector_id" +
+              " INNER JOIN empire_presences ON empire_presences.star_id = stars.id" +
+              " INNER JOIN empires ON empires.id = empire_presences.empire_id" +
+              " WHERE empires.state = " + Empire.State.ABANDONED.getValue();
         try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setLong(1, star.getSectorX() + 3);
-            stmt.setLong(2, star.getSectorX() - 3);
-            stmt.setLong(3, star.getSectorY() + 3);
-            stmt.setLong(4, star.getSectorY() - 3);
             SqlResult res = stmt.select();
-
             while (res.next()) {
-                long sectorX = res.getLong(1);
-                long sectorY = res.getLong(2);
-                int offsetX = res.getInt(3);
-                int offsetY = res.getInt(4);
-
-                float distance = Sector.distanceInParsecs(star, sectorX, sectorY, offsetX, offsetY);
-                if (distanceToNonAbandonedEmpire < 0.001f
-                        || distance < distanceToNonAbandonedEmpire) {
-                    distanceToNonAbandonedEmpire = distance;
-                }
+                abandonedStars.add(new StarPosition(res.getInt(1), res.getInt(2), res.getLong(3),
+                        res.getLong(4), res.getInt(5), res.getInt(6)));
             }
         }
-
-        if (distanceToNonAbandonedEmpire < 0.0001f) {
-            distanceToNonAbandonedEmpire = 9999.0f;
+        log.info("Finding distances for %d abandoned stars from %d active stars.",
+                abandonedStars.size(), activeStars.size());
+        if (abandonedStars.isEmpty()) {
+            return;
         }
 
-        double distanceToCentre = Math.sqrt((star.getSectorX() * star.getSectorX())
-                + (star.getSectorY() * star.getSectorY()));
-
         try (Transaction t = DB.beginTransaction()) {
             sql = "DELETE FROM abandoned_stars WHERE star_id = ?";
             try (SqlStmt stmt = t.prepare(sql)) {
-                stmt.setInt(1, star.getID());
-                stmt.update();
+                for (StarPosition star : abandonedStars) {
+                    stmt.setInt(1, star.starID);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
             }
 
             sql = "INSERT INTO abandoned_stars (star_id, empire_id, distance_to_centre," +
                     " distance_to_non_abandoned_empire) VALUES (?, ?, ?, ?)";
             try (SqlStmt stmt = t.prepare(sql)) {
-                stmt.setInt(1, star.getID());
-                stmt.setInt(2, empireID);
-                stmt.setDouble(3, distanceToCentre);
-                stmt.setDouble(4, distanceToNonAbandonedEmpire);
-                stmt.update();
+                for (StarPosition star : abandonedStars) {
+                    double distanceToNonAbandonedEmpire = tree.findNearestDistance(star);
+                    double distanceToCentre = Math.sqrt((star.sectorX * star.sectorX)
+                            + (star.sectorY * star.sectorY));
+
+                    stmt.setInt(1, star.starID);
+                    stmt.setInt(2, star.empireID);
+                    stmt.setDouble(3, distanceToCentre);
+                    stmt.setDouble(4, distanceToNonAbandonedEmpire);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
             }
 
             t.commit();
         }
     }
+
+    /** The position of a star, in parsecs from the centre of the universe. */
+    private static class StarPosition {
+        public final int starID;
+        public final int empireID;
+        public final long sectorX;
+        public final long sectorY;
+        public final double x;
+        public final double y;
+
+        public StarPosition(int starID, int empireID, long sectorX, long sectorY, int offsetX,
+                int offsetY) {
+            this.starID = starID;
+            this.empireID = empireID;
+            this.sectorX = sectorX;
+            this.sectorY = sectorY;
+            this.x = ((double) sectorX * Sector.SECTOR_SIZE + offsetX) / Sector.PIXELS_PER_PARSEC;
+            this.y = ((double) sectorY * Sector.SECTOR_SIZE + offsetY) / Sector.PIXELS_PER_PARSEC;
+        }
+
+        public double get(int axis) {
+            return axis == 0 ? x : y;
+        }
+    }
+
+    /**
+     * A 2-d tree of star positions. The tree is stored implicitly in a sorted array: the median
+     * (along x or y, alternating at each level) of each range is the node, with the left half of
+     * the range before it and the right half after it.
+     */
+    private static class KdTree {
+        private final StarPosition[] stars;
+
+        public KdTree(ArrayList<StarPosition> stars) {
+            this.stars = stars.toArray(new StarPosition[stars.size()]);
+            build(0, this.stars.length, 0);
+        }
+
+        /**
+         * Finds the distance (in parsecs) from the given star to the nearest star in the tree
+         * that's within {@link #MAX_SECTOR_DISTANCE} sectors of it. Stars right on top of it (i.e.
+         * the star itself) aren't counted.
+         */
+        public double findNearestDistance(StarPosition star) {
+            // nothing within MAX_SECTOR_DISTANCE sectors can be further away than this, so we
+            // don't need to look at any part of the tree that's further away either.
+            double maxDistance = (MAX_SECTOR_DISTANCE + 1) * Sector.SECTOR_SIZE
+                    / Sector.PIXELS_PER_PARSEC;
+            double maxDistanceSq = 2 * maxDistance * maxDistance;
+
+            double[] best = new double[] {maxDistanceSq};
+            findNearest(star, 0, stars.length, 0, best);
+            if (best[0] >= maxDistanceSq) {
+                return NO_ACTIVE_EMPIRE_DISTANCE;
+            }
+            return Math.sqrt(best[0]);
+        }
+
+        private void build(int start, int end, final int axis) {
+            if (end - start <= 1) {
+                return;
+            }
+            Arrays.sort(stars, start, end, new Comparator<StarPosition>() {
+                @Override
+                public int compare(StarPosition lhs, StarPosition rhs) {
+                    return Double.compare(lhs.get(axis), rhs.get(axis));
+                }
+            });
+            int mid = (start + end) / 2;
+            build(start, mid, 1 - axis);
+            build(mid + 1, end, 1 - axis);
+        }
+
+        private void findNearest(StarPosition star, int start, int end, int axis,
+                double[] best) {
+            if (start >= end) {
+                return;
+            }
+            int mid = (start + end) / 2;
+            StarPosition node = stars[mid];
+
+            if (Math.abs(node.sectorX - star.sectorX) <= MAX_SECTOR_DISTANCE
+                    && Math.abs(node.sectorY - star.sectorY) <= MAX_SECTOR_DISTANCE) {
+                double dx = node.x - star.x;
+                double dy = node.y - star.y;
+                double distanceSq = dx * dx + dy * dy;
+                if (distanceSq >= 0.001 * 0.001 && distanceSq < best[0]) {
+                    best[0] = distanceSq;
+                }
+            }
+
+            double diff = star.get(axis) - node.get(axis);
+            if (diff < 0) {
+                findNearest(star, start, mid, 1 - axis, best);
+                if (diff * diff < best[0]) {
+                    findNearest(star, mid + 1, end, 1 - axis, best);
+                }
+            } else {
+                findNearest(star, mid + 1, end, 1 - axis, best);
+                if (diff * diff < best[0]) {
+                    findNearest(star, start, mid, 1 - axis, best);
+                }
+            }
+        }
+    }
 }
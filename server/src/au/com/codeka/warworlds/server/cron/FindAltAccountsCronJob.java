@@ -1,127 +1,304 @@
 package au.com.codeka.warworlds.server.cron;
 
-import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.joda.time.DateTime;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.data.Transaction;
 
 /**
  * This cron job runs once per day an searches the database for potential alts. We use this to
  * display the alts on the empire's info screen in the backend.
+ *
+ * <p>We load all of the devices, IP addresses and empires in one go, then group together every
+ * email address that has used the same device or IP address as another (directly, or via some
+ * other email address) using a union-find. Each empire then gets the list of all the empires and
+ * devices in it's group.
  */
 public class FindAltAccountsCronJob extends CronJob {
   private static final Log log = new Log("FindAltAccountsCronJob");
 
+  /** We only look at IP addresses that have been used in this many days. */
+  private static final int IP_ADDRESS_MAX_AGE_DAYS = 30;
+
+  /**
+   * IP addresses used by more than this many email addresses are ignored. They're most likely
+   * shared (e.g. a mobile carrier's NAT, or a school) rather than one person's alts.
+   */
+  private static final int MAX_EMAILS_PER_IP_ADDRESS = 5;
+
   @Override
   public void run(String extra) throws Exception {
-    ArrayList<String> emailAddresses = new ArrayList<>();
+    UnionFind groups = new UnionFind();
 
-    // First, find all the email addresses of all empires in the database. We look for alts
-    // one-by-one.
-    String sql = "SELECT DISTINCT user_email FROM empires";
+    // First, load all the devices, joining each email address with every other email address
+    // that has used the same device.
+    HashMap<String, String> deviceEmails = new HashMap<>();
+    HashMap<String, List<Messages.EmpireAltAccounts.DeviceInfo>> emailDevices = new HashMap<>();
+    String sql = "SELECT device_id, user_email, device_build, device_manufacturer, device_model,"
+        + " device_version FROM devices";
     try (SqlStmt stmt = DB.prepare(sql)) {
       SqlResult res = stmt.select();
       while (res.next()) {
-        String emailAddress = res.getString(1);
-        emailAddresses.add(emailAddress);
+        String deviceId = res.getString(1);
+        String emailAddress = res.getString(2);
+
+        String otherEmailAddress = deviceEmails.get(deviceId);
+        if (otherEmailAddress == null) {
+          deviceEmails.put(deviceId, emailAddress);
+          groups.find(emailAddress);
+        } else {
+          groups.union(otherEmailAddress, emailAddress);
+        }
+
+        List<Messages.EmpireAltAccounts.DeviceInfo> devices = emailDevices.get(emailAddress);
+        if (devices == null) {
+          devices = new ArrayList<>();
+          emailDevices.put(emailAddress, devices);
+        }
+        devices.add(Messages.EmpireAltAccounts.DeviceInfo.newBuilder()
+            .setDeviceId(deviceId)
+            .setDeviceBuild(res.getString(3))
+            .setDeviceManufacturer(res.getString(4))
+            .setDeviceModel(res.getString(5))
+            .setDeviceVersion(res.getString(6))
+            .build());
       }
     }
 
-    ArrayList<Messages.EmpireAltAccounts> alts = new ArrayList<>();
-
-    sql = "SELECT *, empires.id AS empire_id FROM devices " +
-        " INNER JOIN empires ON empires.user_email = devices.user_email" +
-        " WHERE device_id IN (" +
-        " SELECT device_id FROM devices WHERE user_email = ?" +
-        " )";
+    // Then join email addresses that have logged in from the same IP address.
+    HashMap<String, HashSet<String>> ipAddressEmails = new HashMap<>();
+    sql = "SELECT empire_ips.ip_address, empires.user_email FROM empire_ips"
+        + " INNER JOIN empires ON empires.id = empire_ips.empire_id"
+        + " WHERE empires.user_email IS NOT NULL AND empire_ips.last_seen > ?";
     try (SqlStmt stmt = DB.prepare(sql)) {
+      stmt.setDateTime(1, DateTime.now().minusDays(IP_ADDRESS_MAX_AGE_DAYS));
+      SqlResult res = stmt.select();
+      while (res.next()) {
+        String ipAddress = res.getString(1);
+        HashSet<String> emailAddresses = ipAddressEmails.get(ipAddress);
+        if (emailAddresses == null) {
+          emailAddresses = new HashSet<>();
+          ipAddressEmails.put(ipAddress, emailAddresses);
+        }
+        emailAddresses.add(res.getString(2));
+      }
+    }
+    int numSharedIpAddresses = 0;
+    for (HashSet<String> emailAddresses : ipAddressEmails.values()) {
+      if (emailAddresses.size() < 2) {
+        continue;
+      }
+      if (emailAddresses.size() > MAX_EMAILS_PER_IP_ADDRESS) {
+        numSharedIpAddresses++;
+        continue;
+      }
+      String first = null;
       for (String emailAddress : emailAddresses) {
-        stmt.setString(1, emailAddress);
-        SqlResult res = stmt.select();
-
-        Messages.EmpireAltAccounts.Builder alt_acct_pb = Messages.EmpireAltAccounts.newBuilder();
-        int numFound = 0;
-        while (res.next()) {
-          String altEmailAddress = res.getString("user_email");
-          if (altEmailAddress.equals(emailAddress)) {
-            alt_acct_pb.setEmpireId(res.getInt("empire_id"));
-          }
+        if (first == null) {
+          first = emailAddress;
+        } else {
+          groups.union(first, emailAddress);
+        }
+      }
+    }
+    if (numSharedIpAddresses > 0) {
+      log.info("Ignored %d IP addresses used by more than %d email addresses.",
+          numSharedIpAddresses, MAX_EMAILS_PER_IP_ADDRESS);
+    }
 
-          addDeviceInfo(alt_acct_pb, res);
-          addEmpireInfo(alt_acct_pb, res);
-          numFound++;
+    // Next, load all the empires belonging to an email address with at least one device or
+    // shared IP address.
+    ArrayList<Messages.EmpireAltAccounts.EmpireAltEmpire> empires = new ArrayList<>();
+    sql = "SELECT id, name, user_email, alliance_id FROM empires ORDER BY id";
+    try (SqlStmt stmt = DB.prepare(sql)) {
+      SqlResult res = stmt.select();
+      while (res.next()) {
+        String emailAddress = res.getString(3);
+        if (emailAddress == null || !groups.contains(emailAddress)) {
+          continue;
         }
 
-        if (numFound > 0) {
-          log.info(String.format(
-              "Found %d alts and %d devices for: %s", alt_acct_pb.getAltEmpireCount() - 1,
-              alt_acct_pb.getDeviceCount(), emailAddress));
-          alts.add(alt_acct_pb.build());
-        } else {
-          log.info("No alts and only one device found for: " + emailAddress);
+        Messages.EmpireAltAccounts.EmpireAltEmpire.Builder alt_empire_pb =
+            Messages.EmpireAltAccounts.EmpireAltEmpire.newBuilder();
+        alt_empire_pb.setEmpireId(res.getInt(1));
+        alt_empire_pb.setEmpireName(res.getString(2));
+        alt_empire_pb.setUserEmail(emailAddress);
+        Integer allianceID = res.getInt(4);
+        if (allianceID != null) {
+          alt_empire_pb.setAllianceId(allianceID);
         }
+        empires.add(alt_empire_pb.build());
       }
     }
 
-    sql = "DELETE FROM empire_alts";
-    try (SqlStmt stmt = DB.prepare(sql)) {
-      stmt.update();
+    // Now build up the empires and devices in each group.
+    HashMap<String, List<Messages.EmpireAltAccounts.EmpireAltEmpire>> groupEmpires =
+        new HashMap<>();
+    for (Messages.EmpireAltAccounts.EmpireAltEmpire alt_empire_pb : empires) {
+      String group = groups.find(alt_empire_pb.getUserEmail());
+      List<Messages.EmpireAltAccounts.EmpireAltEmpire> altEmpires = groupEmpires.get(group);
+      if (altEmpires == null) {
+        altEmpires = new ArrayList<>();
+        groupEmpires.put(group, altEmpires);
+      }
+      altEmpires.add(alt_empire_pb);
     }
 
-    sql = "INSERT INTO empire_alts (empire_id, alt_blob) VALUES (?, ?)";
-    try (SqlStmt stmt = DB.prepare(sql)) {
-      for (Messages.EmpireAltAccounts pb : alts) {
-        stmt.setInt(1, pb.getEmpireId());
-        stmt.setBytes(2, pb.toByteArray());
-        stmt.update();
+    HashMap<String, TreeMap<String, Messages.EmpireAltAccounts.DeviceInfo>> groupDevices =
+        new HashMap<>();
+    for (Map.Entry<String, List<Messages.EmpireAltAccounts.DeviceInfo>> entry
+        : emailDevices.entrySet()) {
+      String group = groups.find(entry.getKey());
+      TreeMap<String, Messages.EmpireAltAccounts.DeviceInfo> devices = groupDevices.get(group);
+      if (devices == null) {
+        devices = new TreeMap<>();
+        groupDevices.put(group, devices);
+      }
+      for (Messages.EmpireAltAccounts.DeviceInfo device_info_pb : entry.getValue()) {
+        if (!devices.containsKey(device_info_pb.getDeviceId())) {
+          devices.put(device_info_pb.getDeviceId(), device_info_pb);
+        }
       }
     }
-  }
 
-  private void addDeviceInfo(Messages.EmpireAltAccounts.Builder alt_acct_pb, SqlResult res)
-      throws SQLException {
-    // check whether we've added this device already, and add it if not
-    String deviceId = res.getString("device_id");
-    for (Messages.EmpireAltAccounts.DeviceInfo device_info_pb : alt_acct_pb.getDeviceList()) {
-      if (device_info_pb.getDeviceId().equals(deviceId)) {
-        return;
+    // Every empire gets the alts and devices of it's group.
+    TreeMap<Integer, byte[]> alts = new TreeMap<>();
+    for (Map.Entry<String, List<Messages.EmpireAltAccounts.EmpireAltEmpire>> entry
+        : groupEmpires.entrySet()) {
+      List<Messages.EmpireAltAccounts.EmpireAltEmpire> altEmpires = entry.getValue();
+      TreeMap<String, Messages.EmpireAltAccounts.DeviceInfo> devices =
+          groupDevices.get(entry.getKey());
+      if (devices == null) {
+        // the group is only linked by IP address.
+        devices = new TreeMap<>();
+      }
+      for (Messages.EmpireAltAccounts.EmpireAltEmpire alt_empire_pb : altEmpires) {
+        Messages.EmpireAltAccounts.Builder alt_acct_pb = Messages.EmpireAltAccounts.newBuilder();
+        alt_acct_pb.setEmpireId(alt_empire_pb.getEmpireId());
+        alt_acct_pb.addAllAltEmpire(altEmpires);
+        alt_acct_pb.addAllDevice(devices.values());
+        alts.put(alt_empire_pb.getEmpireId(), alt_acct_pb.build().toByteArray());
+      }
+
+      if (altEmpires.size() > 1) {
+        log.info("Found %d alts and %d devices for: %s", altEmpires.size() - 1, devices.size(),
+            altEmpires.get(0).getUserEmail());
       }
     }
 
-    Messages.EmpireAltAccounts.DeviceInfo.Builder device_info_pb =
-        Messages.EmpireAltAccounts.DeviceInfo.newBuilder();
-    device_info_pb.setDeviceId(deviceId);
-    device_info_pb.setDeviceBuild(res.getString("device_build"));
-    device_info_pb.setDeviceManufacturer(res.getString("device_manufacturer"));
-    device_info_pb.setDeviceModel(res.getString("device_model"));
-    device_info_pb.setDeviceVersion(res.getString("device_version"));
-    alt_acct_pb.addDevice(device_info_pb);
+    saveAlts(alts);
   }
 
-  private void addEmpireInfo(Messages.EmpireAltAccounts.Builder alt_acct_pb, SqlResult res)
-      throws SQLException {
-    // check whether we've added this device already, and add it if not
-    int empireId = res.getInt("empire_id");
-    for (Messages.EmpireAltAccounts.EmpireAltEmpire alt_empire_pb : alt_acct_pb
-        .getAltEmpireList()) {
-      if (alt_empire_pb.getEmpireId() == empireId) {
-        return;
+  /**
+   * Saves the given alts to the empire_alts table. We only write the rows that have actually
+   * changed, and remove the rows of empires that no longer have any alts.
+   */
+  private void saveAlts(Map<Integer, byte[]> alts) throws Exception {
+    try (Transaction t = DB.beginTransaction()) {
+      HashMap<Integer, byte[]> existing = new HashMap<>();
+      String sql = "SELECT empire_id, alt_blob FROM empire_alts";
+      try (SqlStmt stmt = t.prepare(sql)) {
+        SqlResult res = stmt.select();
+        while (res.next()) {
+          existing.put(res.getInt(1), res.getBytes(2));
+        }
+      }
+
+      int numInserted = 0;
+      int numUpdated = 0;
+      try (SqlStmt insertStmt = t.prepare(
+              "INSERT INTO empire_alts (empire_id, alt_blob) VALUES (?, ?)");
+          SqlStmt updateStmt = t.prepare(
+              "UPDATE empire_alts SET alt_blob = ? WHERE empire_id = ?")) {
+        for (Map.Entry<Integer, byte[]> entry : alts.entrySet()) {
+          byte[] existingBlob = existing.remove(entry.getKey());
+          if (existingBlob == null) {
+            insertStmt.setInt(1, entry.getKey());
+            insertStmt.setBytes(2, entry.getValue());
+            insertStmt.addBatch();
+            numInserted++;
+          } else if (!Arrays.equals(existingBlob, entry.getValue())) {
+            updateStmt.setBytes(1, entry.getValue());
+            updateStmt.setInt(2, entry.getKey());
+            updateStmt.addBatch();
+            numUpdated++;
+          }
+        }
+        if (numInserted > 0) {
+          insertStmt.executeBatch();
+        }
+        if (numUpdated > 0) {
+          updateStmt.executeBatch();
+        }
       }
+
+      // anything left in existing is no longer needed.
+      if (!existing.isEmpty()) {
+        try (SqlStmt stmt = t.prepare("DELETE FROM empire_alts WHERE empire_id = ?")) {
+          for (Integer empireID : existing.keySet()) {
+            stmt.setInt(1, empireID);
+            stmt.addBatch();
+          }
+          stmt.executeBatch();
+        }
+      }
+
+      t.commit();
+      log.info("Saved alts: %d inserted, %d updated, %d deleted.", numInserted, numUpdated,
+          existing.size());
+    }
+  }
+
+  /** A simple union-find (with path compression) of email addresses. */
+  private static class UnionFind {
+    private final HashMap<String, String> parents = new HashMap<>();
+
+    public boolean contains(String emailAddress) {
+      return parents.containsKey(emailAddress);
     }
 
-    Messages.EmpireAltAccounts.EmpireAltEmpire.Builder alt_empire_pb =
-        Messages.EmpireAltAccounts.EmpireAltEmpire.newBuilder();
-    alt_empire_pb.setEmpireId(empireId);
-    alt_empire_pb.setEmpireName(res.getString("name"));
-    alt_empire_pb.setUserEmail(res.getString("user_email"));
-    Integer allianceID = res.getInt("alliance_id");
-    if (allianceID != null) {
-      alt_empire_pb.setAllianceId(allianceID);
+    public String find(String emailAddress) {
+      String root = parents.get(emailAddress);
+      if (root == null) {
+        parents.put(emailAddress, emailAddress);
+        return emailAddress;
+      }
+      while (true) {
+        String parent = parents.get(root);
+        if (parent.equals(root)) {
+          break;
+        }
+        root = parent;
+      }
+
+      // point everything along the path directly at the root, so next time is quicker.
+      String current = emailAddress;
+      while (!current.equals(root)) {
+        String parent = parents.get(current);
+        parents.put(current, root);
+        current = parent;
+      }
+      return root;
+    }
+
+    public void union(String emailAddress1, String emailAddress2) {
+      String root1 = find(emailAddress1);
+      String root2 = find(emailAddress2);
+      if (!root1.equals(root2)) {
+        parents.put(root2, root1);
+      }
     }
-    alt_acct_pb.addAltEmpire(alt_empire_pb);
   }
 }
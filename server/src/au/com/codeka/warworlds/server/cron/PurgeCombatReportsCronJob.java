@@ -2,10 +2,11 @@ package au.com.codeka.warworlds.server.cron;
 
 import org.joda.time.DateTime;
 
-import au.com.codeka.warworlds.server.data.DB;
-import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.common.Log;
 
 public class PurgeCombatReportsCronJob extends CronJob {
+    private static final Log log = new Log("PurgeCombatReportsCronJob");
+
     @Override
     public void run(String extra) throws Exception {
         DateTime dt = DateTime.now().minusDays(extraToNum(extra, 7, 30));
@@ -18,11 +19,8 @@ public class PurgeCombatReportsCronJob extends CronJob {
      * just inflate the database.
      */
     public void purgeCombatReportsOlderThan(DateTime dt) throws Exception {
-        String sql = "DELETE FROM combat_reports WHERE end_time < ?";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setDateTime(1, dt);
-            stmt.update();
-        }
+        int numDeleted = deleteOlderThan("combat_reports", "end_time", dt);
+        log.info("Purged %d combat reports older than %s", numDeleted, dt);
     }
 
 }
@@ -1,49 +1,54 @@
 package au.com.codeka.warworlds.server.cron;
 
+import java.util.HashMap;
+
 import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 
+import au.com.codeka.warworlds.server.ctrl.ActiveEmpireCounters;
+import au.com.codeka.warworlds.server.ctrl.StatisticsController;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.data.Transaction;
+import au.com.codeka.warworlds.server.utils.HyperLogLog;
 
 /**
  * Updates the tables used to render the admin dashboard.
+ *
+ * <p>The active empire counts come from the sketches kept by {@link ActiveEmpireCounters}. Run
+ * with "backfill" once to build the last 30 days of sketches from {@code empire_logins}.
  */
 public class UpdateDashboardCronJob extends CronJob {
 
     @Override
     public void run(String extra) throws Exception {
         DateTime dt = DateTime.now();
-        if (extra != null && extra.length() > 0) {
+        if (extra != null && extra.equals("backfill")) {
+            backfill();
+        } else if (extra != null && extra.length() > 0) {
             dt = dt.minusDays(Integer.parseInt(extra));
         }
 
-        int oneDA = 0;
-        int sevenDA = 0;
-        int newSignups = 0;
+        // the sketches are kept by UTC day, so that's what the stats are for as well.
+        DateMidnight day = new DateMidnight(dt, DateTimeZone.UTC);
 
-        String sql = "SELECT DATE_TRUNC('day', l.date) AS date, COUNT(DISTINCT empire_id)," +
-                     " (SELECT COUNT(DISTINCT empire_id) FROM empire_logins AS sub WHERE sub.date BETWEEN (CURRENT_DATE - INTERVAL '6 DAY') AND (CURRENT_DATE + INTERVAL '1 DAY'))" +
-                     " FROM empire_logins l" +
-                     " WHERE DATE_TRUNC('day', l.date) = CURRENT_DATE" +
-                     " GROUP BY DATE_TRUNC('day', l.date)";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            //stmt.setDateTime(1, new DateMidnight(dt));
-            SqlResult res = stmt.select();
-            if (res.next()) {
-                oneDA = res.getInt(2);
-                sevenDA = res.getInt(3);
-            }
-        }
+        // make sure the counts include everyone who's logged in up to now
+        ActiveEmpireCounters.i.flush();
+        long oneDA = ActiveEmpireCounters.i.countActiveEmpires(day, 1);
+        long sevenDA = ActiveEmpireCounters.i.countActiveEmpires(day, 7);
+        long thirtyDA = ActiveEmpireCounters.i.countActiveEmpires(day, 30);
+        int newSignups = 0;
 
-        sql = "SELECT COUNT(*)" +
+        String sql = "SELECT COUNT(*)" +
                 " FROM empires" +
                 " WHERE signup_date IS NOT NULL" +
-                  " AND DATE(signup_date) = ?" +
-                " GROUP BY DATE(signup_date)";
+                  " AND DATE(signup_date AT TIME ZONE 'UTC') = ?" +
+                " GROUP BY DATE(signup_date AT TIME ZONE 'UTC')";
         try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setDateTime(1, new DateMidnight(dt));
+            stmt.setDateTime(1, day);
             SqlResult res = stmt.select();
             if (res.next()) {
                 newSignups = res.getInt(1);
@@ -53,18 +58,58 @@ public class UpdateDashboardCronJob extends CronJob {
         // TODO: the below two could be done with UPSERTs.
         sql = "DELETE FROM dashboard_stats WHERE date = ?";
         try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setDateTime(1, new DateMidnight(dt));
+            stmt.setDateTime(1, day);
+            stmt.update();
+        }
+
+        sql = "INSERT INTO dashboard_stats (date, active_1d, active_7d, active_30d, new_signups)" +
+             " VALUES (?, ?, ?, ?, ?)";
+        try (SqlStmt stmt = DB.prepare(sql)) {
+            stmt.setDateTime(1, day);
+            stmt.setLong(2, oneDA);
+            stmt.setLong(3, sevenDA);
+            stmt.setLong(4, thirtyDA);
+            stmt.setInt(5, newSignups);
             stmt.update();
         }
 
-        sql = "INSERT INTO dashboard_stats (date, active_1d, active_7d, new_signups)" +
-             " VALUES (?, ?, ?, ?)";
+        // we only need the last 30 days of sketches, but keep a few months in case we want to
+        // re-run the job for an earlier date.
+        sql = "DELETE FROM active_empire_sketches WHERE date < ?";
         try (SqlStmt stmt = DB.prepare(sql)) {
-            stmt.setDateTime(1, new DateMidnight(dt));
-            stmt.setInt(2, oneDA);
-            stmt.setInt(3, sevenDA);
-            stmt.setInt(4, newSignups);
+            stmt.setDateTime(1, DateMidnight.now(DateTimeZone.UTC).minusDays(90));
             stmt.update();
         }
     }
+
+    /**
+     * Builds the active empire sketches for the last 30 days from {@code empire_logins}. This only
+     * needs to be done once, to get things started, after that they're kept up-to-date as empires
+     * log in.
+     */
+    private void backfill() throws Exception {
+        HashMap<DateMidnight, HyperLogLog> sketches = new HashMap<DateMidnight, HyperLogLog>();
+        String sql = "SELECT DISTINCT empire_id, DATE(date AT TIME ZONE 'UTC') FROM empire_logins" +
+                    " WHERE date >= ?";
+        try (SqlStmt stmt = DB.prepare(sql)) {
+            stmt.setDateTime(1, DateTime.now().minusDays(30));
+            SqlResult res = stmt.select();
+            while (res.next()) {
+                // read the DATE as a string, so the JVM's time zone can't move it to another day
+                DateMidnight date = LocalDate.parse(res.getString(2))
+                        .toDateMidnight(DateTimeZone.UTC);
+                HyperLogLog sketch = sketches.get(date);
+                if (sketch == null) {
+                    sketch = new HyperLogLog();
+                    sketches.put(date, sketch);
+                }
+                sketch.add(res.getInt(1));
+            }
+        }
+
+        try (Transaction t = DB.beginTransaction()) {
+            new StatisticsController(t).mergeActiveEmpireSketches(sketches);
+            t.commit();
+        }
+    }
 }
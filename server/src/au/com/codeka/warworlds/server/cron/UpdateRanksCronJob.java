@@ -1,157 +1,109 @@
 package au.com.codeka.warworlds.server.cron;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.Map;
 
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.ctrl.EmpireRankController;
+import au.com.codeka.warworlds.server.ctrl.EmpireRankCounters;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
-import au.com.codeka.warworlds.server.model.EmpireRank;
 
 /**
  * Updates the ranks of empires.
+ *
+ * <p>The totals that empires are ranked by are kept up-to-date by the server as stars change (see
+ * {@link au.com.codeka.warworlds.server.ctrl.EmpireRankCounters}), so normally all we have to do
+ * is sort them. If "rebuild" is passed as the extra parameter, we recalculate all of the totals
+ * from scratch first, which fixes anything the server missed. That's expensive, so it should be
+ * run much less often (say, once a day). A rebuild has to be run inside the server (by the
+ * scheduler, or from the admin cron page), since it has to throw away the server's pending changes.
  */
 public class UpdateRanksCronJob extends CronJob {
+    private static final Log log = new Log("UpdateRanksCronJob");
+
     @Override
     public void run(String extra) throws Exception {
-        TreeMap<Integer, EmpireRank> ranks = new TreeMap<Integer, EmpireRank>();
-
-        String sql = "SELECT id AS empire_id FROM empires WHERE state <> 2";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            SqlResult res = stmt.select();
-            while (res.next()) {
-                EmpireRank rank = new EmpireRank(res);
-                ranks.put(rank.getEmpireID(), rank);
-            }
+        if (extra != null && extra.equals("rebuild") && !isRunningInServer()) {
+            // the server's changes that haven't been written yet would be added on top of our new
+            // totals, which already include them.
+            log.error("Ranks can only be rebuilt inside the server, see admin/debug/cron.");
+            return;
         }
 
-        sql = "SELECT empire_id, SUM(num_ships) FROM fleets WHERE empire_id IS NOT NULL GROUP BY empire_id";
-        try (SqlStmt stmt = DB.prepare(sql)) {
-            SqlResult res = stmt.select();
-            while (res.next()) {
-                int empireID = res.getInt(1);
-                int totalShips = res.getInt(2);
-                if (!ranks.containsKey(empireID)) {
-                    continue;
+        try (Transaction t = DB.beginTransaction()) {
+            EmpireRankController ctrl = new EmpireRankController(t);
+            if (extra != null && extra.equals("rebuild")) {
+                // the changes the server hasn't written yet are already in the snapshot we
+                // calculate the totals from, so they're thrown away when the rebuild begins.
+                EmpireRankCounters.i.beginRebuild(t);
+                try {
+                    ctrl.setTotals(calculateTotals(t));
+                    ctrl.updateRanks();
+                    t.commit();
+                } finally {
+                    EmpireRankCounters.i.endRebuild();
                 }
-                ranks.get(empireID).setTotalShips(totalShips);
+            } else {
+                ctrl.updateRanks();
+                t.commit();
             }
         }
+    }
 
-        sql = "SELECT empire_id, SUM(num_ships) FROM fleets WHERE empire_id IS NOT NULL GROUP BY empire_id";
-        try (SqlStmt stmt = DB.prepare(sql)) {
+    /**
+     * Calculates the totals for all (non-banned) empires from scratch. The queries must all see
+     * the same snapshot, so the transaction must be REPEATABLE READ.
+     */
+    private Map<Integer, long[]> calculateTotals(Transaction t) throws Exception {
+        HashMap<Integer, long[]> totals = new HashMap<Integer, long[]>();
+
+        String sql = "SELECT id AS empire_id FROM empires WHERE state <> 2";
+        try (SqlStmt stmt = t.prepare(sql)) {
             SqlResult res = stmt.select();
             while (res.next()) {
-                int empireID = res.getInt(1);
-                int totalShips = res.getInt(2);
-                if (!ranks.containsKey(empireID)) {
-                    continue;
-                }
-                ranks.get(empireID).setTotalShips(totalShips);
+                totals.put(res.getInt(1), new long[EmpireRankController.NUM_TOTALS]);
             }
         }
 
-        sql = "SELECT empire_id, COUNT(*) FROM buildings GROUP BY empire_id";
-        try (SqlStmt stmt = DB.prepare(sql)) {
+        sql = "SELECT empire_id, SUM(num_ships) FROM fleets WHERE empire_id IS NOT NULL GROUP BY empire_id";
+        try (SqlStmt stmt = t.prepare(sql)) {
             SqlResult res = stmt.select();
             while (res.next()) {
-                int empireID = res.getInt(1);
-                int totalBuildings = res.getInt(2);
-                if (!ranks.containsKey(empireID)) {
-                    continue;
+                long[] empireTotals = totals.get(res.getInt(1));
+                if (empireTotals != null) {
+                    empireTotals[EmpireRankController.TOTAL_SHIPS] = res.getLong(2);
                 }
-                ranks.get(empireID).setTotalBuildings(totalBuildings);
             }
         }
 
-        sql = "SELECT empire_id, COUNT(*), SUM(population) FROM colonies WHERE empire_id IS NOT NULL GROUP BY empire_id";
-        try (SqlStmt stmt = DB.prepare(sql)) {
+        sql = "SELECT empire_id, COUNT(*) FROM buildings GROUP BY empire_id";
+        try (SqlStmt stmt = t.prepare(sql)) {
             SqlResult res = stmt.select();
             while (res.next()) {
-                int empireID = res.getInt(1);
-                int totalColonies = res.getInt(2);
-                int totalPopulation = res.getInt(3);
-                if (!ranks.containsKey(empireID)) {
-                    continue;
+                long[] empireTotals = totals.get(res.getInt(1));
+                if (empireTotals != null) {
+                    empireTotals[EmpireRankController.TOTAL_BUILDINGS] = res.getLong(2);
                 }
-                ranks.get(empireID).setTotalColonies(totalColonies);
-                ranks.get(empireID).setTotalPopulation(totalPopulation);
             }
         }
 
-        sql = "SELECT empire_id, COUNT(*) FROM (" +
-               " SELECT empire_id, star_id" +
-               " FROM stars" +
-               " INNER JOIN colonies ON colonies.star_id = stars.id" +
-               " WHERE colonies.empire_id IS NOT NULL" +
-               " GROUP BY empire_id, star_id" +
-              ") AS stars" +
-             " GROUP BY empire_id";
-        try (SqlStmt stmt = DB.prepare(sql)) {
+        sql = "SELECT empire_id, COUNT(*), SUM(population), COUNT(DISTINCT star_id)" +
+             " FROM colonies WHERE empire_id IS NOT NULL GROUP BY empire_id";
+        try (SqlStmt stmt = t.prepare(sql)) {
             SqlResult res = stmt.select();
             while (res.next()) {
-                int empireID = res.getInt(1);
-                int totalStars = res.getInt(2);
-                if (!ranks.containsKey(empireID)) {
-                    continue;
+                long[] empireTotals = totals.get(res.getInt(1));
+                if (empireTotals != null) {
+                    empireTotals[EmpireRankController.TOTAL_COLONIES] = res.getLong(2);
+                    empireTotals[EmpireRankController.TOTAL_POPULATION] = res.getLong(3);
+                    empireTotals[EmpireRankController.TOTAL_STARS] = res.getLong(4);
                 }
-                ranks.get(empireID).setTotalStars(totalStars);
             }
         }
 
-        ArrayList<EmpireRank> sortedRanks = new ArrayList<EmpireRank>(ranks.values());
-        Collections.sort(sortedRanks, new Comparator<EmpireRank>() {
-            @Override
-            public int compare(EmpireRank left, EmpireRank right) {
-                int diff = right.getTotalPopulation() - left.getTotalPopulation();
-                if (diff != 0)
-                    return diff;
-
-                diff = right.getTotalColonies() - left.getTotalColonies();
-                if (diff != 0)
-                    return diff;
-
-                diff = right.getTotalStars() - left.getTotalStars();
-                if (diff != 0)
-                    return diff;
-
-                diff = right.getTotalShips() - left.getTotalShips();
-                return diff;
-            }
-        });
-
-        try (Transaction t = DB.beginTransaction()) {
-            sql = "DELETE FROM empire_ranks WHERE empire_id = ?";
-            try (SqlStmt stmt = t.prepare(sql)) {
-                for (EmpireRank rank : sortedRanks) {
-                    stmt.setInt(1, rank.getEmpireID());
-                    stmt.update();
-                }
-            }
-
-            sql = "INSERT INTO empire_ranks (empire_id, rank, total_stars, total_colonies," +
-                                           " total_buildings, total_ships, total_population)" +
-                 " VALUES (?, ?, ?, ?, ?, ?, ?);";
-            try (SqlStmt stmt = t.prepare(sql)) {
-                int rankValue = 1;
-                for (EmpireRank rank : sortedRanks) {
-                    stmt.setInt(1, rank.getEmpireID());
-                    stmt.setInt(2, rankValue);
-                    stmt.setInt(3, rank.getTotalStars());
-                    stmt.setInt(4, rank.getTotalColonies());
-                    stmt.setInt(5, rank.getTotalBuildings());
-                    stmt.setInt(6, rank.getTotalShips());
-                    stmt.setInt(7, rank.getTotalPopulation());
-                    stmt.update();
-
-                    rankValue ++;
-                }
-            }
-
-            t.commit();
-        }
+        return totals;
     }
 }
@@ -0,0 +1,138 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joda.time.DateMidnight;
+import org.joda.time.DateTimeZone;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.Transaction;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
+import au.com.codeka.warworlds.server.utils.HyperLogLog;
+
+/**
+ * Counts the number of distinct empires that log in each day, so that we can display daily, weekly
+ * and monthly active empires without having to COUNT(DISTINCT) over the whole of
+ * {@code empire_logins}.
+ *
+ * <p>Each day's logins are added to a {@link HyperLogLog} sketch, which is merged into that day's
+ * sketch in {@code active_empire_sketches} every {@link #FLUSH_INTERVAL_MS} milliseconds. The
+ * number of active empires over a range of days is then estimated from the union of the sketches
+ * for those days. Days are in UTC.
+ */
+public class ActiveEmpireCounters {
+    private static final Log log = new Log("ActiveEmpireCounters");
+    public static ActiveEmpireCounters i = new ActiveEmpireCounters();
+
+    /** How often we write the pending sketches to the database. */
+    private static final long FLUSH_INTERVAL_MS = 60 * 1000L;
+
+    private final Object lock = new Object();
+    private HashMap<DateMidnight, HyperLogLog> pendingSketches =
+            new HashMap<DateMidnight, HyperLogLog>();
+
+    private Thread thread;
+    private Runnable threadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                threadProc();
+            }
+        }
+    };
+
+    /** Called by the HelloHandler every time an empire logs in. */
+    public void onLogin(int empireID) {
+        DateMidnight today = DateMidnight.now(DateTimeZone.UTC);
+        synchronized (lock) {
+            getPendingSketch(pendingSketches, today).add(empireID);
+        }
+        ensureStarted();
+    }
+
+    /**
+     * Estimates the number of distinct empires that logged in during the given number of days, up
+     * to and including the given day. Logins that haven't been saved yet are included as well.
+     */
+    public long countActiveEmpires(DateMidnight date, int days) throws RequestException {
+        date = date.toLocalDate().toDateMidnight(DateTimeZone.UTC);
+        DateMidnight from = date.minusDays(days - 1);
+
+        HyperLogLog sketch = new HyperLogLog();
+        for (HyperLogLog daySketch
+                : new StatisticsController().getActiveEmpireSketches(from, date)) {
+            sketch.merge(daySketch);
+        }
+        synchronized (lock) {
+            for (Map.Entry<DateMidnight, HyperLogLog> entry : pendingSketches.entrySet()) {
+                if (!entry.getKey().isBefore(from) && !entry.getKey().isAfter(date)) {
+                    sketch.merge(entry.getValue());
+                }
+            }
+        }
+        return sketch.estimate();
+    }
+
+    /** Writes any pending logins to the database. */
+    public void flush() {
+        HashMap<DateMidnight, HyperLogLog> sketches;
+        synchronized (lock) {
+            if (pendingSketches.isEmpty()) {
+                return;
+            }
+            sketches = pendingSketches;
+            pendingSketches = new HashMap<DateMidnight, HyperLogLog>();
+        }
+
+        try (Transaction t = DB.beginTransaction()) {
+            new StatisticsController(t).mergeActiveEmpireSketches(sketches);
+            t.commit();
+        } catch (Exception e) {
+            log.error("Error saving active empire sketches, will try again.", e);
+
+            // put them back so they'll be saved next time
+            synchronized (lock) {
+                for (Map.Entry<DateMidnight, HyperLogLog> entry : sketches.entrySet()) {
+                    getPendingSketch(pendingSketches, entry.getKey()).merge(entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static HyperLogLog getPendingSketch(Map<DateMidnight, HyperLogLog> sketches,
+            DateMidnight date) {
+        HyperLogLog sketch = sketches.get(date);
+        if (sketch == null) {
+            sketch = new HyperLogLog();
+            sketches.put(date, sketch);
+        }
+        return sketch;
+    }
+
+    private synchronized void ensureStarted() {
+        if (thread == null || !thread.isAlive()) {
+            thread = new Thread(threadRunnable);
+            thread.setDaemon(true);
+            thread.setName("ActiveEmpireCounters");
+            thread.start();
+        }
+    }
+
+    private void threadProc() {
+        try {
+            Thread.sleep(FLUSH_INTERVAL_MS);
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        UnitOfWork unitOfWork = DB.beginUnitOfWork();
+        try {
+            flush();
+        } finally {
+            unitOfWork.close();
+        }
+    }
+}
@@ -294,6 +294,8 @@ public class AllianceController {
                 stmt.setInt(2, creatorEmpireID);
                 stmt.update();
             }
+            runAfterCommit(new NotificationController().allianceChangedNotifier(
+                    creatorEmpireID, alliance.getID()));
         }
 
         public int addRequest(AllianceRequest request) throws Exception {
@@ -348,6 +350,7 @@ public class AllianceController {
                 stmt.setInt(2, allianceID);
                 stmt.update();
             }
+            runAfterCommit(new NotificationController().allianceChangedNotifier(empireID, 0));
         }
 
         public List<AllianceRequest> getRequests(int allianceID, boolean includeWithdrawn,
@@ -137,6 +137,8 @@ public abstract class AllianceRequestProcessor {
                 stmt.setInt(3, mRequest.getRequestEmpireID());
                 stmt.update();
             }
+            ctrl.getDB().runAfterCommit(new NotificationController().allianceChangedNotifier(
+                    mRequest.getRequestEmpireID(), mRequest.getAllianceID()));
 
             // if you have open requests to join other alliances, withdraw those
             sql = "UPDATE alliance_requests SET state = ?" +
@@ -169,6 +171,8 @@ public abstract class AllianceRequestProcessor {
                 stmt.setInt(1, mRequest.getRequestEmpireID());
                 stmt.update();
             }
+            ctrl.getDB().runAfterCommit(new NotificationController().allianceChangedNotifier(
+                    mRequest.getRequestEmpireID(), 0));
 
             // TODO: send a notification
         }
@@ -188,6 +192,8 @@ public abstract class AllianceRequestProcessor {
                 stmt.setInt(1, mRequest.getTargetEmpireID());
                 stmt.update();
             }
+            ctrl.getDB().runAfterCommit(new NotificationController().allianceChangedNotifier(
+                    mRequest.getTargetEmpireID(), 0));
 
             // TODO: send a notification
         }
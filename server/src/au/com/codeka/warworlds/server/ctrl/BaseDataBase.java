@@ -24,6 +24,30 @@ public class BaseDataBase {
         return mTransaction;
     }
 
+    /**
+     * Runs the given {@link Runnable} once whatever we're doing has been committed, see
+     * {@link Transaction#runAfterCommit}.
+     */
+    public void runAfterCommit(Runnable runnable) {
+        if (mTransaction != null) {
+            mTransaction.runAfterCommit(runnable);
+        } else {
+            DB.runAfterCommit(runnable);
+        }
+    }
+
+    /**
+     * Runs the given {@link Runnable} if whatever we're doing is rolled back, see
+     * {@link Transaction#runAfterRollback}.
+     */
+    public void runAfterRollback(Runnable runnable) {
+        if (mTransaction != null) {
+            mTransaction.runAfterRollback(runnable);
+        } else {
+            DB.runAfterRollback(runnable);
+        }
+    }
+
     protected SqlStmt prepare(String sql) throws SQLException {
         if (mTransaction != null) {
             return mTransaction.prepare(sql);
@@ -35,6 +35,7 @@ public class BuildingController {
             Building building = new Building(star, colony, designID, notes);
             db.createBuilding(colony, building);
             colony.getBuildings().add(building);
+            db.runAfterCommit(RadarIndex.i.invalidator(colony.getEmpireID()));
 
             // TODO: hard-coded?
             if (building.getDesignID().equals("hq")) {
@@ -66,12 +67,22 @@ public class BuildingController {
 
         try {
             db.upgradeBuilding(existingBuilding);
+            db.runAfterCommit(RadarIndex.i.invalidator(colony.getEmpireID()));
             return existingBuilding;
         } catch(Exception e) {
             throw new RequestException(e);
         }
     }
 
+    /** Gets all of the given empire's buildings, wherever they are. */
+    public ArrayList<BuildingPosition> getBuildings(int empireID) throws RequestException {
+        try {
+            return db.getBuildings(empireID);
+        } catch(Exception e) {
+            throw new RequestException(e);
+        }
+    }
+
     public ArrayList<BuildingPosition> getBuildings(int empireID, long minSectorX, long minSectorY,
             long maxSectorX, long maxSectorY) throws RequestException {
         return getBuildings(empireID, minSectorX, minSectorY, maxSectorX, maxSectorY, null);
@@ -120,6 +131,25 @@ public class BuildingController {
             }
         }
 
+        public ArrayList<BuildingPosition> getBuildings(int empireID) throws Exception {
+            String sql = "SELECT buildings.*, sectors.x AS sector_x, sectors.y AS sector_y," +
+                               " stars.x AS offset_x, stars.y AS offset_y " +
+                        " FROM buildings" +
+                        " INNER JOIN  stars ON buildings.star_id = stars.id" +
+                        " INNER JOIN sectors ON stars.sector_id = sectors.id" +
+                        " WHERE buildings.empire_id = ?";
+            try (SqlStmt stmt = prepare(sql)) {
+                stmt.setInt(1, empireID);
+                SqlResult res = stmt.select();
+
+                ArrayList<BuildingPosition> buildings = new ArrayList<BuildingPosition>();
+                while (res.next()) {
+                    buildings.add(new BuildingPosition(res));
+                }
+                return buildings;
+            }
+        }
+
         public ArrayList<BuildingPosition> getBuildings(int empireID, long minSectorX, long minSectorY,
                 long maxSectorX, long maxSectorY, @Nullable String designID) throws Exception {
             String sql = "SELECT buildings.*, sectors.x AS sector_x, sectors.y AS sector_y," +
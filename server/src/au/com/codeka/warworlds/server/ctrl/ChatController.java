@@ -1,10 +1,19 @@
 package au.com.codeka.warworlds.server.ctrl;
 
 import java.sql.Statement;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.joda.time.DateTime;
 
@@ -23,6 +32,9 @@ import com.google.common.io.BaseEncoding;
 
 public class ChatController {
     private final Log log = new Log("ChatController");
+    private static MessageHistory sHistory = new MessageHistory();
+    private static ConcurrentHashMap<Integer, Set<Integer>> sEmpireConversations =
+            new ConcurrentHashMap<Integer, Set<Integer>>();
     private DataBase db;
 
     public ChatController() {
@@ -48,9 +60,60 @@ public class ChatController {
         }
     }
 
+    /**
+     * Gets the most recent messages visible to the given empire (newest first) from our in-memory
+     * history, without going to the database.
+     *
+     * @param conversationID If null, messages from all channels the empire can see. If zero,
+     *        only global chat, if negative, only alliance chat. Otherwise, only messages from the
+     *        given (private) conversation.
+     * @return The messages, or null if we don't have all of the messages posted since
+     *         {@code after} in memory, in which case you'll have to query the database.
+     */
+    public List<ChatMessage> getRecentMessages(int empireID, int allianceID, boolean isAdmin,
+            Integer conversationID, DateTime after, DateTime before, int max)
+            throws RequestException {
+        ArrayList<String> channels = new ArrayList<String>();
+        boolean allAlliances = false;
+        if (conversationID == null || conversationID == 0) {
+            channels.add(MessageHistory.GLOBAL_CHANNEL);
+        }
+        if (conversationID == null || conversationID < 0) {
+            if (isAdmin) {
+                // admin can see all alliance chat
+                allAlliances = true;
+            } else {
+                channels.add(MessageHistory.getAllianceChannel(allianceID));
+            }
+        }
+        if (!isAdmin && (conversationID == null || conversationID > 0)) {
+            for (int id : getConversationIDs(empireID)) {
+                if (conversationID == null || conversationID == id) {
+                    channels.add(MessageHistory.getConversationChannel(id));
+                }
+            }
+        }
+
+        return sHistory.getMessages(channels, allAlliances, after, before, max);
+    }
+
+    /** Gets the IDs of all the conversations the given empire is a participant in. */
+    private Set<Integer> getConversationIDs(int empireID) throws RequestException {
+        Set<Integer> conversationIDs = sEmpireConversations.get(empireID);
+        if (conversationIDs == null) {
+            conversationIDs = new HashSet<Integer>();
+            for (ChatConversation conversation : getConversationsForEmpire(empireID)) {
+                conversationIDs.add(conversation.getID());
+            }
+            sEmpireConversations.put(empireID, conversationIDs);
+        }
+        return conversationIDs;
+    }
+
     public void addParticipant(ChatConversation conversation, int empireID) throws RequestException {
         try {
             db.addParticipant(conversation.getID(), empireID);
+            sEmpireConversations.remove(empireID);
             conversation.addParticipant(empireID, false);
         } catch (Exception e) {
             throw new RequestException(e);
@@ -60,6 +123,7 @@ public class ChatController {
     public void removeParticipant(ChatConversation conversation, int empireID) throws RequestException {
         try {
             db.removeParticipant(conversation.getID(), empireID);
+            sEmpireConversations.remove(empireID);
             int index = -1;
             for (int i = 0; i < conversation.getParticipants().size(); i++) {
                 if (conversation.getParticipants().get(i).getEmpireID() == empireID) {
@@ -77,7 +141,10 @@ public class ChatController {
     public void postMessage(ChatMessage msg) throws RequestException {
         msg.setDatePosted(DateTime.now());
         String msg_native = msg.getMessage();
-        String msg_en = new TranslateController().translate(msg_native);
+        // if we don't already have a translation, the message is translated in the background
+        // (once it's been saved) so that we don't hold up the post.
+        TranslateController translateController = new TranslateController();
+        String msg_en = translateController.translateIfCached(msg_native);
         if (msg_en != null) {
             msg.setEnglishMessage(msg_en);
         }
@@ -87,6 +154,7 @@ public class ChatController {
         }
 
         int profanityLevel = ProfanityFilter.filter(msg_en == null ? msg_native : msg_en);
+        msg.setProfanityLevel(profanityLevel);
 
         String sql = "INSERT INTO chat_messages (empire_id, alliance_id, message, message_en,"
                       + " profanity_level, posted_date, conversation_id, action) VALUES"
@@ -127,6 +195,11 @@ public class ChatController {
             throw new RequestException(e);
         }
 
+        sHistory.addMessage(msg);
+        if (msg_en == null) {
+            translateController.queueTranslation(msg);
+        }
+
         // send notifications on a background thread, it can take a while...
         final ChatMessage chatmsg = msg;
         new BackgroundRunner() {
@@ -205,6 +278,8 @@ public class ChatController {
             try {
                 log.info(String.format("Creating new conversation between %1d and %2d", empireID1, empireID2));
                 conversation = db.createConversation(empireID1, empireID2);
+                sEmpireConversations.remove(empireID1);
+                sEmpireConversations.remove(empireID2);
             } catch (Exception e) {
                 throw new RequestException(e);
             }
@@ -212,6 +287,147 @@ public class ChatController {
         return conversation;
     }
 
+    /**
+     * An in-memory history of recent chat messages, so that clients polling for new messages
+     * don't have to hit the database. Each channel (global chat, each alliance's chat and each
+     * private conversation) has a ring buffer of the most recent {@link #MAX_MESSAGES_PER_CHANNEL}
+     * messages.
+     *
+     * <p>For each channel we remember the time that we have every message posted <i>after</i>.
+     * That starts off as the time the server started, and moves forward as old messages are
+     * pushed out of the buffer. Requests for messages older than that go to the database.
+     */
+    private static class MessageHistory {
+        public static final String GLOBAL_CHANNEL = "global";
+
+        private static final int MAX_MESSAGES_PER_CHANNEL = 500;
+        private static final int MAX_CHANNELS = 2000;
+
+        private final LinkedHashMap<String, Channel> channels =
+                new LinkedHashMap<String, Channel>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Channel> eldest) {
+                if (size() <= MAX_CHANNELS) {
+                    return false;
+                }
+                // we no longer have any of this channel's messages, so from now on we only know
+                // about channels without a buffer from the last message posted in this one.
+                Channel channel = eldest.getValue();
+                DateTime latest = channel.messages.isEmpty()
+                        ? channel.completeAfter : channel.messages.getLast().getDatePosted();
+                if (latest.isAfter(defaultCompleteAfter)) {
+                    defaultCompleteAfter = latest;
+                }
+                return true;
+            }
+        };
+
+        /** The time that channels we don't have a buffer for have every message posted after. */
+        private DateTime defaultCompleteAfter = DateTime.now();
+
+        public static String getAllianceChannel(int allianceID) {
+            return "alliance:" + allianceID;
+        }
+
+        public static String getConversationChannel(int conversationID) {
+            return "conversation:" + conversationID;
+        }
+
+        private static String getChannel(ChatMessage msg) {
+            if (msg.getConversationID() != null && msg.getConversationID() > 0) {
+                return getConversationChannel(msg.getConversationID());
+            } else if (msg.getEmpireKey() != null && msg.getAllianceKey() != null) {
+                return getAllianceChannel(Integer.parseInt(msg.getAllianceKey()));
+            } else {
+                return GLOBAL_CHANNEL;
+            }
+        }
+
+        public synchronized void addMessage(ChatMessage msg) {
+            String key = getChannel(msg);
+            Channel channel = channels.get(key);
+            if (channel == null) {
+                channel = new Channel(defaultCompleteAfter);
+                channels.put(key, channel);
+            }
+
+            channel.messages.addLast(msg);
+            if (channel.messages.size() > MAX_MESSAGES_PER_CHANNEL) {
+                channel.completeAfter = channel.messages.removeFirst().getDatePosted();
+            }
+        }
+
+        /**
+         * Gets the most recent {@code max} messages in the given channels, posted after
+         * {@code after} and no later than {@code before}, newest first. Returns null if we don't
+         * have all of the messages in that range.
+         */
+        public List<ChatMessage> getMessages(List<String> keys, boolean allAlliances,
+                DateTime after, DateTime before, int max) {
+            ArrayList<ChatMessage> msgs = new ArrayList<ChatMessage>();
+            synchronized (this) {
+                if (after.isBefore(defaultCompleteAfter)) {
+                    return null;
+                }
+
+                ArrayList<Channel> matching = new ArrayList<Channel>();
+                for (String key : keys) {
+                    Channel channel = channels.get(key);
+                    if (channel != null) {
+                        matching.add(channel);
+                    }
+                }
+                if (allAlliances) {
+                    for (Map.Entry<String, Channel> entry : channels.entrySet()) {
+                        if (entry.getKey().startsWith("alliance:")) {
+                            matching.add(entry.getValue());
+                        }
+                    }
+                }
+
+                for (Channel channel : matching) {
+                    if (after.isBefore(channel.completeAfter)) {
+                        return null;
+                    }
+                    Iterator<ChatMessage> it = channel.messages.descendingIterator();
+                    while (it.hasNext()) {
+                        ChatMessage msg = it.next();
+                        if (!msg.getDatePosted().isAfter(after)) {
+                            break;
+                        }
+                        if (!msg.getDatePosted().isAfter(before)) {
+                            msgs.add(msg);
+                        }
+                    }
+                }
+            }
+
+            Collections.sort(msgs, new Comparator<ChatMessage>() {
+                @Override
+                public int compare(ChatMessage lhs, ChatMessage rhs) {
+                    return rhs.getDatePosted().compareTo(lhs.getDatePosted());
+                }
+            });
+            if (msgs.size() > max) {
+                return new ArrayList<ChatMessage>(msgs.subList(0, max));
+            }
+            return msgs;
+        }
+
+        private static class Channel {
+            public final ArrayDeque<ChatMessage> messages = new ArrayDeque<ChatMessage>();
+
+            /** We have every message in this channel that was posted after this time. */
+            public DateTime completeAfter;
+
+            public Channel(DateTime completeAfter) {
+                this.completeAfter = completeAfter;
+            }
+        }
+    }
+
     private static class DataBase extends BaseDataBase {
         public DataBase() {
             super();
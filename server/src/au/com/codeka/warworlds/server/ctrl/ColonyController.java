@@ -103,6 +103,9 @@ public class ColonyController {
 
             try {
                 db.destroyColony(colony.getStarID(), colony.getID());
+                if (colony.getEmpireID() != null) {
+                    db.runAfterCommit(RadarIndex.i.invalidator(colony.getEmpireID()));
+                }
             } catch (Exception e) {
                 throw new RequestException(e);
             }
@@ -347,6 +347,8 @@ public class EmpireController {
         stmt.update();
       }
 
+      t.runAfterCommit(RadarIndex.i.invalidator(empireID));
+      t.runAfterCommit(new NotificationController().allianceChangedNotifier(empireID, 0));
       t.commit();
     } catch (Exception e) {
       throw new RequestException(e);
@@ -0,0 +1,155 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.data.Transaction;
+
+/**
+ * Saves empire rank totals, and works out the ranks from them. Totals are passed around as
+ * {@code long[]}s indexed by {@link #TOTAL_STARS}, {@link #TOTAL_COLONIES} and so on.
+ */
+public class EmpireRankController {
+    public static final int TOTAL_STARS = 0;
+    public static final int TOTAL_COLONIES = 1;
+    public static final int TOTAL_BUILDINGS = 2;
+    public static final int TOTAL_SHIPS = 3;
+    public static final int TOTAL_POPULATION = 4;
+    public static final int NUM_TOTALS = 5;
+
+    /** The maximum number of empires we'll save in a single statement. */
+    private static final int BATCH_SIZE = 500;
+
+    private DataBase db;
+
+    public EmpireRankController() {
+        db = new DataBase();
+    }
+    public EmpireRankController(Transaction trans) {
+        db = new DataBase(trans);
+    }
+
+    /**
+     * Adds the given amounts to each empire's totals. Empires that don't have a rank yet get one
+     * with the given totals, they'll be given an actual rank the next time we call
+     * {@link #updateRanks}.
+     */
+    public void addToTotals(Map<Integer, long[]> deltas) throws RequestException {
+        try {
+            db.saveTotals(deltas, true);
+        } catch (Exception e) {
+            throw new RequestException(e);
+        }
+    }
+
+    /** Replaces each empire's totals with the given values. */
+    public void setTotals(Map<Integer, long[]> totals) throws RequestException {
+        try {
+            db.saveTotals(totals, false);
+        } catch (Exception e) {
+            throw new RequestException(e);
+        }
+    }
+
+    /** Re-ranks all of the (non-banned) empires, based on their current totals. */
+    public void updateRanks() throws RequestException {
+        try {
+            db.updateRanks();
+        } catch (Exception e) {
+            throw new RequestException(e);
+        }
+    }
+
+    private static class DataBase extends BaseDataBase {
+        public DataBase() {
+            super();
+        }
+        public DataBase(Transaction trans) {
+            super(trans);
+        }
+
+        public void saveTotals(Map<Integer, long[]> totals, boolean incremental) throws Exception {
+            List<Map.Entry<Integer, long[]>> entries =
+                    new ArrayList<Map.Entry<Integer, long[]>>(totals.entrySet());
+            for (int start = 0; start < entries.size(); start += BATCH_SIZE) {
+                List<Map.Entry<Integer, long[]>> batch =
+                        entries.subList(start, Math.min(start + BATCH_SIZE, entries.size()));
+                String values = buildValues(batch.size());
+
+                String op = incremental
+                        ? "GREATEST(empire_ranks.%1$s + totals.%1$s, 0)" : "totals.%1$s";
+                String sql = "UPDATE empire_ranks SET" +
+                            " total_stars = " + String.format(op, "total_stars") + "," +
+                            " total_colonies = " + String.format(op, "total_colonies") + "," +
+                            " total_buildings = " + String.format(op, "total_buildings") + "," +
+                            " total_ships = " + String.format(op, "total_ships") + "," +
+                            " total_population = " + String.format(op, "total_population") +
+                            " FROM " + values +
+                            " WHERE empire_ranks.empire_id = totals.empire_id";
+                try (SqlStmt stmt = prepare(sql)) {
+                    setValues(stmt, batch);
+                    stmt.update();
+                }
+
+                sql = "INSERT INTO empire_ranks (empire_id, rank, total_stars, total_colonies," +
+                                               " total_buildings, total_ships, total_population)" +
+                     " SELECT empire_id, 0, GREATEST(total_stars, 0), GREATEST(total_colonies, 0)," +
+                            " GREATEST(total_buildings, 0), GREATEST(total_ships, 0)," +
+                            " GREATEST(total_population, 0)" +
+                     " FROM " + values +
+                     " WHERE NOT EXISTS (SELECT 1 FROM empire_ranks" +
+                                       " WHERE empire_ranks.empire_id = totals.empire_id)";
+                try (SqlStmt stmt = prepare(sql)) {
+                    setValues(stmt, batch);
+                    stmt.update();
+                }
+            }
+        }
+
+        public void updateRanks() throws Exception {
+            String sql = "UPDATE empire_ranks SET rank = ranked.rank" +
+                        " FROM (SELECT empire_id, ROW_NUMBER() OVER (ORDER BY" +
+                                   " total_population DESC, total_colonies DESC," +
+                                   " total_stars DESC, total_ships DESC) AS rank" +
+                              " FROM empire_ranks" +
+                              " INNER JOIN empires ON empires.id = empire_ranks.empire_id" +
+                              " WHERE empires.state <> 2) AS ranked" +
+                        " WHERE empire_ranks.empire_id = ranked.empire_id" +
+                          " AND empire_ranks.rank <> ranked.rank";
+            try (SqlStmt stmt = prepare(sql)) {
+                stmt.update();
+            }
+        }
+
+        private static String buildValues(int numRows) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("(VALUES ");
+            for (int i = 0; i < numRows; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append("(?::bigint, ?::bigint, ?::bigint, ?::bigint, ?::bigint, ?::bigint)");
+            }
+            sb.append(") AS totals(empire_id, total_stars, total_colonies, total_buildings," +
+                      " total_ships, total_population)");
+            return sb.toString();
+        }
+
+        private static void setValues(SqlStmt stmt, List<Map.Entry<Integer, long[]>> batch)
+                throws Exception {
+            int i = 1;
+            for (Map.Entry<Integer, long[]> entry : batch) {
+                long[] totals = entry.getValue();
+                stmt.setInt(i++, entry.getKey());
+                stmt.setLong(i++, totals[TOTAL_STARS]);
+                stmt.setLong(i++, totals[TOTAL_COLONIES]);
+                stmt.setLong(i++, totals[TOTAL_BUILDINGS]);
+                stmt.setLong(i++, totals[TOTAL_SHIPS]);
+                stmt.setLong(i++, totals[TOTAL_POPULATION]);
+            }
+        }
+    }
+}
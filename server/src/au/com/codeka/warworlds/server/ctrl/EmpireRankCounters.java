@@ -0,0 +1,390 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.common.model.BaseColony;
+import au.com.codeka.common.model.BaseFleet;
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.data.Transaction;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
+import au.com.codeka.warworlds.server.model.Colony;
+import au.com.codeka.warworlds.server.model.Fleet;
+import au.com.codeka.warworlds.server.model.Star;
+
+/**
+ * Keeps each empire's rank totals (stars, colonies, buildings, ships and population) up to date as
+ * stars are saved, so that we don't have to aggregate the whole universe to work out the ranks.
+ *
+ * <p>We remember what each star contributed to each empire's totals the last time it was loaded or
+ * saved. When it's saved again, the difference is added to a set of pending changes, which are
+ * written to {@code empire_ranks} every {@link #FLUSH_INTERVAL_MS} milliseconds. The
+ * "update-ranks" cron job then just has to sort the totals. Anything that changes the database
+ * without saving the star is picked up the next time the cron job is run with "rebuild".
+ *
+ * <p>A star's contribution only changes once it's save has been committed. While a save is in
+ * progress, we don't take the star's contribution from anybody who loads it (they might see the
+ * saved version, and then the save would look like it didn't change anything), and a rebuild
+ * waits until there are no saves in progress, so that every change is either in the rebuilt
+ * totals or in the pending changes, but not both.
+ */
+public class EmpireRankCounters {
+    private static final Log log = new Log("EmpireRankCounters");
+    public static EmpireRankCounters i = new EmpireRankCounters();
+
+    /** How often we write the pending changes to the database. */
+    private static final long FLUSH_INTERVAL_MS = 30 * 1000L;
+
+    /** How long a rebuild will wait for the saves in progress to finish before giving up. */
+    private static final long REBUILD_WAIT_MS = 10 * 1000L;
+
+    /**
+     * What each star contributed to each empire's totals when we last saw it. Stars that don't
+     * contribute anything aren't stored, so a missing star is the same as an empty one.
+     */
+    private final ConcurrentHashMap<Integer, Map<Integer, long[]>> starTotals =
+            new ConcurrentHashMap<Integer, Map<Integer, long[]>>();
+
+    private final Object lock = new Object();
+    private HashMap<Integer, long[]> pendingDeltas = new HashMap<Integer, long[]>();
+
+    /** The number of saves in progress for each star. Guarded by {@link #lock}. */
+    private final HashMap<Integer, Integer> savingStars = new HashMap<Integer, Integer>();
+    private int numSaving;
+
+    /** Set while a rebuild is waiting for the saves in progress to finish. */
+    private boolean rebuildWaiting;
+
+    /** The number of saves in progress on each thread. */
+    private final ThreadLocal<int[]> threadNumSaving = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /** Held while we're writing pending changes, and for the whole of a rebuild. */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    private Thread thread;
+    private Runnable threadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                threadProc();
+            }
+        }
+    };
+
+    /** Called when stars are loaded from the database, so we know what they contribute now. */
+    public void onStarsLoaded(List<Star> stars) {
+        for (Star star : stars) {
+            Map<Integer, long[]> totals = getStarTotals(star);
+            if (totals.isEmpty()) {
+                continue;
+            }
+            synchronized (lock) {
+                if (!savingStars.containsKey(star.getID())) {
+                    starTotals.putIfAbsent(star.getID(), totals);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called before a star is saved. The returned {@link StarSave} must be told whether the save
+     * was committed or rolled back (on this thread).
+     */
+    public StarSave onStarSaving(Star star) {
+        int[] numSavingOnThread = threadNumSaving.get();
+        synchronized (lock) {
+            // a rebuild is waiting for the saves in progress to finish, so don't start another one
+            // (unless this thread already has one, which we'd never finish if we waited).
+            while (rebuildWaiting && numSavingOnThread[0] == 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+
+            Integer numStarSaving = savingStars.get(star.getID());
+            savingStars.put(star.getID(), numStarSaving == null ? 1 : numStarSaving + 1);
+            numSaving++;
+        }
+        numSavingOnThread[0]++;
+        return new StarSave(star, numSavingOnThread);
+    }
+
+    /**
+     * Called when the transaction that saved a star is committed, adds whatever's changed since
+     * we last saw it.
+     */
+    private void onStarSaved(Star star) {
+        Map<Integer, long[]> newTotals = getStarTotals(star);
+        Map<Integer, long[]> oldTotals;
+        if (newTotals.isEmpty()) {
+            oldTotals = starTotals.remove(star.getID());
+        } else {
+            oldTotals = starTotals.put(star.getID(), newTotals);
+        }
+        if (oldTotals == null) {
+            oldTotals = Collections.emptyMap();
+        }
+
+        Set<Integer> empireIDs = new HashSet<Integer>(newTotals.keySet());
+        empireIDs.addAll(oldTotals.keySet());
+        boolean changed = false;
+        synchronized (lock) {
+            for (Integer empireID : empireIDs) {
+                long[] newEmpireTotals = newTotals.get(empireID);
+                long[] oldEmpireTotals = oldTotals.get(empireID);
+                for (int i = 0; i < EmpireRankController.NUM_TOTALS; i++) {
+                    long delta = (newEmpireTotals == null ? 0 : newEmpireTotals[i])
+                            - (oldEmpireTotals == null ? 0 : oldEmpireTotals[i]);
+                    if (delta != 0) {
+                        getPendingDeltas(empireID)[i] += delta;
+                        changed = true;
+                    }
+                }
+            }
+        }
+        if (changed) {
+            ensureStarted();
+        }
+    }
+
+    private void onStarSaveFinished(Star star) {
+        synchronized (lock) {
+            Integer numStarSaving = savingStars.get(star.getID());
+            if (numStarSaving == null || numStarSaving <= 1) {
+                savingStars.remove(star.getID());
+            } else {
+                savingStars.put(star.getID(), numStarSaving - 1);
+            }
+            numSaving--;
+            if (numSaving == 0) {
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts rebuilding the totals in the given (outermost) transaction. We wait for the saves
+     * in progress to finish, then take the transaction's snapshot and throw away the pending
+     * changes, since the totals calculated from the snapshot will include them. Until
+     * {@link #endRebuild} is called, nothing is written to the database, so it doesn't conflict
+     * with the rebuilt totals.
+     */
+    public void beginRebuild(Transaction t) throws RequestException {
+        flushLock.lock();
+        boolean started = false;
+        try {
+            synchronized (lock) {
+                rebuildWaiting = true;
+                try {
+                    long endTime = System.currentTimeMillis() + REBUILD_WAIT_MS;
+                    while (numSaving > 0) {
+                        long waitMs = endTime - System.currentTimeMillis();
+                        if (waitMs <= 0) {
+                            throw new RequestException(500,
+                                    "Timed out waiting for " + numSaving + " star saves.");
+                        }
+                        lock.wait(waitMs);
+                    }
+
+                    // the snapshot is taken by the first statement after SET TRANSACTION
+                    try (SqlStmt stmt = t.prepare(
+                            "SET TRANSACTION ISOLATION LEVEL REPEATABLE READ")) {
+                        stmt.update();
+                    }
+                    try (SqlStmt stmt = t.prepare("SELECT 1")) {
+                        stmt.select();
+                    }
+                    pendingDeltas = new HashMap<Integer, long[]>();
+                } finally {
+                    rebuildWaiting = false;
+                    lock.notifyAll();
+                }
+            }
+            started = true;
+        } catch (RequestException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RequestException(e);
+        } finally {
+            if (!started) {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    /** Called once the transaction passed to {@link #beginRebuild} has been committed (or not). */
+    public void endRebuild() {
+        flushLock.unlock();
+    }
+
+    private long[] getPendingDeltas(int empireID) {
+        long[] deltas = pendingDeltas.get(empireID);
+        if (deltas == null) {
+            deltas = new long[EmpireRankController.NUM_TOTALS];
+            pendingDeltas.put(empireID, deltas);
+        }
+        return deltas;
+    }
+
+    /** Works out what the given star contributes to each empire's totals. */
+    private static Map<Integer, long[]> getStarTotals(Star star) {
+        HashMap<Integer, long[]> totals = new HashMap<Integer, long[]>();
+        HashMap<Integer, double[]> fractions = new HashMap<Integer, double[]>();
+        if (star.getColonies() != null) {
+            for (BaseColony baseColony : star.getColonies()) {
+                Integer empireID = ((Colony) baseColony).getEmpireID();
+                if (empireID == null) {
+                    continue;
+                }
+                long[] empireTotals = getTotals(totals, empireID);
+                empireTotals[EmpireRankController.TOTAL_STARS] = 1;
+                empireTotals[EmpireRankController.TOTAL_COLONIES] ++;
+                if (baseColony.getBuildings() != null) {
+                    empireTotals[EmpireRankController.TOTAL_BUILDINGS] +=
+                            baseColony.getBuildings().size();
+                }
+                getFractions(fractions, empireID)[0] += baseColony.getPopulation();
+            }
+        }
+        if (star.getFleets() != null) {
+            for (BaseFleet baseFleet : star.getFleets()) {
+                Integer empireID = ((Fleet) baseFleet).getEmpireID();
+                if (empireID == null) {
+                    continue;
+                }
+                getTotals(totals, empireID);
+                getFractions(fractions, empireID)[1] += baseFleet.getNumShips();
+            }
+        }
+        for (Map.Entry<Integer, double[]> entry : fractions.entrySet()) {
+            long[] empireTotals = totals.get(entry.getKey());
+            empireTotals[EmpireRankController.TOTAL_POPULATION] = (long) entry.getValue()[0];
+            empireTotals[EmpireRankController.TOTAL_SHIPS] = (long) entry.getValue()[1];
+        }
+        return totals;
+    }
+
+    private static long[] getTotals(Map<Integer, long[]> totals, int empireID) {
+        long[] empireTotals = totals.get(empireID);
+        if (empireTotals == null) {
+            empireTotals = new long[EmpireRankController.NUM_TOTALS];
+            totals.put(empireID, empireTotals);
+        }
+        return empireTotals;
+    }
+
+    private static double[] getFractions(Map<Integer, double[]> fractions, int empireID) {
+        double[] empireFractions = fractions.get(empireID);
+        if (empireFractions == null) {
+            empireFractions = new double[2];
+            fractions.put(empireID, empireFractions);
+        }
+        return empireFractions;
+    }
+
+    private synchronized void ensureStarted() {
+        if (thread == null || !thread.isAlive()) {
+            thread = new Thread(threadRunnable);
+            thread.setDaemon(true);
+            thread.setName("EmpireRankCounters");
+            thread.start();
+        }
+    }
+
+    private void threadProc() {
+        try {
+            Thread.sleep(FLUSH_INTERVAL_MS);
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        flushLock.lock();
+        try {
+            flush();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** Writes the pending changes to the database. Must be called with {@link #flushLock} held. */
+    private void flush() {
+        HashMap<Integer, long[]> deltas;
+        synchronized (lock) {
+            if (pendingDeltas.isEmpty()) {
+                return;
+            }
+            deltas = pendingDeltas;
+            pendingDeltas = new HashMap<Integer, long[]>();
+        }
+
+        UnitOfWork unitOfWork = DB.beginUnitOfWork();
+        try (Transaction t = DB.beginTransaction()) {
+            new EmpireRankController(t).addToTotals(deltas);
+            t.commit();
+        } catch (Exception e) {
+            log.error("Error saving rank totals for %d empires, will try again.", deltas.size(), e);
+
+            // put them back so they'll be saved next time
+            synchronized (lock) {
+                for (Map.Entry<Integer, long[]> entry : deltas.entrySet()) {
+                    long[] empireDeltas = getPendingDeltas(entry.getKey());
+                    for (int i = 0; i < EmpireRankController.NUM_TOTALS; i++) {
+                        empireDeltas[i] += entry.getValue()[i];
+                    }
+                }
+            }
+        } finally {
+            unitOfWork.close();
+        }
+    }
+
+    /** A save of a star that's in progress, see {@link #onStarSaving}. */
+    public class StarSave {
+        private final Star star;
+        private final int[] numSavingOnThread;
+        private boolean finished;
+
+        private StarSave(Star star, int[] numSavingOnThread) {
+            this.star = star;
+            this.numSavingOnThread = numSavingOnThread;
+        }
+
+        /** Called after the save has been committed. */
+        public void onCommitted() {
+            if (!finished) {
+                onStarSaved(star);
+                finish();
+            }
+        }
+
+        /** Called if the save is rolled back (or fails before it gets to the database). */
+        public void onRolledBack() {
+            if (!finished) {
+                finish();
+            }
+        }
+
+        private void finish() {
+            finished = true;
+            numSavingOnThread[0]--;
+            onStarSaveFinished(star);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.codeka.common.Log;
+
+/**
+ * A {@link PushSender} that doesn't actually send anything, it just logs the messages and
+ * pretends they were all delivered. Useful for testing and benchmarking without spamming real
+ * devices (or GCM).
+ */
+public class FakePushSender implements PushSender {
+  private static final Log log = new Log("FakePushSender");
+
+  private final AtomicLong nextMessageId = new AtomicLong(1);
+  private final AtomicLong numMessages = new AtomicLong();
+  private final AtomicLong numDevices = new AtomicLong();
+
+  @Override
+  public List<Result> send(Map<String, String> data, List<String> registrationIds) {
+    numMessages.incrementAndGet();
+    numDevices.addAndGet(registrationIds.size());
+    log.debug("Fake push to %d devices: %s", registrationIds.size(), data.keySet());
+
+    List<Result> results = new ArrayList<Result>();
+    for (int i = 0; i < registrationIds.size(); i++) {
+      results.add(new Result("fake:" + nextMessageId.getAndIncrement(), null, null));
+    }
+    return results;
+  }
+
+  /** Gets the number of times {@link #send} has been called. */
+  public long getNumMessages() {
+    return numMessages.get();
+  }
+
+  /** Gets the total number of devices we've "sent" to. */
+  public long getNumDevices() {
+    return numDevices.get();
+  }
+}
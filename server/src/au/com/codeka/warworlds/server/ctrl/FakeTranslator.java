@@ -0,0 +1,27 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.codeka.common.Log;
+
+/**
+ * A {@link Translator} that doesn't talk to anything, it just tags the string as "translated".
+ * Useful for testing offline, or without paying for the translate API.
+ */
+public class FakeTranslator implements Translator {
+    private static final Log log = new Log("FakeTranslator");
+
+    private final AtomicLong numTranslations = new AtomicLong();
+
+    @Override
+    public String translate(String source) {
+        numTranslations.incrementAndGet();
+        log.debug("Fake translation of: %s", source);
+        return "[en] " + source;
+    }
+
+    /** Gets the number of times {@link #translate} has been called. */
+    public long getNumTranslations() {
+        return numTranslations.get();
+    }
+}
@@ -1,6 +1,10 @@
 package au.com.codeka.warworlds.server.ctrl;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.warworlds.server.data.DB;
@@ -9,57 +13,224 @@ import au.com.codeka.warworlds.server.data.SqlStmt;
 
 /** Profanity filter looks at a string and returns an integer describing the "profanity level"
  * of that string, 0 = not at all profane, 1 = somewhat profane, 2 = strong profanity.
+ *
+ * <p>The list of profane words is compiled into a single {@link Matcher} (an Aho-Corasick
+ * automaton) so that we can find all of them with one pass over the string, no matter how many
+ * words there are. The matcher is never modified once it's built, when the list changes we just
+ * build a new one and swap it in.
  */
 public class ProfanityFilter {
     private static final Log log = new Log("ProfanityFilter");
-    private static HashMap<String, Integer> sProfaneWords = new HashMap<String, Integer>();
+    private static volatile Matcher sMatcher;
 
     /**
      * Reset the filter and cause it to be reloaded from the database. This is useful when we
      * update the list in the backend.
      */
     public static void resetFilter() {
-        sProfaneWords.clear();
+        Matcher matcher = loadMatcher();
+        if (matcher != null) {
+            sMatcher = matcher;
+        }
     }
 
     public static int filter(String words) {
-        ensureFilter();
-
-        int level = 0;
-        for (String word : words.split("\\s+")) {
-            word = word.replaceAll("^\\W*(.*)\\W*$", "$1");
-            word = word.toLowerCase();
-
-            Integer wordLevel = sProfaneWords.get(word);
-            if (wordLevel != null) {
-                level += (int) wordLevel;
-            }
+        Matcher matcher = ensureFilter();
+        if (matcher == null) {
+            return 0;
         }
 
+        int level = matcher.match(words);
         if (level > 2) {
             level = 2;
         }
         return level;
     }
 
-    private static void ensureFilter() {
-        if (!sProfaneWords.isEmpty()) {
-            return;
+    private static Matcher ensureFilter() {
+        Matcher matcher = sMatcher;
+        if (matcher == null) {
+            matcher = loadMatcher();
+            if (matcher != null) {
+                sMatcher = matcher;
+            }
         }
+        return matcher;
+    }
 
+    /** Loads the profane words from the database and builds a {@link Matcher} from them. */
+    private static Matcher loadMatcher() {
+        HashMap<String, Integer> profaneWords = new HashMap<String, Integer>();
         String sql = "SELECT * FROM chat_profane_words";
         try (SqlStmt stmt = DB.prepare(sql)) {
             SqlResult res = stmt.select();
             while (res.next()) {
                 int profanityLevel = res.getInt("profanity_level");
                 String words = res.getString("words");
+                if (words == null) {
+                    continue;
+                }
 
                 for (String word : words.split("\\s+")) {
-                    sProfaneWords.put(word.trim().toLowerCase(), profanityLevel);
+                    word = word.trim();
+                    if (!word.isEmpty()) {
+                        profaneWords.put(word, profanityLevel);
+                    }
                 }
             }
         } catch(Exception e) {
             log.error("Error fetching profane words list.", e);
+            return null;
+        }
+
+        return new Matcher(profaneWords);
+    }
+
+    /**
+     * An Aho-Corasick automaton that finds all of the profane words in a string. Matching is case
+     * insensitive, and only whole words match (so "class" doesn't match "ass").
+     */
+    private static class Matcher {
+        /** For each state, the characters it has transitions on (sorted) and where they go. */
+        private final char[][] transitionChars;
+        private final int[][] transitionStates;
+
+        /** For each state, the state for the longest proper suffix that's also in the trie. */
+        private final int[] failure;
+
+        /** The length and profanity level of the word ending at each state (or 0 if none). */
+        private final int[] wordLength;
+        private final int[] wordLevel;
+
+        /** For each state, the next state along the failure chain that ends a word (or -1). */
+        private final int[] output;
+
+        public Matcher(Map<String, Integer> words) {
+            // first, build the trie.
+            ArrayList<TreeMap<Character, Integer>> trie =
+                    new ArrayList<TreeMap<Character, Integer>>();
+            ArrayList<Integer> lengths = new ArrayList<Integer>();
+            ArrayList<Integer> levels = new ArrayList<Integer>();
+            trie.add(new TreeMap<Character, Integer>());
+            lengths.add(0);
+            levels.add(0);
+            for (Map.Entry<String, Integer> entry : words.entrySet()) {
+                String word = entry.getKey();
+                int state = 0;
+                for (int i = 0; i < word.length(); i++) {
+                    char ch = Character.toLowerCase(word.charAt(i));
+                    Integer next = trie.get(state).get(ch);
+                    if (next == null) {
+                        next = trie.size();
+                        trie.add(new TreeMap<Character, Integer>());
+                        lengths.add(0);
+                        levels.add(0);
+                        trie.get(state).put(ch, next);
+                    }
+                    state = next;
+                }
+                lengths.set(state, word.length());
+                levels.set(state, entry.getValue());
+            }
+
+            int numStates = trie.size();
+            transitionChars = new char[numStates][];
+            transitionStates = new int[numStates][];
+            failure = new int[numStates];
+            wordLength = new int[numStates];
+            wordLevel = new int[numStates];
+            output = new int[numStates];
+            for (int state = 0; state < numStates; state++) {
+                TreeMap<Character, Integer> transitions = trie.get(state);
+                transitionChars[state] = new char[transitions.size()];
+                transitionStates[state] = new int[transitions.size()];
+                int i = 0;
+                for (Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+                    transitionChars[state][i] = transition.getKey();
+                    transitionStates[state][i] = transition.getValue();
+                    i++;
+                }
+                wordLength[state] = lengths.get(state);
+                wordLevel[state] = levels.get(state);
+            }
+
+            // now work out the failure and output links, breadth-first so that shorter
+            // suffixes are always done before we need them.
+            ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+            output[0] = -1;
+            for (int child : transitionStates[0]) {
+                failure[child] = 0;
+                output[child] = -1;
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.remove();
+                for (int i = 0; i < transitionChars[state].length; i++) {
+                    char ch = transitionChars[state][i];
+                    int child = transitionStates[state][i];
+
+                    int fail = failure[state];
+                    while (fail != 0 && getTransition(fail, ch) < 0) {
+                        fail = failure[fail];
+                    }
+                    int next = getTransition(fail, ch);
+                    failure[child] = next < 0 ? 0 : next;
+                    output[child] = wordLength[failure[child]] > 0
+                            ? failure[child] : output[failure[child]];
+                    queue.add(child);
+                }
+            }
+        }
+
+        /** Returns the total profanity level of all the whole words in the given string. */
+        public int match(String str) {
+            int level = 0;
+            int state = 0;
+            for (int i = 0; i < str.length(); i++) {
+                char ch = Character.toLowerCase(str.charAt(i));
+                int next = getTransition(state, ch);
+                while (next < 0 && state != 0) {
+                    state = failure[state];
+                    next = getTransition(state, ch);
+                }
+                state = next < 0 ? 0 : next;
+
+                int matchState = wordLength[state] > 0 ? state : output[state];
+                while (matchState > 0) {
+                    int start = i - wordLength[matchState] + 1;
+                    if (isWordBoundary(str, start - 1) && isWordBoundary(str, i + 1)) {
+                        level += wordLevel[matchState];
+                    }
+                    matchState = output[matchState];
+                }
+            }
+            return level;
+        }
+
+        private int getTransition(int state, char ch) {
+            char[] chars = transitionChars[state];
+            int low = 0;
+            int high = chars.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (chars[mid] < ch) {
+                    low = mid + 1;
+                } else if (chars[mid] > ch) {
+                    high = mid - 1;
+                } else {
+                    return transitionStates[state][mid];
+                }
+            }
+            return -1;
+        }
+
+        /** Returns true if the character at the given index isn't part of a word. */
+        private static boolean isWordBoundary(String str, int index) {
+            if (index < 0 || index >= str.length()) {
+                return true;
+            }
+            char ch = str.charAt(index);
+            return !Character.isLetterOrDigit(ch) && ch != '_';
         }
     }
 }
@@ -0,0 +1,302 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import com.google.android.gcm.server.Constants;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.warworlds.server.Configuration;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
+
+/**
+ * Sends push notifications to devices on a background thread, so that whoever generated the
+ * notification (a star simulation, a chat message, etc) doesn't have to wait for it.
+ *
+ * <p>Notifications are queued up for a short time before they're sent. Any identical
+ * notifications for the same device in that time are only sent once, and all of the devices
+ * that are getting the same notification are sent a single multicast message (of up to
+ * {@link PushSender#MAX_REGISTRATION_IDS} devices at a time).
+ *
+ * <p>If the push service is unavailable, we back off exponentially and try again. Retries wait in
+ * {@link #retries} until they're due, so that one device's backoff doesn't hold up everything
+ * else that's queued.
+ */
+public class PushQueue {
+  private static final Log log = new Log("PushQueue");
+  public static PushQueue i = new PushQueue();
+
+  /** How long we wait after the first notification is queued before we send the batch. */
+  private static final long BATCH_DELAY_MS = 250;
+
+  /** If we've got more than this many devices queued up, new notifications are dropped. */
+  private static final int MAX_PENDING_DEVICES = 50000;
+
+  /** The maximum number of times we'll try to send a message before giving up. */
+  private static final int MAX_ATTEMPTS = 5;
+  private static final long INITIAL_BACKOFF_MS = 1000;
+  private static final long MAX_BACKOFF_MS = 60000;
+
+  private final Object lock = new Object();
+
+  /** The pending notifications, each one maps the device registration IDs to the user's email. */
+  private LinkedHashMap<Map<String, String>, Map<String, String>> pending =
+      new LinkedHashMap<Map<String, String>, Map<String, String>>();
+  private int numPendingDevices;
+  private long batchDueTimeMs;
+
+  /** Messages that failed to send, waiting until they're due to be tried again. */
+  private final DelayQueue<Retry> retries = new DelayQueue<Retry>();
+
+  private PushSender sender;
+  private Thread thread;
+  private Runnable threadRunnable = new Runnable() {
+    @Override
+    public void run() {
+      while (true) {
+        threadProc();
+      }
+    }
+  };
+
+  /** Overrides the {@link PushSender} we use, for example with a {@link FakePushSender}. */
+  public synchronized void setSender(PushSender sender) {
+    this.sender = sender;
+  }
+
+  private synchronized PushSender getSender() {
+    if (sender == null) {
+      if (Configuration.i.getPushSender().equals("fake")) {
+        sender = new FakePushSender();
+      } else {
+        sender = new GcmPushSender();
+      }
+    }
+    return sender;
+  }
+
+  /**
+   * Queues a notification with the given data to be sent to the given devices.
+   *
+   * @param devices A mapping of GCM registration ID to the email address of the device's owner.
+   */
+  public void enqueue(Map<String, String> data, Map<String, String> devices) {
+    if (devices.isEmpty()) {
+      return;
+    }
+
+    synchronized (lock) {
+      if (numPendingDevices + devices.size() > MAX_PENDING_DEVICES) {
+        log.warning("Too many pending push notifications, dropping notification for %d devices.",
+            devices.size());
+        return;
+      }
+
+      if (pending.isEmpty()) {
+        // give anything else that's about to be sent a chance to join the batch
+        batchDueTimeMs = System.currentTimeMillis() + BATCH_DELAY_MS;
+      }
+      Map<String, String> payload = new TreeMap<String, String>(data);
+      Map<String, String> payloadDevices = pending.get(payload);
+      if (payloadDevices == null) {
+        payloadDevices = new LinkedHashMap<String, String>();
+        pending.put(payload, payloadDevices);
+      }
+      for (Map.Entry<String, String> device : devices.entrySet()) {
+        if (payloadDevices.put(device.getKey(), device.getValue()) == null) {
+          numPendingDevices++;
+        }
+      }
+      lock.notifyAll();
+    }
+    ensureStarted();
+  }
+
+  private synchronized void ensureStarted() {
+    if (thread == null || !thread.isAlive()) {
+      thread = new Thread(threadRunnable);
+      thread.setDaemon(true);
+      thread.setName("PushQueue");
+      thread.start();
+    }
+  }
+
+  private void threadProc() {
+    LinkedHashMap<Map<String, String>, Map<String, String>> batch = null;
+    List<Retry> dueRetries = new ArrayList<Retry>();
+    try {
+      synchronized (lock) {
+        while (true) {
+          retries.drainTo(dueRetries);
+
+          // zero means wait until something is enqueued
+          long waitMs = 0;
+          if (!pending.isEmpty()) {
+            waitMs = batchDueTimeMs - System.currentTimeMillis();
+            if (waitMs <= 0) {
+              batch = pending;
+              pending = new LinkedHashMap<Map<String, String>, Map<String, String>>();
+              numPendingDevices = 0;
+            }
+          }
+          if (batch != null || !dueRetries.isEmpty()) {
+            break;
+          }
+
+          Retry nextRetry = retries.peek();
+          if (nextRetry != null) {
+            long retryWaitMs = Math.max(1, nextRetry.getDelay(TimeUnit.MILLISECONDS));
+            waitMs = (waitMs == 0 ? retryWaitMs : Math.min(waitMs, retryWaitMs));
+          }
+          lock.wait(waitMs);
+        }
+      }
+    } catch (InterruptedException e) {
+      return;
+    }
+
+    UnitOfWork unitOfWork = DB.beginUnitOfWork();
+    try {
+      for (Retry retry : dueRetries) {
+        send(retry.data, retry.registrationIds, retry.emails, retry.attempt);
+      }
+      if (batch != null) {
+        for (Map.Entry<Map<String, String>, Map<String, String>> entry : batch.entrySet()) {
+          List<String> registrationIds = new ArrayList<String>(entry.getValue().keySet());
+          for (int start = 0; start < registrationIds.size();
+              start += PushSender.MAX_REGISTRATION_IDS) {
+            int end = Math.min(start + PushSender.MAX_REGISTRATION_IDS, registrationIds.size());
+            send(entry.getKey(), registrationIds.subList(start, end), entry.getValue(), 1);
+          }
+        }
+      }
+    } catch (Exception e) {
+      log.error("Error sending push notifications.", e);
+    } finally {
+      unitOfWork.close();
+    }
+  }
+
+  /**
+   * Sends the given data to the given devices. If the push service is unavailable (or some of
+   * the devices are temporarily unavailable) we schedule a retry with exponential backoff.
+   */
+  private void send(Map<String, String> data, List<String> registrationIds,
+      Map<String, String> emails, int attempt) {
+    List<PushSender.Result> results;
+    try {
+      results = getSender().send(data, registrationIds);
+    } catch (IOException e) {
+      log.warning("Error sending notification to %d devices (attempt %d).",
+          registrationIds.size(), attempt, e);
+      scheduleRetry(data, registrationIds, emails, attempt);
+      return;
+    }
+
+    List<String> retryRegistrationIds = new ArrayList<String>();
+    for (int i = 0; i < results.size(); i++) {
+      PushSender.Result result = results.get(i);
+      String registrationId = registrationIds.get(i);
+      String email = emails.get(registrationId);
+
+      if (result.getMessageId() != null) {
+        if (result.getCanonicalRegistrationId() != null) {
+          handleCanonicalRegistrationId(registrationId, email, result);
+        } else {
+          log.info("Notification successfully sent: %s user=%s registration=%s",
+              Configuration.i.getRealmName(), email, registrationId);
+        }
+      } else if (Constants.ERROR_UNAVAILABLE.equals(result.getErrorCode())
+          || Constants.ERROR_INTERNAL_SERVER_ERROR.equals(result.getErrorCode())) {
+        retryRegistrationIds.add(registrationId);
+      } else if (Constants.ERROR_NOT_REGISTERED.equals(result.getErrorCode())) {
+        handleNotRegisteredError(registrationId, email);
+      } else {
+        log.warning("Could not send notification: %s: user=%s registration=%s",
+            result.getErrorCode(), email, registrationId);
+      }
+    }
+    if (!retryRegistrationIds.isEmpty()) {
+      scheduleRetry(data, retryRegistrationIds, emails, attempt);
+    }
+  }
+
+  /** Queues the given devices to be tried again after the given (failed) attempt. */
+  private void scheduleRetry(Map<String, String> data, List<String> registrationIds,
+      Map<String, String> emails, int attempt) {
+    if (attempt >= MAX_ATTEMPTS) {
+      log.warning("Gave up sending notification to %d devices.", registrationIds.size());
+      return;
+    }
+
+    long backoffMs = Math.min(INITIAL_BACKOFF_MS << (attempt - 1), MAX_BACKOFF_MS);
+    retries.add(new Retry(data, new ArrayList<String>(registrationIds), emails, attempt + 1,
+        System.currentTimeMillis() + backoffMs));
+  }
+
+  private void handleNotRegisteredError(String registrationId, String userEmail) {
+    log.warning("Could not send notification: DeviceNotRegistered: user=%s registration=%s",
+        userEmail, registrationId);
+    String sql = "UPDATE devices SET gcm_registration_id = NULL WHERE gcm_registration_id = ?";
+    try (SqlStmt stmt = DB.prepare(sql)) {
+      stmt.setString(1, registrationId);
+      stmt.update();
+    } catch (Exception e) {
+      log.error("Error clearing registration ID.", e);
+    }
+    new NotificationController().onDevicesUpdated(userEmail);
+  }
+
+  private void handleCanonicalRegistrationId(String registrationId, String userEmail,
+      PushSender.Result result) {
+    log.info("Notification registration changed: user=%s registration=%s", userEmail,
+        result.getCanonicalRegistrationId());
+    String sql = "UPDATE devices SET gcm_registration_id = ? WHERE gcm_registration_id = ?";
+    try (SqlStmt stmt = DB.prepare(sql)) {
+      stmt.setString(1, result.getCanonicalRegistrationId());
+      stmt.setString(2, registrationId);
+      stmt.update();
+    } catch (Exception e) {
+      log.error("Error updating registration ID.", e);
+    }
+    new NotificationController().onDevicesUpdated(userEmail);
+  }
+
+  /** A message that we're going to try sending again once it's due. */
+  private static class Retry implements Delayed {
+    private final Map<String, String> data;
+    private final List<String> registrationIds;
+    private final Map<String, String> emails;
+    private final int attempt;
+    private final long dueTimeMs;
+
+    public Retry(Map<String, String> data, List<String> registrationIds,
+        Map<String, String> emails, int attempt, long dueTimeMs) {
+      this.data = data;
+      this.registrationIds = registrationIds;
+      this.emails = emails;
+      this.attempt = attempt;
+      this.dueTimeMs = dueTimeMs;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      return unit.convert(dueTimeMs - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.MILLISECONDS),
+          other.getDelay(TimeUnit.MILLISECONDS));
+    }
+  }
+}
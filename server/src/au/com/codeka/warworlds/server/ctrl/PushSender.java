@@ -0,0 +1,51 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Something that can send push notifications to devices. Normally this is {@link GcmPushSender},
+ * but {@link FakePushSender} can be configured instead for testing and benchmarking, so that we
+ * don't actually send anything to anybody.
+ */
+public interface PushSender {
+  /** The maximum number of registration IDs we can pass to a single call to {@link #send}. */
+  int MAX_REGISTRATION_IDS = 1000;
+
+  /**
+   * Sends a message with the given data to each of the given devices.
+   *
+   * @return A {@link Result} for each registration ID, in the same order.
+   * @throws IOException if the message could not be sent at all, in which case it can be retried.
+   */
+  List<Result> send(Map<String, String> data, List<String> registrationIds) throws IOException;
+
+  /** The result of sending a message to a single device. */
+  public static class Result {
+    private final String messageId;
+    private final String canonicalRegistrationId;
+    private final String errorCode;
+
+    public Result(String messageId, String canonicalRegistrationId, String errorCode) {
+      this.messageId = messageId;
+      this.canonicalRegistrationId = canonicalRegistrationId;
+      this.errorCode = errorCode;
+    }
+
+    /** The ID of the message, or null if it could not be sent. */
+    public String getMessageId() {
+      return messageId;
+    }
+
+    /** If non-null, the device has a new registration ID that we should use from now on. */
+    public String getCanonicalRegistrationId() {
+      return canonicalRegistrationId;
+    }
+
+    /** If {@link #getMessageId} is null, this is the reason. */
+    public String getErrorCode() {
+      return errorCode;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import au.com.codeka.common.Pair;
+import au.com.codeka.common.model.BuildingDesign;
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.designeffects.RadarBuildingEffect;
+import au.com.codeka.warworlds.server.model.BuildingPosition;
+import au.com.codeka.warworlds.server.model.Sector;
+
+/**
+ * An in-memory index of the radar buildings each empire owns, so that we can work out whether a
+ * star (or a fleet) is covered by radar without querying the buildings table every time we
+ * sanitize a star.
+ *
+ * <p>Each empire's radars are bucketed into a grid of cells ({@link #CELLS_PER_SECTOR} cells
+ * across each sector), so that checking a point only needs to look at the handful of cells that a
+ * radar could possibly reach it from.
+ *
+ * <p>An empire's radars are loaded the first time we need them, and thrown away whenever one of
+ * it's buildings is created, upgraded or destroyed. Just in case something changes behind our
+ * back, they're also reloaded every {@link #MAX_AGE_MS} milliseconds.
+ */
+public class RadarIndex {
+    public static RadarIndex i = new RadarIndex();
+
+    /** The size of each cell of the grid, in pixels. */
+    private static final int CELL_SIZE = 256;
+    private static final int CELLS_PER_SECTOR = Sector.SECTOR_SIZE / CELL_SIZE;
+
+    /** An empire's radars are reloaded after this long, even if we don't think they've changed. */
+    private static final long MAX_AGE_MS = 10 * 60 * 1000L;
+
+    private final ConcurrentHashMap<Integer, EmpireRadars> empires =
+            new ConcurrentHashMap<Integer, EmpireRadars>();
+
+    /** Incremented every time we invalidate anything, so we don't cache radars loaded before. */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Gets the radars belonging to the given empire. */
+    public EmpireRadars getRadars(int empireID) throws RequestException {
+        EmpireRadars radars = empires.get(empireID);
+        if (radars != null && radars.createTime > System.currentTimeMillis() - MAX_AGE_MS) {
+            return radars;
+        }
+
+        long startGeneration = generation.get();
+        radars = new EmpireRadars(new BuildingController().getBuildings(empireID));
+        if (generation.get() == startGeneration) {
+            empires.put(empireID, radars);
+        }
+        return radars;
+    }
+
+    /** Called when one of the given empire's buildings is created, upgraded or destroyed. */
+    public void invalidate(int empireID) {
+        generation.incrementAndGet();
+        empires.remove(empireID);
+    }
+
+    /** Called when stars move around, which could affect any empire's radars. */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        empires.clear();
+    }
+
+    /**
+     * Gets a {@link Runnable} that invalidates the given empire's radars. Pass it to
+     * {@link BaseDataBase#runAfterCommit}, otherwise the radars could be reloaded from the old data
+     * before the change is committed.
+     */
+    public Runnable invalidator(final int empireID) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                invalidate(empireID);
+            }
+        };
+    }
+
+    /** The position and range of a single radar. */
+    private static class Radar {
+        public final long sectorX;
+        public final long sectorY;
+        public final int offsetX;
+        public final int offsetY;
+        public final float range;
+
+        public Radar(BuildingPosition building, float range) {
+            this.sectorX = building.getSectorX();
+            this.sectorY = building.getSectorY();
+            this.offsetX = building.getOffsetX();
+            this.offsetY = building.getOffsetY();
+            this.range = range;
+        }
+    }
+
+    /** All of the radars belonging to a single empire, bucketed into cells. */
+    public static class EmpireRadars {
+        private final long createTime;
+        private final HashMap<Pair<Long, Long>, ArrayList<Radar>> cells =
+                new HashMap<Pair<Long, Long>, ArrayList<Radar>>();
+
+        /** The number of cells around a point that we need to check to find all radars. */
+        private final int searchRadius;
+
+        private EmpireRadars(ArrayList<BuildingPosition> buildings) {
+            createTime = System.currentTimeMillis();
+
+            float maxRange = 0.0f;
+            for (BuildingPosition building : buildings) {
+                BuildingDesign design = building.getDesign();
+                float range = 0.0f;
+                for (RadarBuildingEffect effect : design.getEffects(building.getLevel(),
+                        RadarBuildingEffect.class)) {
+                    if (effect.getRange() > range) {
+                        range = effect.getRange();
+                    }
+                }
+                if (range <= 0.0f) {
+                    continue;
+                }
+
+                Radar radar = new Radar(building, range);
+                Pair<Long, Long> cell = getCell(radar.sectorX, radar.sectorY,
+                        radar.offsetX, radar.offsetY);
+                ArrayList<Radar> cellRadars = cells.get(cell);
+                if (cellRadars == null) {
+                    cellRadars = new ArrayList<Radar>();
+                    cells.put(cell, cellRadars);
+                }
+                cellRadars.add(radar);
+                if (range > maxRange) {
+                    maxRange = range;
+                }
+            }
+
+            searchRadius = (int) Math.ceil(maxRange * Sector.PIXELS_PER_PARSEC / CELL_SIZE);
+        }
+
+        /**
+         * Determines whether the given point is within range of any of our radars. The offset can
+         * be outside of the sector (e.g. for a fleet that's on it's way to another sector).
+         */
+        public boolean isInRange(long sectorX, long sectorY, int offsetX, int offsetY) {
+            if (cells.isEmpty()) {
+                return false;
+            }
+
+            Pair<Long, Long> centre = getCell(sectorX, sectorY, offsetX, offsetY);
+            Pair<Long, Long> cell = new Pair<Long, Long>();
+            for (long y = centre.two - searchRadius; y <= centre.two + searchRadius; y++) {
+                for (long x = centre.one - searchRadius; x <= centre.one + searchRadius; x++) {
+                    cell.one = x;
+                    cell.two = y;
+                    ArrayList<Radar> cellRadars = cells.get(cell);
+                    if (cellRadars == null) {
+                        continue;
+                    }
+                    for (Radar radar : cellRadars) {
+                        float distance = Sector.distanceInParsecs(sectorX, sectorY, offsetX, offsetY,
+                                radar.sectorX, radar.sectorY, radar.offsetX, radar.offsetY);
+                        if (distance < radar.range) {
+                            return true;
+                        }
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static Pair<Long, Long> getCell(long sectorX, long sectorY, int offsetX,
+                int offsetY) {
+            return new Pair<Long, Long>(getCell(sectorX, offsetX), getCell(sectorY, offsetY));
+        }
+
+        private static long getCell(long sector, int offset) {
+            long cell = sector * CELLS_PER_SECTOR + offset / CELL_SIZE;
+            if (offset < 0 && offset % CELL_SIZE != 0) {
+                // integer division rounds towards zero, we want to round down.
+                cell--;
+            }
+            return cell;
+        }
+    }
+}
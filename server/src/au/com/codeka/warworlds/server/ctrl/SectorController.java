@@ -9,6 +9,7 @@ import au.com.codeka.common.model.BaseColony;
 import au.com.codeka.common.model.BaseFleet;
 import au.com.codeka.common.model.BaseStar;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ResponseCache;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
@@ -38,6 +39,9 @@ public class SectorController {
         if (sectors.size() > 0) {
             populateSectors(sectors);
         }
+        for (Sector sector : sectors) {
+            SectorPregenerator.i.onSectorExists(sector.getX(), sector.getY());
+        }
 
         if (generate && sectors.size() < coords.size()) {
             // if we're supposed to generate new sectors, find any that we still couldn't find
@@ -55,13 +59,27 @@ public class SectorController {
             }
 
             if (missing.size() > 0) {
+                // the sectors around the ones people look at are usually generated in the
+                // background, but if we get here it didn't get to these ones in time.
                 SectorGenerator generator = new SectorGenerator();
                 for (Pair<Long, Long> coord : missing) {
-                    sectors.add(generator.generate(coord.one, coord.two));
+                    Sector sector = generator.generate(coord.one, coord.two);
+                    if (sector == null) {
+                        // somebody else generated it first, just fetch it again
+                        sector = getSector(coord.one, coord.two);
+                    }
+                    if (sector != null) {
+                        sectors.add(sector);
+                    }
+                    SectorPregenerator.i.onSectorExists(coord.one, coord.two);
                 }
             }
         }
 
+        if (generate) {
+            SectorPregenerator.i.queueAround(coords);
+        }
+
         return sectors;
     }
 
@@ -88,9 +106,17 @@ public class SectorController {
         }
     }
 
-    public void swapStars(Star star1, Star star2) throws RequestException {
+    public void swapStars(final Star star1, final Star star2) throws RequestException {
         try {
             db.swapStars(star1, star2);
+            db.runAfterCommit(new Runnable() {
+                @Override
+                public void run() {
+                    ResponseCache.i.onStarUpdated(star1);
+                    ResponseCache.i.onStarUpdated(star2);
+                    RadarIndex.i.invalidateAll();
+                }
+            });
         } catch(Exception e) {
             throw new RequestException(e);
         }
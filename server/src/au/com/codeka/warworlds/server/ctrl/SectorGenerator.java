@@ -9,13 +9,17 @@ import java.util.TreeSet;
 
 import org.joda.time.DateTime;
 
+import au.com.codeka.common.Pair;
 import au.com.codeka.common.PointCloud;
 import au.com.codeka.common.Vector2;
+import au.com.codeka.common.model.BasePlanet;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ResponseCache;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
+import au.com.codeka.warworlds.server.data.Transaction;
 import au.com.codeka.warworlds.server.model.Planet;
 import au.com.codeka.warworlds.server.model.Sector;
 import au.com.codeka.warworlds.server.model.Star;
@@ -24,6 +28,14 @@ import au.com.codeka.warworlds.server.model.Star;
  * This class generates a new sector, populated with stars and whatnot.
  */
 public class SectorGenerator {
+    private static final Object sGenerateLock = new Object();
+
+    /** The number of sectors we add each time {@link #expandUniverse} is called. */
+    private static final int EXPAND_UNIVERSE_SECTORS = 50;
+
+    /** The number of sectors {@link #expandUniverse} generates before returning. */
+    private static final int EXPAND_UNIVERSE_SYNC_SECTORS = 5;
+
     private Random mRandom;
 
     /**
@@ -85,39 +97,69 @@ public class SectorGenerator {
         0.8,      1.2,      1.0,     1.5,       0.8,   0.4,   0.6,    0.6,   0.8
     };
 
-    public Sector generate(long x, long y) throws RequestException {
+    /**
+     * Generates the sector at the given coordinates. If the sector already exists (e.g. because
+     * the {@link SectorPregenerator} got to it first) then nothing is generated and we return
+     * null.
+     */
+    public Sector generate(final long x, final long y) throws RequestException {
         mRandom = new Random((x * 73649274L) ^ y ^ System.currentTimeMillis());
 
-        String sql = "INSERT INTO sectors (x, y, distance_to_centre, num_colonies) VALUES (?, ?, ?, ?)";
-        try (SqlStmt stmt = DB.prepare(sql, Statement.RETURN_GENERATED_KEYS)) {
-            Sector sector = new Sector(x, y);
-
-            stmt.setLong(1, sector.getX());
-            stmt.setLong(2, sector.getY());
-            stmt.setDouble(3, sector.getDistanceToCentre());
-            stmt.setInt(4, sector.getNumColonies());
-            stmt.update();
-            sector.setID(stmt.getAutoGeneratedID());
-
-            // we just hard-code some values for density and randomness that look good...
-            double density = 0.18;
-            double randomness = 0.11;
-            ArrayList<Vector2> points = new PointCloud.PoissonGenerator()
-                                            .generate(density, randomness, mRandom);
-
-            for (Vector2 point : points) {
-                Star star = generateStar(sector, point);
-                sector.getStars().add(star);
-            }
+        // we just hard-code some values for density and randomness that look good...
+        double density = 0.18;
+        double randomness = 0.11;
+        ArrayList<Vector2> points = new PointCloud.PoissonGenerator()
+                                        .generate(density, randomness, mRandom);
+
+        // sectors are only ever generated under this lock, so that the background generator and
+        // requests don't both try to create the same sector.
+        synchronized (sGenerateLock) {
+            try (Transaction t = DB.beginTransaction()) {
+                String sql = "SELECT id FROM sectors WHERE x = ? AND y = ?";
+                try (SqlStmt stmt = t.prepare(sql)) {
+                    stmt.setLong(1, x);
+                    stmt.setLong(2, y);
+                    if (stmt.selectFirstValue(Long.class) != null) {
+                        return null;
+                    }
+                }
 
-            return sector;
-        } catch (Exception e) {
-            throw new RequestException(e);
+                Sector sector = new Sector(x, y);
+                sql = "INSERT INTO sectors (x, y, distance_to_centre, num_colonies) VALUES (?, ?, ?, ?)";
+                try (SqlStmt stmt = t.prepare(sql, Statement.RETURN_GENERATED_KEYS)) {
+                    stmt.setLong(1, sector.getX());
+                    stmt.setLong(2, sector.getY());
+                    stmt.setDouble(3, sector.getDistanceToCentre());
+                    stmt.setInt(4, sector.getNumColonies());
+                    stmt.update();
+                    sector.setID(stmt.getAutoGeneratedID());
+                }
+
+                ArrayList<Star> stars = new ArrayList<Star>();
+                for (Vector2 point : points) {
+                    stars.add(generateStar(sector, point));
+                }
+                insertStars(t, stars);
+                sector.getStars().addAll(stars);
+
+                t.runAfterCommit(new Runnable() {
+                    @Override
+                    public void run() {
+                        ResponseCache.i.onSectorUpdated(x, y);
+                    }
+                });
+                t.commit();
+                return sector;
+            } catch (Exception e) {
+                throw new RequestException(e);
+            }
         }
     }
 
     /**
-     * Expands the universe by one sector.
+     * Expands the universe by {@link #EXPAND_UNIVERSE_SECTORS} sectors. Only the first few are
+     * generated straight away (enough for whoever needs them right now), the rest are handed off
+     * to the {@link SectorPregenerator}.
      */
     public void expandUniverse() throws RequestException {
         TreeMap<Long, Set<Long>> existingSectors = new TreeMap<Long, Set<Long>>();
@@ -153,17 +195,18 @@ public class SectorGenerator {
             throw new RequestException(e);
         }
 
-        int numGenerated = 0;
-        while (numGenerated < 50) {
-            for (long x = minX; x <= maxX; x++) {
-                for (long y = minY; y <= maxY; y++) {
+        ArrayList<Pair<Long, Long>> coords = new ArrayList<Pair<Long, Long>>();
+        while (coords.size() < EXPAND_UNIVERSE_SECTORS) {
+            for (long x = minX; x <= maxX && coords.size() < EXPAND_UNIVERSE_SECTORS; x++) {
+                for (long y = minY; y <= maxY && coords.size() < EXPAND_UNIVERSE_SECTORS; y++) {
                     Set<Long> xs = existingSectors.get(y);
-                    if (xs == null || !xs.contains(x)) {
-                        generate(x, y);
-                        numGenerated ++;
-                        if (numGenerated > 50) {
-                            return;
-                        }
+                    if (xs == null) {
+                        xs = new TreeSet<Long>();
+                        existingSectors.put(y, xs);
+                    }
+                    if (!xs.contains(x)) {
+                        coords.add(new Pair<Long, Long>(x, y));
+                        xs.add(x);
                     }
                 }
             }
@@ -174,45 +217,81 @@ public class SectorGenerator {
             minY --;
             maxY ++;
         }
+
+        for (int i = 0; i < coords.size(); i++) {
+            Pair<Long, Long> coord = coords.get(i);
+            if (i < EXPAND_UNIVERSE_SYNC_SECTORS) {
+                generate(coord.one, coord.two);
+                SectorPregenerator.i.onSectorExists(coord.one, coord.two);
+            } else {
+                SectorPregenerator.i.queue(coord.one, coord.two);
+            }
+        }
     }
 
-    private Star generateStar(Sector sector, Vector2 point) throws RequestException {
+    private Star generateStar(Sector sector, Vector2 point) {
         int x = (int) ((Sector.SECTOR_SIZE - 64) * point.x) + 32;
         int y = (int) ((Sector.SECTOR_SIZE - 64) * point.y) + 32;
         int starTypeID = select(StarTypeBonuses);
         String name = new NameGenerator().generate(mRandom);
         int size = mRandom.nextInt(8) + 16;
 
-        String sql = "INSERT INTO stars (sector_id, x, y, size, name, star_type, planets, last_simulation) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-        try (SqlStmt stmt = DB.prepare(sql, Statement.RETURN_GENERATED_KEYS)) {
-            Star star = new Star(sector, x, y, starTypeID, name, size);
-
-            ArrayList<Planet> planets = generatePlanets(star);
-            // serialize the planets to a protobuf for storage
-            Messages.Planets.Builder planets_pb = Messages.Planets.newBuilder();
-            for (Planet planet : planets) {
-                Messages.Planet.Builder planet_pb = Messages.Planet.newBuilder();
-                planet.toProtocolBuffer(planet_pb);
-                planets_pb.addPlanets(planet_pb);
+        Star star = new Star(sector, x, y, starTypeID, name, size);
+        ArrayList<Planet> planets = generatePlanets(star);
+        Planet[] planetArray = new Planet[planets.size()];
+        star.setPlanets(planets.toArray(planetArray));
+        return star;
+    }
+
+    /**
+     * Inserts all of the given stars with a single multi-row INSERT, rather than one round-trip
+     * per star.
+     */
+    private void insertStars(Transaction t, ArrayList<Star> stars) throws Exception {
+        if (stars.isEmpty()) {
+            return;
+        }
+
+        StringBuilder sql = new StringBuilder(
+                "INSERT INTO stars (sector_id, x, y, size, name, star_type, planets, last_simulation) VALUES ");
+        for (int i = 0; i < stars.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
             }
+            sql.append("(?, ?, ?, ?, ?, ?, ?, ?)");
+        }
+        // postgres returns the rows of a multi-row INSERT in the order of the VALUES list
+        sql.append(" RETURNING id");
+
+        DateTime now = DateTime.now();
+        try (SqlStmt stmt = t.prepare(sql.toString())) {
+            int n = 1;
+            for (Star star : stars) {
+                // serialize the planets to a protobuf for storage
+                Messages.Planets.Builder planets_pb = Messages.Planets.newBuilder();
+                for (BasePlanet planet : star.getPlanets()) {
+                    Messages.Planet.Builder planet_pb = Messages.Planet.newBuilder();
+                    planet.toProtocolBuffer(planet_pb);
+                    planets_pb.addPlanets(planet_pb);
+                }
 
-            Planet[] planetArray = new Planet[planets.size()];
-            star.setPlanets(planets.toArray(planetArray));
-
-            stmt.setInt(1, star.getSectorID());
-            stmt.setInt(2, star.getOffsetX());
-            stmt.setInt(3, star.getOffsetY());
-            stmt.setInt(4, star.getSize());
-            stmt.setString(5, name);
-            stmt.setInt(6, star.getStarType().getType().ordinal());
-            stmt.setBytes(7, planets_pb.build().toByteArray());
-            stmt.setDateTime(8, DateTime.now());
-            stmt.update();
-            star.setID(stmt.getAutoGeneratedID());
-
-            return star;
-        } catch(Exception e) {
-            throw new RequestException(e);
+                stmt.setInt(n++, star.getSectorID());
+                stmt.setInt(n++, star.getOffsetX());
+                stmt.setInt(n++, star.getOffsetY());
+                stmt.setInt(n++, star.getSize());
+                stmt.setString(n++, star.getName());
+                stmt.setInt(n++, star.getStarType().getType().ordinal());
+                stmt.setBytes(n++, planets_pb.build().toByteArray());
+                stmt.setDateTime(n++, now);
+            }
+
+            SqlResult res = stmt.select();
+            for (Star star : stars) {
+                if (!res.next()) {
+                    throw new RequestException(500, "Expected an ID for every inserted star.");
+                }
+                star.setID(res.getInt(1));
+            }
         }
     }
 
@@ -0,0 +1,112 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.common.Pair;
+import au.com.codeka.warworlds.server.data.DB;
+import au.com.codeka.warworlds.server.data.UnitOfWork;
+
+/**
+ * Generates sectors in the background, so that by the time a player pans into a new part of the
+ * universe, the sectors are (hopefully) already there and we don't have to generate them on the
+ * request thread.
+ *
+ * <p>Whenever sectors are fetched, we queue up the sectors in a ring of {@link #RING_SIZE} around
+ * them. Sectors we know already exist are remembered so that we don't have to keep asking the
+ * database about them.
+ */
+public class SectorPregenerator {
+    private static final Log log = new Log("SectorPregenerator");
+    public static SectorPregenerator i = new SectorPregenerator();
+
+    /** The number of sectors around each fetched sector that we'll make sure exist. */
+    private static final int RING_SIZE = 2;
+
+    /** The maximum number of sectors we'll have queued up at once, any more are just dropped. */
+    private static final int MAX_QUEUED = 1000;
+
+    private final LinkedBlockingQueue<Pair<Long, Long>> mQueue =
+            new LinkedBlockingQueue<Pair<Long, Long>>(MAX_QUEUED);
+    private final ConcurrentHashMap<Pair<Long, Long>, Boolean> mQueued =
+            new ConcurrentHashMap<Pair<Long, Long>, Boolean>();
+    private final ConcurrentHashMap<Pair<Long, Long>, Boolean> mExisting =
+            new ConcurrentHashMap<Pair<Long, Long>, Boolean>();
+
+    private Thread mThread;
+    private Runnable mThreadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                threadProc();
+            }
+        }
+    };
+
+    /** Called when we know the given sector exists, so we'll never try to generate it. */
+    public void onSectorExists(long sectorX, long sectorY) {
+        mExisting.put(new Pair<Long, Long>(sectorX, sectorY), Boolean.TRUE);
+    }
+
+    /** Queues the sectors around each of the given sectors to be generated, if they don't exist. */
+    public void queueAround(Collection<Pair<Long, Long>> coords) {
+        for (Pair<Long, Long> coord : coords) {
+            for (long y = coord.two - RING_SIZE; y <= coord.two + RING_SIZE; y++) {
+                for (long x = coord.one - RING_SIZE; x <= coord.one + RING_SIZE; x++) {
+                    queue(x, y);
+                }
+            }
+        }
+    }
+
+    /** Queues the given sector to be generated, if it doesn't already exist. */
+    public void queue(long sectorX, long sectorY) {
+        Pair<Long, Long> coord = new Pair<Long, Long>(sectorX, sectorY);
+        if (mExisting.containsKey(coord)) {
+            return;
+        }
+        if (mQueued.putIfAbsent(coord, Boolean.TRUE) != null) {
+            return;
+        }
+        if (!mQueue.offer(coord)) {
+            // the queue is full, we'll pick it up again next time it's requested.
+            mQueued.remove(coord);
+            return;
+        }
+        ensureStarted();
+    }
+
+    private synchronized void ensureStarted() {
+        if (mThread == null || !mThread.isAlive()) {
+            mThread = new Thread(mThreadRunnable);
+            mThread.setDaemon(true);
+            mThread.setName("SectorPregenerator");
+            mThread.setPriority(Thread.NORM_PRIORITY - 1);
+            mThread.start();
+        }
+    }
+
+    private void threadProc() {
+        Pair<Long, Long> coord;
+        try {
+            coord = mQueue.take();
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        UnitOfWork unitOfWork = DB.beginUnitOfWork();
+        try {
+            if (new SectorGenerator().generate(coord.one, coord.two) != null) {
+                log.info("Pre-generated sector [%d, %d]", coord.one, coord.two);
+            }
+            onSectorExists(coord.one, coord.two);
+        } catch (Exception e) {
+            log.error("Error generating sector [%d, %d]", coord.one, coord.two, e);
+        } finally {
+            unitOfWork.close();
+            mQueued.remove(coord);
+        }
+    }
+}
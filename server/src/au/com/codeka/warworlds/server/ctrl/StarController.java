@@ -2,15 +2,20 @@ package au.com.codeka.warworlds.server.ctrl;
 
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
 import org.joda.time.Seconds;
 
@@ -23,21 +28,21 @@ import au.com.codeka.common.model.BaseFleet;
 import au.com.codeka.common.model.BaseFleetUpgrade;
 import au.com.codeka.common.model.BasePlanet;
 import au.com.codeka.common.model.BaseScoutReport;
-import au.com.codeka.common.model.BuildingDesign;
 import au.com.codeka.common.model.BuildingEffect;
 import au.com.codeka.common.model.Design;
 import au.com.codeka.common.model.Simulation;
 import au.com.codeka.common.protobuf.Messages;
+import au.com.codeka.warworlds.server.Configuration;
 import au.com.codeka.warworlds.server.EventProcessor;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ResponseCache;
+import au.com.codeka.warworlds.server.StarSimulatorThreadManager;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
-import au.com.codeka.warworlds.server.designeffects.RadarBuildingEffect;
 import au.com.codeka.warworlds.server.model.Alliance;
 import au.com.codeka.warworlds.server.model.BuildRequest;
 import au.com.codeka.warworlds.server.model.Building;
-import au.com.codeka.warworlds.server.model.BuildingPosition;
 import au.com.codeka.warworlds.server.model.Colony;
 import au.com.codeka.warworlds.server.model.CombatReport;
 import au.com.codeka.warworlds.server.model.EmpirePresence;
@@ -113,14 +118,41 @@ public class StarController {
         }
 
         if (pingEventProcessor) {
-            // we may need to ping the event processor if a build time change, or whatever.
+            // make sure the event processor is running to pick up any new events on this star.
             EventProcessor.i.ping();
         }
     }
 
-    private void updateNoRetry(Star star) throws Exception {
-        db.updateStar(star);
-        removeEmpirePresences(star.getID());
+    private void updateNoRetry(final Star star) throws Exception {
+        final EmpireRankCounters.StarSave rankSave = EmpireRankCounters.i.onStarSaving(star);
+        boolean saved = false;
+        try {
+            db.updateStar(star);
+            removeEmpirePresences(star.getID());
+            StarSimulatorThreadManager.i.onStarUpdated(star);
+            EventProcessor.i.onStarUpdated(star);
+            saved = true;
+        } finally {
+            if (!saved) {
+                rankSave.onRolledBack();
+            }
+        }
+
+        // cached responses must not be invalidated until the new rows are visible to everyone,
+        // and the rank totals mustn't change if the save is rolled back.
+        db.runAfterRollback(new Runnable() {
+            @Override
+            public void run() {
+                rankSave.onRolledBack();
+            }
+        });
+        db.runAfterCommit(new Runnable() {
+            @Override
+            public void run() {
+                ResponseCache.i.onStarUpdated(star);
+                rankSave.onCommitted();
+            }
+        });
     }
 
     public void removeEmpirePresences(int starID) throws RequestException {
@@ -145,8 +177,8 @@ public class StarController {
      * @param myEmpireID
      */
     public void sanitizeStar(Star star, int myEmpireID,
-                             ArrayList<BuildingPosition> buildings,
-                             ArrayList<Star> otherStars) {
+                             @Nullable RadarIndex.EmpireRadars radars,
+                             @Nullable ArrayList<Star> otherStars) {
         // if the star is a wormhole, don't sanitize it -- a wormhole is basically fleets in
         // transit anyway
         if (star.getStarType().getType() == Star.Type.Wormhole) {
@@ -163,55 +195,37 @@ public class StarController {
             }
         }
         // ... unless we have a radar on a nearby star
-        if (buildings != null) for (BuildingPosition building : buildings) {
-            BuildingDesign design = building.getDesign();
-            float radarRange = 0.0f;
-            for (RadarBuildingEffect effect : design.getEffects(building.getLevel(), RadarBuildingEffect.class)) {
-                if (effect.getRange() > radarRange) {
-                    radarRange = effect.getRange();
-                }
-            }
-
-            if (radarRange > 0.0f) {
-                float distanceToBuilding = Sector.distanceInParsecs(star,
-                        building.getSectorX(), building.getSectorY(),
-                        building.getOffsetX(), building.getOffsetY());
-                if (distanceToBuilding < radarRange) {
-                    removeFleets = false;
-                }
-
-                if (removeFleets && otherStars != null) {
-                    // check any moving fleets, we'll want to add those back
-                    for (BaseFleet baseFleet : star.getFleets()) {
-                        if (baseFleet.getState() != Fleet.State.MOVING) {
-                            continue;
-                        }
-                        Fleet fleet = (Fleet) baseFleet;
+        if (removeFleets && radars != null) {
+            if (radars.isInRange(star.getSectorX(), star.getSectorY(),
+                    star.getOffsetX(), star.getOffsetY())) {
+                removeFleets = false;
+            } else if (otherStars != null) {
+                // check any moving fleets, we'll want to add those back
+                for (BaseFleet baseFleet : star.getFleets()) {
+                    if (baseFleet.getState() != Fleet.State.MOVING) {
+                        continue;
+                    }
+                    Fleet fleet = (Fleet) baseFleet;
 
-                        Star destinationStar = null;
-                        for (Star otherStar : otherStars) {
-                            if (otherStar.getID() == fleet.getDestinationStarID()) {
-                                destinationStar = otherStar;
-                                break;
-                            }
+                    Star destinationStar = null;
+                    for (Star otherStar : otherStars) {
+                        if (otherStar.getID() == fleet.getDestinationStarID()) {
+                            destinationStar = otherStar;
+                            break;
                         }
-                        if (destinationStar != null) {
-                            Vector2 dir = Sector.directionBetween(star, destinationStar);
-                            float progress = fleet.getMovementProgress();
-                            dir.scale(progress);
-
-                            float distanceToFleet = Sector.distanceInParsecs(
-                                    star.getSectorX(), star.getSectorY(),
-                                    star.getOffsetX() + (int) (dir.x * Sector.PIXELS_PER_PARSEC),
-                                    star.getOffsetY() + (int) (dir.y * Sector.PIXELS_PER_PARSEC),
-                                    building.getSectorX(), building.getSectorY(),
-                                    building.getOffsetX(), building.getOffsetY());
-                            if (distanceToFleet < radarRange) {
-                                if (fleetsToAddBack == null) {
-                                    fleetsToAddBack = new ArrayList<Fleet>();
-                                }
-                                fleetsToAddBack.add(fleet);
+                    }
+                    if (destinationStar != null) {
+                        Vector2 dir = Sector.directionBetween(star, destinationStar);
+                        float progress = fleet.getMovementProgress();
+                        dir.scale(progress);
+
+                        if (radars.isInRange(star.getSectorX(), star.getSectorY(),
+                                star.getOffsetX() + (int) (dir.x * Sector.PIXELS_PER_PARSEC),
+                                star.getOffsetY() + (int) (dir.y * Sector.PIXELS_PER_PARSEC))) {
+                            if (fleetsToAddBack == null) {
+                                fleetsToAddBack = new ArrayList<Fleet>();
                             }
+                            fleetsToAddBack.add(fleet);
                         }
                     }
                 }
@@ -316,15 +330,8 @@ public class StarController {
                 starIds[i] = star.getID();
             }
 
-            String inClause = buildInClause(starIds);
             try {
-                populateEmpires(stars, inClause);
-                populateColonies(stars, inClause);
-                populateFleets(stars, inClause);
-                populateBuildings(stars, inClause);
-                populateBuildRequests(stars, inClause);
-                checkNativeColonies(stars);
-                populateCombatReports(stars, inClause);
+                populateStars(stars, buildInClause(starIds));
             } catch(Exception e) {
                 throw new RequestException(e);
             }
@@ -444,6 +451,17 @@ public class StarController {
         }
 
         private void updateEmpires(Star star) throws Exception {
+            ArrayList<EmpirePresence> dirty = new ArrayList<EmpirePresence>();
+            for (BaseEmpirePresence baseEmpire : star.getEmpires()) {
+                EmpirePresence empire = (EmpirePresence) baseEmpire;
+                if (checkAndRecordRow(star, empireRowKey(empire), empireRowValues(empire))) {
+                    dirty.add(empire);
+                }
+            }
+            if (dirty.isEmpty()) {
+                return;
+            }
+
             final String sql = "UPDATE empire_presences SET" +
                                  " total_goods = ?," +
                                  " total_minerals = ?," +
@@ -451,62 +469,70 @@ public class StarController {
                                  " goods_zero_time = ?" +
                               " WHERE id = ?";
             try (SqlStmt stmt = prepare(sql)) {
-                for (BaseEmpirePresence empire : star.getEmpires()) {
+                for (EmpirePresence empire : dirty) {
                     stmt.setDouble(1, empire.getTotalGoods());
                     stmt.setDouble(2, empire.getTotalMinerals());
                     stmt.setDouble(3, empire.getTaxPerHour());
                     stmt.setDateTime(4, empire.getGoodsZeroTime());
-                    stmt.setInt(5, ((EmpirePresence) empire).getID());
-                    stmt.update();
+                    stmt.setInt(5, empire.getID());
+                    stmt.addBatch();
                 }
+                stmt.executeBatch();
             }
         }
 
         private void updateColonies(Star star) throws Exception {
-            boolean needDelete = false;
-
             final float MIN_POPULATION = 0.0001f;
 
             TreeMap<Integer, Float> empireTaxes = new TreeMap<Integer, Float>();
+            ArrayList<Colony> dirty = new ArrayList<Colony>();
+            ArrayList<BaseColony> toRemove = new ArrayList<BaseColony>();
+            for (BaseColony baseColony : star.getColonies()) {
+                Colony colony = (Colony) baseColony;
+                if (colony.getPopulation() <= MIN_POPULATION) {
+                    toRemove.add(colony);
+                    continue;
+                }
 
-            String sql = "UPDATE colonies SET" +
-                           " focus_population = ?," +
-                           " focus_construction = ?," +
-                           " focus_farming = ?," +
-                           " focus_mining = ?," +
-                           " population = ?," +
-                           " uncollected_taxes = ?" +
-                        " WHERE id = ?";
-            try (SqlStmt stmt = prepare(sql)) {
-                for (BaseColony baseColony : star.getColonies()) {
-                    Colony colony = (Colony) baseColony;
-                    if (colony.getPopulation() <= MIN_POPULATION) {
-                        needDelete = true;
-                        continue;
-                    }
-
-                    if (colony.getEmpireID() != null) {
-                        Float uncollectedTaxes = empireTaxes.get(colony.getEmpireID());
-                        uncollectedTaxes = (uncollectedTaxes == null ? 0 : uncollectedTaxes) +
-                                colony.getUncollectedTaxes();
-                        empireTaxes.put(colony.getEmpireID(), uncollectedTaxes);
-                    }
+                if (colony.getEmpireID() != null) {
+                    Float uncollectedTaxes = empireTaxes.get(colony.getEmpireID());
+                    uncollectedTaxes = (uncollectedTaxes == null ? 0 : uncollectedTaxes) +
+                            colony.getUncollectedTaxes();
+                    empireTaxes.put(colony.getEmpireID(), uncollectedTaxes);
+                }
+                colony.setUncollectedTaxes(0.0f);
 
-                    stmt.setDouble(1, colony.getPopulationFocus());
-                    stmt.setDouble(2, colony.getConstructionFocus());
-                    stmt.setDouble(3, colony.getFarmingFocus());
-                    stmt.setDouble(4, colony.getMiningFocus());
-                    stmt.setDouble(5, colony.getPopulation());
-                    stmt.setDouble(6, 0); // TODO: remove this column from the database
-                    stmt.setInt(7, ((Colony) colony).getID());
-                    stmt.update();
+                if (checkAndRecordRow(star, colonyRowKey(colony), colonyRowValues(colony))) {
+                    dirty.add(colony);
+                }
+            }
 
-                    colony.setUncollectedTaxes(0.0f);
+            if (!dirty.isEmpty()) {
+                String sql = "UPDATE colonies SET" +
+                               " focus_population = ?," +
+                               " focus_construction = ?," +
+                               " focus_farming = ?," +
+                               " focus_mining = ?," +
+                               " population = ?," +
+                               " uncollected_taxes = ?" +
+                            " WHERE id = ?";
+                try (SqlStmt stmt = prepare(sql)) {
+                    for (Colony colony : dirty) {
+                        stmt.setDouble(1, colony.getPopulationFocus());
+                        stmt.setDouble(2, colony.getConstructionFocus());
+                        stmt.setDouble(3, colony.getFarmingFocus());
+                        stmt.setDouble(4, colony.getMiningFocus());
+                        stmt.setDouble(5, colony.getPopulation());
+                        stmt.setDouble(6, 0); // TODO: remove this column from the database
+                        stmt.setInt(7, colony.getID());
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
                 }
             }
 
             if (!empireTaxes.isEmpty()) {
-                sql = "UPDATE empires SET cash = cash + ? WHERE id = ? RETURNING cash";
+                String sql = "UPDATE empires SET cash = cash + ? WHERE id = ? RETURNING cash";
                 try (SqlStmt stmt = prepare(sql)) {
                     for (Map.Entry<Integer, Float> entry : empireTaxes.entrySet()) {
                         stmt.setDouble(1, entry.getValue());
@@ -523,86 +549,88 @@ public class StarController {
                 }
             }
 
-            if (needDelete) {
-                ArrayList<BaseColony> toRemove = new ArrayList<BaseColony>();
-                sql = "DELETE FROM colonies WHERE id = ?";
+            if (!toRemove.isEmpty()) {
+                String sql = "DELETE FROM colonies WHERE id = ?";
                 try (SqlStmt stmt = prepare(sql)) {
-                    for (BaseColony colony : star.getColonies()) {
-                        if (colony.getPopulation() > MIN_POPULATION) {
-                            continue;
-                        }
+                    for (BaseColony colony : toRemove) {
                         stmt.setInt(1, ((Colony) colony).getID());
-                        stmt.update();
-                        toRemove.add(colony);
+                        stmt.addBatch();
+                        forgetRow(star, colonyRowKey((Colony) colony));
+                        if (((Colony) colony).getEmpireID() != null) {
+                            // any buildings on the colony are deleted along with it
+                            runAfterCommit(RadarIndex.i.invalidator(
+                                    ((Colony) colony).getEmpireID()));
+                        }
                     }
-
-                    star.getColonies().removeAll(toRemove);
+                    stmt.executeBatch();
                 }
+                star.getColonies().removeAll(toRemove);
             }
         }
 
         private void updateFleets(Star star) throws Exception {
-            boolean needInsert = false;
-            boolean needDelete = false;
+            ArrayList<Fleet> toInsert = new ArrayList<Fleet>();
+            ArrayList<Fleet> toUpdate = new ArrayList<Fleet>();
+            ArrayList<Fleet> toDelete = new ArrayList<Fleet>();
             DateTime now = DateTime.now();
-            String sql = "UPDATE fleets SET" +
-                            " star_id = ?," +
-                            " sector_id = ?," +
-                            " num_ships = ?," +
-                            " stance = ?," +
-                            " state = ?," +
-                            " state_start_time = ?," +
-                            " eta = ?," +
-                            " target_star_id = ?," +
-                            " target_fleet_id = ?," +
-                            " time_destroyed = ?," +
-                            " notes = ?" +
-                        " WHERE id = ?";
-            try (SqlStmt stmt = prepare(sql)) {
-                for (BaseFleet baseFleet : star.getFleets()) {
-                    if (baseFleet.getNumShips() < 0) {
-                        throw new RequestException(500,
-                                "Cannot have < 0 ships in a fleet. StarID=" + star.getID());
-                    }
+            for (BaseFleet baseFleet : star.getFleets()) {
+                if (baseFleet.getNumShips() < 0) {
+                    throw new RequestException(500,
+                            "Cannot have < 0 ships in a fleet. StarID=" + star.getID());
+                }
 
-                    if (baseFleet.getKey() == null) {
-                        needInsert = true;
-                        continue;
-                    }
-                    if (baseFleet.getTimeDestroyed() != null && baseFleet.getTimeDestroyed().isBefore(now)) {
-                        needDelete = true;
-                        continue;
+                Fleet fleet = (Fleet) baseFleet;
+                if (fleet.getKey() == null) {
+                    toInsert.add(fleet);
+                } else if (fleet.getTimeDestroyed() != null && fleet.getTimeDestroyed().isBefore(now)) {
+                    toDelete.add(fleet);
+                } else if (checkAndRecordRow(star, fleetRowKey(fleet), fleetRowValues(star, fleet))) {
+                    toUpdate.add(fleet);
+                }
+            }
+
+            if (!toUpdate.isEmpty()) {
+                String sql = "UPDATE fleets SET" +
+                                " star_id = ?," +
+                                " sector_id = ?," +
+                                " num_ships = ?," +
+                                " stance = ?," +
+                                " state = ?," +
+                                " state_start_time = ?," +
+                                " eta = ?," +
+                                " target_star_id = ?," +
+                                " target_fleet_id = ?," +
+                                " time_destroyed = ?," +
+                                " notes = ?" +
+                            " WHERE id = ?";
+                try (SqlStmt stmt = prepare(sql)) {
+                    for (Fleet fleet : toUpdate) {
+                        stmt.setInt(1, star.getID());
+                        stmt.setInt(2, star.getSectorID());
+                        stmt.setDouble(3, fleet.getNumShips());
+                        stmt.setInt(4, fleet.getStance().getValue());
+                        stmt.setInt(5, fleet.getState().getValue());
+                        stmt.setDateTime(6, fleet.getStateStartTime());
+                        stmt.setDateTime(7, fleet.getEta());
+                        stmt.setInt(8, fleet.getDestinationStarID());
+                        stmt.setInt(9, fleet.getTargetFleetID());
+                        stmt.setDateTime(10, fleet.getTimeDestroyed());
+                        stmt.setString(11, fleet.getNotes());
+                        stmt.setInt(12, fleet.getID());
+                        stmt.addBatch();
                     }
+                    stmt.executeBatch();
+                }
+            }
 
-                    Fleet fleet = (Fleet) baseFleet;
-                    stmt.setInt(1, star.getID());
-                    stmt.setInt(2, star.getSectorID());
-                    stmt.setDouble(3, fleet.getNumShips());
-                    stmt.setInt(4, fleet.getStance().getValue());
-                    stmt.setInt(5, fleet.getState().getValue());
-                    stmt.setDateTime(6, fleet.getStateStartTime());
-                    stmt.setDateTime(7, fleet.getEta());
-                    stmt.setInt(8, fleet.getDestinationStarID());
-                    stmt.setInt(9, fleet.getTargetFleetID());
-                    stmt.setDateTime(10, fleet.getTimeDestroyed());
-                    stmt.setString(11, fleet.getNotes());
-                    stmt.setInt(12, fleet.getID());
-                    stmt.update();
-                }
-            }
-
-            if (needInsert) {
-                sql = "INSERT INTO fleets (star_id, sector_id, design_id, empire_id, num_ships," +
+            if (!toInsert.isEmpty()) {
+                // we need the generated ID of each fleet, so these can't be batched
+                String sql = "INSERT INTO fleets (star_id, sector_id, design_id, empire_id, num_ships," +
                                          " stance, state, state_start_time, eta, target_star_id," +
                                          " target_fleet_id, time_destroyed, notes)" +
                      " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
                 try (SqlStmt stmt = prepare(sql, Statement.RETURN_GENERATED_KEYS)) {
-                    for (BaseFleet baseFleet : star.getFleets()) {
-                        if (baseFleet.getKey() != null) {
-                            continue;
-                        }
-
-                        Fleet fleet = (Fleet) baseFleet;
+                    for (Fleet fleet : toInsert) {
                         stmt.setInt(1, fleet.getStarID());
                         stmt.setInt(2, fleet.getSectorID());
                         stmt.setString(3, fleet.getDesignID());
@@ -622,44 +650,126 @@ public class StarController {
                         stmt.setString(13, fleet.getNotes());
                         stmt.update();
                         fleet.setID(stmt.getAutoGeneratedID());
+                        checkAndRecordRow(star, fleetRowKey(fleet), fleetRowValues(star, fleet));
                     }
                 }
             }
 
-            if (needDelete) {
-                sql = "DELETE FROM fleet_upgrades WHERE fleet_id = ?";
+            if (!toDelete.isEmpty()) {
+                String sql = "DELETE FROM fleet_upgrades WHERE fleet_id = ?";
                 try (SqlStmt stmt = prepare(sql)) {
-                    for (BaseFleet baseFleet : star.getFleets()) {
-                        if (baseFleet.getTimeDestroyed() != null && baseFleet.getTimeDestroyed().isBefore(now)) {
-                            Fleet fleet = (Fleet) baseFleet;
-                            stmt.setInt(1, fleet.getID());
-                            stmt.update();
-                        }
+                    for (Fleet fleet : toDelete) {
+                        stmt.setInt(1, fleet.getID());
+                        stmt.addBatch();
                     }
-                } catch(Exception e) {
-                    throw new RequestException(e);
+                    stmt.executeBatch();
                 }
 
                 sql = "DELETE FROM fleets WHERE id = ?";
-                ArrayList<BaseFleet> toRemove = new ArrayList<BaseFleet>();
                 try (SqlStmt stmt = prepare(sql)) {
-                    for (BaseFleet baseFleet : star.getFleets()) {
-                        if (baseFleet.getTimeDestroyed() != null && baseFleet.getTimeDestroyed().isBefore(now)) {
-                            Fleet fleet = (Fleet) baseFleet;
-                            stmt.setInt(1, fleet.getID());
-                            stmt.update();
-                            toRemove.add(baseFleet);
-                        }
+                    for (Fleet fleet : toDelete) {
+                        stmt.setInt(1, fleet.getID());
+                        stmt.addBatch();
+                        forgetRow(star, fleetRowKey(fleet));
                     }
-
-                    star.getFleets().removeAll(toRemove);
-                } catch(Exception e) {
-                    throw new RequestException(e);
+                    stmt.executeBatch();
                 }
+                star.getFleets().removeAll(toDelete);
             }
         }
 
         private void updateFleetUpgrades(Star star) throws Exception {
+            if (star.getPersistedRows() == null) {
+                // we don't know what's in the database already, so just replace everything
+                replaceFleetUpgrades(star);
+                return;
+            }
+
+            // work out which upgrades have been added, changed or removed since we last saved
+            HashMap<String, Object[]> upgrades = new HashMap<String, Object[]>();
+            DateTime now = DateTime.now();
+            for (BaseFleet baseFleet : star.getFleets()) {
+                if (baseFleet.getUpgrades() == null || baseFleet.getUpgrades().isEmpty()) {
+                    continue;
+                }
+                if (baseFleet.getTimeDestroyed() != null && baseFleet.getTimeDestroyed().isBefore(now)) {
+                    continue;
+                }
+
+                Fleet fleet = (Fleet) baseFleet;
+                for (BaseFleetUpgrade upgrade : fleet.getUpgrades()) {
+                    upgrades.put(fleetUpgradeRowKey(fleet.getID(), upgrade.getUpgradeID()),
+                            new Object[] {star.getID(), fleet.getID(), upgrade.getUpgradeID(),
+                                    upgrade.getExtra()});
+                }
+            }
+
+            ArrayList<Object[]> removed = new ArrayList<Object[]>();
+            Iterator<Map.Entry<String, Object[]>> it = star.getPersistedRows().entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Object[]> entry = it.next();
+                if (entry.getKey().startsWith(FLEET_UPGRADE_ROW_PREFIX)
+                        && !upgrades.containsKey(entry.getKey())) {
+                    removed.add(entry.getValue());
+                    it.remove();
+                }
+            }
+
+            ArrayList<Object[]> changed = new ArrayList<Object[]>();
+            for (Map.Entry<String, Object[]> entry : upgrades.entrySet()) {
+                if (checkAndRecordRow(star, entry.getKey(), entry.getValue())) {
+                    changed.add(entry.getValue());
+                }
+            }
+
+            if (!removed.isEmpty()) {
+                String sql = "DELETE FROM fleet_upgrades WHERE star_id = ? AND fleet_id = ? AND upgrade_id = ?";
+                try (SqlStmt stmt = prepare(sql)) {
+                    for (Object[] row : removed) {
+                        stmt.setInt(1, (Integer) row[0]);
+                        stmt.setInt(2, (Integer) row[1]);
+                        stmt.setString(3, (String) row[2]);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+            }
+
+            if (!changed.isEmpty()) {
+                // an upgrade might have already been inserted (e.g. by FleetController.addUpgrade)
+                // or it might belong to a fleet that's just moved here from another star, so we
+                // update any existing row and only insert if there wasn't one.
+                String sql = "UPDATE fleet_upgrades SET star_id = ?, extra = ? WHERE fleet_id = ? AND upgrade_id = ?";
+                try (SqlStmt stmt = prepare(sql)) {
+                    for (Object[] row : changed) {
+                        stmt.setInt(1, (Integer) row[0]);
+                        stmt.setString(2, (String) row[3]);
+                        stmt.setInt(3, (Integer) row[1]);
+                        stmt.setString(4, (String) row[2]);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+
+                sql = "INSERT INTO fleet_upgrades (star_id, fleet_id, upgrade_id, extra)" +
+                     " SELECT ?, ?, ?, ?" +
+                     " WHERE NOT EXISTS (SELECT 1 FROM fleet_upgrades WHERE fleet_id = ? AND upgrade_id = ?)";
+                try (SqlStmt stmt = prepare(sql)) {
+                    for (Object[] row : changed) {
+                        stmt.setInt(1, (Integer) row[0]);
+                        stmt.setInt(2, (Integer) row[1]);
+                        stmt.setString(3, (String) row[2]);
+                        stmt.setString(4, (String) row[3]);
+                        stmt.setInt(5, (Integer) row[1]);
+                        stmt.setString(6, (String) row[2]);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+            }
+        }
+
+        private void replaceFleetUpgrades(Star star) throws Exception {
             String sql = "DELETE FROM fleet_upgrades WHERE star_id = ?";
             try (SqlStmt stmt = prepare(sql)) {
                 stmt.setInt(1, star.getID());
@@ -669,7 +779,7 @@ public class StarController {
             DateTime now = DateTime.now();
             sql = "INSERT INTO fleet_upgrades (star_id, fleet_id, upgrade_id, extra) VALUES (?, ?, ?, ?)";
             try (SqlStmt stmt = prepare(sql)) {
-                stmt.setInt(1, star.getID());
+                boolean haveUpgrades = false;
                 for (BaseFleet baseFleet : star.getFleets()) {
                     if (baseFleet.getUpgrades() == null || baseFleet.getUpgrades().isEmpty()) {
                         continue;
@@ -679,28 +789,140 @@ public class StarController {
                     }
 
                     Fleet fleet = (Fleet) baseFleet;
-                    stmt.setInt(2, fleet.getID());
                     for (BaseFleetUpgrade upgrade : fleet.getUpgrades()) {
+                        stmt.setInt(1, star.getID());
+                        stmt.setInt(2, fleet.getID());
                         stmt.setString(3, upgrade.getUpgradeID());
                         stmt.setString(4, upgrade.getExtra());
-                        stmt.update();
+                        stmt.addBatch();
+                        haveUpgrades = true;
                     }
                 }
+                if (haveUpgrades) {
+                    stmt.executeBatch();
+                }
             }
         }
 
         private void updateBuildRequests(Star star) throws Exception {
+            ArrayList<BuildRequest> dirty = new ArrayList<BuildRequest>();
+            for (BaseBuildRequest baseBuildRequest : star.getBuildRequests()) {
+                BuildRequest buildRequest = (BuildRequest) baseBuildRequest;
+                if (checkAndRecordRow(star, buildRequestRowKey(buildRequest), buildRequestRowValues(buildRequest))) {
+                    dirty.add(buildRequest);
+                }
+            }
+            if (dirty.isEmpty()) {
+                return;
+            }
+
             String sql = "UPDATE build_requests SET progress = ?, end_time = ?, disable_notification = ? WHERE id = ?";
             try (SqlStmt stmt = prepare(sql)) {
-                for (BaseBuildRequest baseBuildRequest : star.getBuildRequests()) {
-                    BuildRequest buildRequest = (BuildRequest) baseBuildRequest;
+                for (BuildRequest buildRequest : dirty) {
                     stmt.setDouble(1, buildRequest.getProgress(false));
                     stmt.setDateTime(2, buildRequest.getEndTime());
                     stmt.setInt(3, buildRequest.getDisableNotification() ? 1 : 0);
                     stmt.setInt(4, buildRequest.getID());
-                    stmt.update();
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+            }
+        }
+
+        /**
+         * Records the current values of all of the given star's child rows, so that the next time
+         * it's saved we only write the rows that have actually changed.
+         */
+        private void snapshotPersistedRows(Star star) {
+            star.setPersistedRows(new HashMap<String, Object[]>());
+            for (BaseEmpirePresence baseEmpire : star.getEmpires()) {
+                EmpirePresence empire = (EmpirePresence) baseEmpire;
+                checkAndRecordRow(star, empireRowKey(empire), empireRowValues(empire));
+            }
+            for (BaseColony baseColony : star.getColonies()) {
+                Colony colony = (Colony) baseColony;
+                checkAndRecordRow(star, colonyRowKey(colony), colonyRowValues(colony));
+            }
+            for (BaseFleet baseFleet : star.getFleets()) {
+                Fleet fleet = (Fleet) baseFleet;
+                checkAndRecordRow(star, fleetRowKey(fleet), fleetRowValues(star, fleet));
+                if (fleet.getUpgrades() == null) {
+                    continue;
+                }
+                for (BaseFleetUpgrade upgrade : fleet.getUpgrades()) {
+                    checkAndRecordRow(star, fleetUpgradeRowKey(fleet.getID(), upgrade.getUpgradeID()),
+                            new Object[] {star.getID(), fleet.getID(), upgrade.getUpgradeID(),
+                                    upgrade.getExtra()});
                 }
             }
+            for (BaseBuildRequest baseBuildRequest : star.getBuildRequests()) {
+                BuildRequest buildRequest = (BuildRequest) baseBuildRequest;
+                checkAndRecordRow(star, buildRequestRowKey(buildRequest), buildRequestRowValues(buildRequest));
+            }
+        }
+
+        /**
+         * Checks whether the row with the given key has changed since it was last loaded or saved
+         * and, if it has, records the new values (on the assumption that the caller will now save
+         * them). If the star wasn't loaded through us, every row is considered dirty.
+         */
+        private static boolean checkAndRecordRow(Star star, String key, Object[] values) {
+            HashMap<String, Object[]> persistedRows = star.getPersistedRows();
+            if (persistedRows == null) {
+                return true;
+            }
+            Object[] persisted = persistedRows.put(key, values);
+            return persisted == null || !Arrays.equals(persisted, values);
+        }
+
+        private static void forgetRow(Star star, String key) {
+            if (star.getPersistedRows() != null) {
+                star.getPersistedRows().remove(key);
+            }
+        }
+
+        private static final String FLEET_UPGRADE_ROW_PREFIX = "fleet_upgrades:";
+
+        private static String empireRowKey(EmpirePresence empire) {
+            return "empire_presences:" + empire.getID();
+        }
+        private static Object[] empireRowValues(EmpirePresence empire) {
+            return new Object[] {empire.getTotalGoods(), empire.getTotalMinerals(),
+                    empire.getTaxPerHour(), millis(empire.getGoodsZeroTime())};
+        }
+
+        private static String colonyRowKey(Colony colony) {
+            return "colonies:" + colony.getID();
+        }
+        private static Object[] colonyRowValues(Colony colony) {
+            return new Object[] {colony.getPopulationFocus(), colony.getConstructionFocus(),
+                    colony.getFarmingFocus(), colony.getMiningFocus(), colony.getPopulation()};
+        }
+
+        private static String fleetRowKey(Fleet fleet) {
+            return "fleets:" + fleet.getID();
+        }
+        private static Object[] fleetRowValues(Star star, Fleet fleet) {
+            return new Object[] {star.getID(), star.getSectorID(), fleet.getNumShips(),
+                    fleet.getStance(), fleet.getState(), millis(fleet.getStateStartTime()),
+                    millis(fleet.getEta()), fleet.getDestinationStarID(), fleet.getTargetFleetID(),
+                    millis(fleet.getTimeDestroyed()), fleet.getNotes()};
+        }
+
+        private static String fleetUpgradeRowKey(int fleetID, String upgradeID) {
+            return FLEET_UPGRADE_ROW_PREFIX + fleetID + ":" + upgradeID;
+        }
+
+        private static String buildRequestRowKey(BuildRequest buildRequest) {
+            return "build_requests:" + buildRequest.getID();
+        }
+        private static Object[] buildRequestRowValues(BuildRequest buildRequest) {
+            return new Object[] {buildRequest.getProgress(false), millis(buildRequest.getEndTime()),
+                    buildRequest.getDisableNotification()};
+        }
+
+        private static Long millis(DateTime dt) {
+            return dt == null ? null : dt.getMillis();
         }
 
         private void updateCombatReport(Star star, CombatReport combatReport) throws Exception {
@@ -726,157 +948,191 @@ public class StarController {
             }
         }
 
-        private void populateColonies(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT * FROM colonies WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    Colony colony = new Colony(res);
-
-                    for (Star star : stars) {
-                        if (star.getID() == colony.getStarID()) {
-                            // max population for the colony is initially just it's congeniality
-                            BasePlanet planet = star.getPlanets()[colony.getPlanetIndex() - 1];
-                            colony.setMaxPopulation(planet.getPopulationCongeniality());
-
-                            star.getColonies().add(colony);
-                        }
+        /**
+         * Runs the queries to populate the colonies, fleets, etc of the given stars. Rows are
+         * attached to their star via a map keyed by star ID. If the server is configured to load
+         * stars in one round-trip, all of the queries are sent as a single multi-statement query.
+         */
+        private void populateStars(List<Star> stars, String inClause) throws Exception {
+            StarIndex index = new StarIndex(stars);
+            String[] sqls = new String[] {
+                "SELECT * FROM empire_presences WHERE star_id IN "+inClause,
+                "SELECT * FROM colonies WHERE star_id IN "+inClause,
+                "SELECT fleets.*, empires.alliance_id" +
+                    " FROM fleets" +
+                    " LEFT OUTER JOIN empires ON empires.id = fleets.empire_id" +
+                    " WHERE star_id IN "+inClause,
+                "SELECT * FROM fleet_upgrades WHERE star_id IN "+inClause,
+                "SELECT * FROM buildings WHERE star_id IN "+inClause,
+                "SELECT * FROM build_requests WHERE star_id IN "+inClause,
+                "SELECT star_id, rounds FROM combat_reports WHERE star_id IN "+inClause +
+                    " AND end_time > ?"
+            };
+
+            TreeMap<Integer, CombatReport> combatReports;
+            if (Configuration.i.getLoadStarsInOneRoundTrip()) {
+                StringBuilder sb = new StringBuilder();
+                for (String sql : sqls) {
+                    if (sb.length() > 0) {
+                        sb.append("; ");
                     }
+                    sb.append(sql);
+                }
+                try (SqlStmt stmt = prepare(sb.toString())) {
+                    stmt.setDateTime(1, DateTime.now());
+                    List<SqlResult> results = stmt.selectMultiple();
+                    populateEmpires(index, results.get(0));
+                    populateColonies(index, results.get(1));
+                    populateFleets(index, results.get(2));
+                    populateFleetUpgrades(index, results.get(3));
+                    populateBuildings(index, results.get(4));
+                    populateBuildRequests(index, results.get(5));
+                    combatReports = fetchCombatReports(results.get(6));
+                }
+            } else {
+                try (SqlStmt stmt = prepare(sqls[0])) {
+                    populateEmpires(index, stmt.select());
+                }
+                try (SqlStmt stmt = prepare(sqls[1])) {
+                    populateColonies(index, stmt.select());
+                }
+                try (SqlStmt stmt = prepare(sqls[2])) {
+                    populateFleets(index, stmt.select());
+                }
+                try (SqlStmt stmt = prepare(sqls[3])) {
+                    populateFleetUpgrades(index, stmt.select());
+                }
+                try (SqlStmt stmt = prepare(sqls[4])) {
+                    populateBuildings(index, stmt.select());
+                }
+                try (SqlStmt stmt = prepare(sqls[5])) {
+                    populateBuildRequests(index, stmt.select());
+                }
+                try (SqlStmt stmt = prepare(sqls[6])) {
+                    stmt.setDateTime(1, DateTime.now());
+                    combatReports = fetchCombatReports(stmt.select());
                 }
             }
-        }
 
-        private void populateFleets(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT fleets.*, empires.alliance_id" +
-                        " FROM fleets" +
-                        " LEFT OUTER JOIN empires ON empires.id = fleets.empire_id" +
-                        " WHERE star_id IN "+inClause;
-
-            ArrayList<Fleet> fleets = new ArrayList<Fleet>();
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
-
-                while (res.next()) {
-                    Fleet fleet = new Fleet(res);
-                    fleets.add(fleet);
+            for (Star star : stars) {
+                snapshotPersistedRows(star);
+            }
+            EmpireRankCounters.i.onStarsLoaded(stars);
+            checkNativeColonies(stars);
 
-                    for (Star star : stars) {
-                        if (star.getID() == fleet.getStarID()) {
-                            star.getFleets().add(fleet);
-                        }
-                    }
+            for (Map.Entry<Integer, CombatReport> entry : combatReports.entrySet()) {
+                Star star = index.stars.get(entry.getKey());
+                if (star != null) {
+                    star.setCombatReport(entry.getValue());
                 }
             }
+        }
 
-            sql = "SELECT * FROM fleet_upgrades WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
+        private void populateColonies(StarIndex index, SqlResult res) throws Exception {
+            while (res.next()) {
+                Colony colony = new Colony(res);
 
-                while (res.next()) {
-                    FleetUpgrade fleetUpgrade = FleetUpgrade.create(res);
+                Star star = index.stars.get(colony.getStarID());
+                if (star != null) {
+                    // max population for the colony is initially just it's congeniality
+                    BasePlanet planet = star.getPlanets()[colony.getPlanetIndex() - 1];
+                    colony.setMaxPopulation(planet.getPopulationCongeniality());
 
-                    for (Fleet fleet : fleets) {
-                        if (fleet.getID() == fleetUpgrade.getFleetID()) {
-                            fleet.getUpgrades().add(fleetUpgrade);
-                            break;
-                        }
-                    }
+                    star.getColonies().add(colony);
+                    index.colonies.put(colony.getID(), colony);
                 }
             }
         }
 
-        private void populateEmpires(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT * FROM empire_presences WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
+        private void populateFleets(StarIndex index, SqlResult res) throws Exception {
+            while (res.next()) {
+                Fleet fleet = new Fleet(res);
+                index.fleets.put(fleet.getID(), fleet);
 
-                while (res.next()) {
-                    EmpirePresence empirePresence = new EmpirePresence(res);
+                Star star = index.stars.get(fleet.getStarID());
+                if (star != null) {
+                    star.getFleets().add(fleet);
+                }
+            }
+        }
 
-                    for (Star star : stars) {
-                        if (star.getID() == empirePresence.getStarID()) {
-                            // by default, you get 500 max goods/minerals
-                            empirePresence.setMaxGoods(500);
-                            empirePresence.setMaxMinerals(500);
+        private void populateFleetUpgrades(StarIndex index, SqlResult res) throws Exception {
+            while (res.next()) {
+                FleetUpgrade fleetUpgrade = FleetUpgrade.create(res);
 
-                            star.getEmpirePresences().add(empirePresence);
-                        }
-                    }
+                Fleet fleet = index.fleets.get(fleetUpgrade.getFleetID());
+                if (fleet != null) {
+                    fleet.getUpgrades().add(fleetUpgrade);
                 }
             }
         }
 
-        private void populateBuildRequests(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT * FROM build_requests WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
+        private void populateEmpires(StarIndex index, SqlResult res) throws Exception {
+            while (res.next()) {
+                EmpirePresence empirePresence = new EmpirePresence(res);
 
-                while (res.next()) {
-                    int starID = res.getInt("star_id");
-                    Star star = null;
-                    for (Star thisStar : stars) {
-                        if (thisStar.getID() == starID) {
-                            star = thisStar;
-                            break;
-                        }
-                    }
+                Star star = index.stars.get(empirePresence.getStarID());
+                if (star != null) {
+                    // by default, you get 500 max goods/minerals
+                    empirePresence.setMaxGoods(500);
+                    empirePresence.setMaxMinerals(500);
 
-                    BuildRequest buildRequest = new BuildRequest(star, res);
-                    if (star != null) {
-                        star.getBuildRequests().add(buildRequest);
-                    }
+                    star.getEmpirePresences().add(empirePresence);
                 }
             }
         }
 
-        private void populateBuildings(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT * FROM buildings WHERE star_id IN "+inClause;
-            try (SqlStmt stmt = prepare(sql)) {
-                SqlResult res = stmt.select();
+        private void populateBuildRequests(StarIndex index, SqlResult res) throws Exception {
+            while (res.next()) {
+                Star star = index.stars.get(res.getInt("star_id"));
 
-                while (res.next()) {
-                    Building building = new Building(res);
-
-                    for (Star star : stars) {
-                        for (BaseColony baseColony : star.getColonies()) {
-                            Colony colony = (Colony) baseColony;
-                            if (colony.getID() == building.getColonyID()) {
-                                for (Design.Effect effect : building.getDesign().getEffects(building.getLevel())) {
-                                    BuildingEffect buildingEffect = (BuildingEffect) effect;
-                                    buildingEffect.apply(star, colony, building);
-                                }
-                                colony.getBuildings().add(building);
-                            }
-                        }
-                    }
+                BuildRequest buildRequest = new BuildRequest(star, res);
+                if (star != null) {
+                    star.getBuildRequests().add(buildRequest);
                 }
             }
         }
 
-        private void populateCombatReports(List<Star> stars, String inClause) throws Exception {
-            String sql = "SELECT star_id, rounds FROM combat_reports WHERE star_id IN "+inClause;
-            sql += " AND end_time > ?";
-            try (SqlStmt stmt = prepare(sql)) {
-                stmt.setDateTime(1, DateTime.now());
-                SqlResult res = stmt.select();
+        private void populateBuildings(StarIndex index, SqlResult res) throws Exception {
+            while (res.next()) {
+                Building building = new Building(res);
 
-                while (res.next()) {
-                    int starID = res.getInt(1);
-                    Messages.CombatReport pb = Messages.CombatReport.parseFrom(res.getBytes(2));
-                    CombatReport combatReport = new CombatReport();
-                    combatReport.fromProtocolBuffer(pb);
-
-                    for (Star star : stars) {
-                        if (star.getID() == starID) {
-                            star.setCombatReport(combatReport);
-                        }
+                Colony colony = index.colonies.get(building.getColonyID());
+                if (colony != null) {
+                    Star star = index.stars.get(colony.getStarID());
+                    for (Design.Effect effect : building.getDesign().getEffects(building.getLevel())) {
+                        BuildingEffect buildingEffect = (BuildingEffect) effect;
+                        buildingEffect.apply(star, colony, building);
                     }
+                    colony.getBuildings().add(building);
                 }
             }
-            
         }
 
+        private TreeMap<Integer, CombatReport> fetchCombatReports(SqlResult res) throws Exception {
+            TreeMap<Integer, CombatReport> combatReports = new TreeMap<Integer, CombatReport>();
+            while (res.next()) {
+                int starID = res.getInt(1);
+                Messages.CombatReport pb = Messages.CombatReport.parseFrom(res.getBytes(2));
+                CombatReport combatReport = new CombatReport();
+                combatReport.fromProtocolBuffer(pb);
+                combatReports.put(starID, combatReport);
+            }
+            return combatReports;
+        }
+
+        /** Lookups from ID to the stars (and their colonies and fleets) that we're populating. */
+        private static class StarIndex {
+            public final HashMap<Integer, Star> stars = new HashMap<Integer, Star>();
+            public final HashMap<Integer, Colony> colonies = new HashMap<Integer, Colony>();
+            public final HashMap<Integer, Fleet> fleets = new HashMap<Integer, Fleet>();
+
+            public StarIndex(List<Star> stars) {
+                for (Star star : stars) {
+                    this.stars.put(star.getID(), star);
+                }
+            }
+        }
         /**
          * Checks if any of the stars in the given list need native colonies added, and adds them
          * if so.
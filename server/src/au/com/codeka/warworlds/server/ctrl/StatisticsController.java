@@ -1,11 +1,18 @@
 package au.com.codeka.warworlds.server.ctrl;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
 
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 import au.com.codeka.warworlds.server.data.Transaction;
+import au.com.codeka.warworlds.server.utils.HyperLogLog;
 
 public class StatisticsController {
     private DataBase db;
@@ -28,6 +35,31 @@ public class StatisticsController {
         }
     }
 
+    /**
+     * Merges the given per-day sketches of active empires into the ones we've already saved. See
+     * {@link ActiveEmpireCounters}.
+     */
+    public void mergeActiveEmpireSketches(Map<DateMidnight, HyperLogLog> sketches)
+            throws RequestException {
+        try {
+            for (Map.Entry<DateMidnight, HyperLogLog> entry : sketches.entrySet()) {
+                db.mergeActiveEmpireSketch(entry.getKey(), entry.getValue());
+            }
+        } catch(Exception e) {
+            throw new RequestException(e);
+        }
+    }
+
+    /** Gets the saved per-day sketches of active empires between the given dates (inclusive). */
+    public List<HyperLogLog> getActiveEmpireSketches(DateMidnight from, DateMidnight to)
+            throws RequestException {
+        try {
+            return db.getActiveEmpireSketches(from, to);
+        } catch(Exception e) {
+            throw new RequestException(e);
+        }
+    }
+
     private static class DataBase extends BaseDataBase {
         public DataBase() {
             super();
@@ -51,5 +83,46 @@ public class StatisticsController {
                 stmt.update();
             }
         }
+
+        public void mergeActiveEmpireSketch(DateMidnight date, HyperLogLog sketch) throws Exception {
+            HyperLogLog existing = null;
+            String sql = "SELECT sketch FROM active_empire_sketches WHERE date = ? FOR UPDATE";
+            try (SqlStmt stmt = prepare(sql)) {
+                stmt.setDateTime(1, date);
+                SqlResult res = stmt.select();
+                if (res.next()) {
+                    existing = new HyperLogLog(res.getBytes(1));
+                }
+            }
+
+            if (existing == null) {
+                sql = "INSERT INTO active_empire_sketches (sketch, date) VALUES (?, ?)";
+            } else {
+                existing.merge(sketch);
+                sketch = existing;
+                sql = "UPDATE active_empire_sketches SET sketch = ? WHERE date = ?";
+            }
+            try (SqlStmt stmt = prepare(sql)) {
+                stmt.setBytes(1, sketch.toByteArray());
+                stmt.setDateTime(2, date);
+                stmt.update();
+            }
+        }
+
+        public List<HyperLogLog> getActiveEmpireSketches(DateMidnight from, DateMidnight to)
+                throws Exception {
+            ArrayList<HyperLogLog> sketches = new ArrayList<HyperLogLog>();
+            String sql = "SELECT sketch FROM active_empire_sketches" +
+                        " WHERE date >= ? AND date <= ?";
+            try (SqlStmt stmt = prepare(sql)) {
+                stmt.setDateTime(1, from);
+                stmt.setDateTime(2, to);
+                SqlResult res = stmt.select();
+                while (res.next()) {
+                    sketches.add(new HyperLogLog(res.getBytes(1)));
+                }
+            }
+            return sketches;
+        }
     }
 }
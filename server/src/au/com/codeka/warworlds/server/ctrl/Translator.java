@@ -0,0 +1,17 @@
+package au.com.codeka.warworlds.server.ctrl;
+
+import java.io.IOException;
+
+/**
+ * Something that can translate strings to English. Usually that's {@link GoogleTranslator}, but
+ * we can also use a {@link FakeTranslator} when testing offline.
+ */
+public interface Translator {
+    /**
+     * Translates the given string to English. This may block while we talk to the translation
+     * service.
+     *
+     * @return The translated string, or null if it couldn't be translated.
+     */
+    String translate(String source) throws IOException;
+}
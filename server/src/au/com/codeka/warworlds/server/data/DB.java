@@ -56,19 +56,83 @@ public class DB {
     }
   }
 
+  /**
+   * Begins a {@link UnitOfWork} on the current thread. Until it's closed, all statements prepared
+   * through {@link #prepare} on this thread will share a single connection.
+   */
+  public static UnitOfWork beginUnitOfWork() {
+    return UnitOfWork.begin();
+  }
+
   public static SqlStmt prepare(String sql) throws SQLException {
-    Connection conn = dataSource.getConnection();
+    UnitOfWork unitOfWork = UnitOfWork.current();
+    if (unitOfWork != null) {
+      return unitOfWork.prepare(sql);
+    }
+
+    Connection conn = getConnection(sql);
     return new SqlStmt(conn, sql, conn.prepareStatement(sql), true);
   }
 
   public static SqlStmt prepare(String sql, int autoGenerateKeys)
       throws SQLException {
-    Connection conn = dataSource.getConnection();
+    UnitOfWork unitOfWork = UnitOfWork.current();
+    if (unitOfWork != null) {
+      return unitOfWork.prepare(sql, autoGenerateKeys);
+    }
+
+    Connection conn = getConnection(sql);
     return new SqlStmt(conn, sql,
         conn.prepareStatement(sql, autoGenerateKeys), true);
   }
 
+  /**
+   * Begins a {@link Transaction}. If there's a {@link UnitOfWork} on the current thread, the
+   * transaction uses it's connection rather than checking out another one.
+   */
   public static Transaction beginTransaction() throws SQLException {
-    return new Transaction(dataSource.getConnection());
+    UnitOfWork unitOfWork = UnitOfWork.current();
+    if (unitOfWork != null) {
+      return unitOfWork.beginTransaction();
+    }
+    return new Transaction(getConnection(null));
+  }
+
+  /**
+   * Runs the given {@link Runnable} after the transaction that's open on the current thread's
+   * {@link UnitOfWork} is committed, or straight away if there isn't one (since statements
+   * prepared through {@link #prepare} are then committed as soon as they're executed).
+   */
+  public static void runAfterCommit(Runnable runnable) {
+    UnitOfWork unitOfWork = UnitOfWork.current();
+    if (unitOfWork != null && unitOfWork.getTransaction() != null) {
+      unitOfWork.getTransaction().runAfterCommit(runnable);
+    } else {
+      runnable.run();
+    }
+  }
+
+  /**
+   * Runs the given {@link Runnable} if the transaction that's open on the current thread's
+   * {@link UnitOfWork} is rolled back. If there isn't one, it's never run, since statements
+   * prepared through {@link #prepare} are committed as soon as they're executed.
+   */
+  public static void runAfterRollback(Runnable runnable) {
+    UnitOfWork unitOfWork = UnitOfWork.current();
+    if (unitOfWork != null && unitOfWork.getTransaction() != null) {
+      unitOfWork.getTransaction().runAfterRollback(runnable);
+    }
+  }
+
+  /**
+   * Gets a connection from the pool, keeping track of how long we had to wait for it. {@code sql}
+   * is the statement we're going to execute, or null if we don't know.
+   */
+  static Connection getConnection(String sql) throws SQLException {
+    long startTime = System.nanoTime();
+    Connection conn = dataSource.getConnection();
+    SqlStats.i.recordConnectionWait(sql == null ? null : SqlStats.i.getKey(sql),
+        System.nanoTime() - startTime);
+    return conn;
   }
 }
@@ -10,6 +10,7 @@ import org.joda.time.DateTimeZone;
 /** Wrapper around a {@link ResultSet}. */
 public class SqlResult {
     private ResultSet mResultSet;
+    private long mNumRowsRead;
 
     SqlResult(ResultSet rs) {
         mResultSet = rs;
@@ -20,7 +21,16 @@ public class SqlResult {
     }
 
     public boolean next() throws SQLException {
-        return mResultSet.next();
+        if (mResultSet.next()) {
+            mNumRowsRead++;
+            return true;
+        }
+        return false;
+    }
+
+    /** Gets the number of rows that have been read from this result so far. */
+    long getNumRowsRead() {
+        return mNumRowsRead;
     }
 
     public Integer getInt(int position) throws SQLException {
@@ -0,0 +1,260 @@
+package au.com.codeka.warworlds.server.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTime;
+
+import au.com.codeka.common.Log;
+
+/**
+ * Collects timing statistics for every statement executed through {@link SqlStmt}. Statements are
+ * keyed by their "normalized" SQL (i.e. with literal numbers and IN lists replaced by "?"), so
+ * that statements that only differ by the IDs they reference are counted together.
+ *
+ * <p>Normalizing is a couple of regular expressions, so we don't want to do it for every
+ * execution. Callers get the key for their SQL once with {@link #getKey} (which caches it) and pass
+ * that to the {@code record*} methods.
+ */
+public class SqlStats {
+  private static final Log log = new Log("SqlStats");
+  public static final SqlStats i = new SqlStats();
+
+  /** Statements that take longer than this are logged, and kept in the slow query log. */
+  private static final long SLOW_QUERY_NANOS = 500 * 1000000L;
+
+  /** The maximum number of entries we'll keep in the slow query log. */
+  private static final int MAX_SLOW_QUERIES = 100;
+
+  /**
+   * Upper bound (in milliseconds) of each histogram bucket. The final bucket counts everything
+   * longer than the last value here.
+   */
+  private static final long[] HISTOGRAM_BUCKETS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000,
+      2000, 5000};
+
+  private static final Pattern NUMBER_PATTERN = Pattern.compile("\\b[0-9]+\\b");
+  private static final Pattern IN_LIST_PATTERN = Pattern.compile("\\(\\s*\\?(\\s*,\\s*\\?)*\\s*\\)");
+
+  /**
+   * The maximum number of keys we'll cache. Most statements use parameters, so there aren't many
+   * distinct ones, but this stops statements with inlined IDs from growing the cache forever.
+   */
+  private static final int MAX_CACHED_KEYS = 10000;
+
+  private final ConcurrentHashMap<String, String> keys = new ConcurrentHashMap<String, String>();
+
+  private final ConcurrentHashMap<String, StatementStats> stats =
+      new ConcurrentHashMap<String, StatementStats>();
+  private final ArrayDeque<SlowQuery> slowQueries = new ArrayDeque<SlowQuery>();
+  private final AtomicLong totalConnectionWaitNanos = new AtomicLong();
+  private final AtomicLong totalConnections = new AtomicLong();
+  private DateTime startTime = DateTime.now();
+
+  /**
+   * Gets the key that the stats for the given SQL are recorded under, i.e. the normalized SQL.
+   */
+  public String getKey(String sql) {
+    String key = keys.get(sql);
+    if (key == null) {
+      key = normalize(sql);
+      if (keys.size() < MAX_CACHED_KEYS) {
+        keys.putIfAbsent(sql, key);
+      }
+    }
+    return key;
+  }
+
+  /**
+   * Records the execution of a statement that took the given number of nanoseconds.
+   *
+   * @param key The statement's key, from {@link #getKey}.
+   */
+  public void recordExecution(String key, long nanos, long rows) {
+    StatementStats statementStats = getStats(key);
+    statementStats.record(nanos, rows);
+
+    if (nanos > SLOW_QUERY_NANOS) {
+      log.warning("Slow query (%dms): %s", nanos / 1000000L, key);
+      synchronized (slowQueries) {
+        slowQueries.addFirst(new SlowQuery(statementStats.sql, nanos, DateTime.now()));
+        while (slowQueries.size() > MAX_SLOW_QUERIES) {
+          slowQueries.removeLast();
+        }
+      }
+    }
+  }
+
+  /**
+   * Records the number of rows that were read from the result of the given (SELECT) statement.
+   * We don't know this until the statement's results have been iterated.
+   */
+  public void recordRows(String key, long rows) {
+    getStats(key).rows.addAndGet(rows);
+  }
+
+  /**
+   * Records how long we waited for a connection from the pool. If {@code key} is non-null, it's the
+   * key (from {@link #getKey}) of the statement that we were waiting to execute.
+   */
+  public void recordConnectionWait(String key, long nanos) {
+    totalConnectionWaitNanos.addAndGet(nanos);
+    totalConnections.incrementAndGet();
+    if (key != null) {
+      getStats(key).connectionWaitNanos.addAndGet(nanos);
+    }
+  }
+
+  /** Gets a snapshot of the stats for every statement we've seen since the last reset. */
+  public List<StatementStats> getStatementStats() {
+    return new ArrayList<StatementStats>(stats.values());
+  }
+
+  public List<SlowQuery> getSlowQueries() {
+    synchronized (slowQueries) {
+      return new ArrayList<SlowQuery>(slowQueries);
+    }
+  }
+
+  public long getTotalConnectionWaitNanos() {
+    return totalConnectionWaitNanos.get();
+  }
+
+  public long getTotalConnections() {
+    return totalConnections.get();
+  }
+
+  public DateTime getStartTime() {
+    return startTime;
+  }
+
+  public static long[] getHistogramBucketsMs() {
+    return HISTOGRAM_BUCKETS_MS;
+  }
+
+  /** Clears all of the stats we've collected so far. */
+  public void reset() {
+    stats.clear();
+    synchronized (slowQueries) {
+      slowQueries.clear();
+    }
+    totalConnectionWaitNanos.set(0);
+    totalConnections.set(0);
+    startTime = DateTime.now();
+  }
+
+  private StatementStats getStats(String key) {
+    StatementStats statementStats = stats.get(key);
+    if (statementStats == null) {
+      statementStats = new StatementStats(key);
+      StatementStats existing = stats.putIfAbsent(key, statementStats);
+      if (existing != null) {
+        statementStats = existing;
+      }
+    }
+    return statementStats;
+  }
+
+  /** Normalizes the given SQL so that "SELECT ... IN (1, 2, 3)" becomes "SELECT ... IN (?)". */
+  static String normalize(String sql) {
+    String normalized = NUMBER_PATTERN.matcher(sql).replaceAll("?");
+    return IN_LIST_PATTERN.matcher(normalized).replaceAll("(?)");
+  }
+
+  /** The stats we've collected for a single (normalized) statement. */
+  public static class StatementStats {
+    private final String sql;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+    private final AtomicLong connectionWaitNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_BUCKETS_MS.length + 1);
+
+    private StatementStats(String sql) {
+      this.sql = sql;
+    }
+
+    private void record(long nanos, long numRows) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      if (numRows > 0) {
+        rows.addAndGet(numRows);
+      }
+
+      long max = maxNanos.get();
+      while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+        max = maxNanos.get();
+      }
+
+      long ms = nanos / 1000000L;
+      int bucket = 0;
+      while (bucket < HISTOGRAM_BUCKETS_MS.length && ms >= HISTOGRAM_BUCKETS_MS[bucket]) {
+        bucket++;
+      }
+      histogram.incrementAndGet(bucket);
+    }
+
+    public String getSql() {
+      return sql;
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public long getTotalNanos() {
+      return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+      return maxNanos.get();
+    }
+
+    public long getRows() {
+      return rows.get();
+    }
+
+    public long getConnectionWaitNanos() {
+      return connectionWaitNanos.get();
+    }
+
+    public long[] getHistogram() {
+      long[] values = new long[histogram.length()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = histogram.get(i);
+      }
+      return values;
+    }
+  }
+
+  /** An entry in the slow query log. */
+  public static class SlowQuery {
+    private final String sql;
+    private final long nanos;
+    private final DateTime time;
+
+    private SlowQuery(String sql, long nanos, DateTime time) {
+      this.sql = sql;
+      this.nanos = nanos;
+      this.time = time;
+    }
+
+    public String getSql() {
+      return sql;
+    }
+
+    public long getNanos() {
+      return nanos;
+    }
+
+    public DateTime getTime() {
+      return time;
+    }
+  }
+}
@@ -4,10 +4,12 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.util.TimeZone;
 
 import org.joda.time.ReadableInstant;
@@ -29,21 +31,36 @@ public class SqlStmt implements AutoCloseable {
     private PreparedStatement mStmt;
     private boolean mAutoCloseConnection;
     private String mSql;
+    private String mStatsKey;
     private ArrayList<Object> mParameters;
     private ArrayList<SqlResult> mResults;
     private boolean mWasStatementLogged;
+    private UnitOfWork mUnitOfWork;
+    private String mUnitOfWorkKey;
 
     public SqlStmt(Connection conn, String sql, PreparedStatement stmt,
             boolean autoCloseConnection) {
         mConn = conn;
         mStmt = stmt;
         mSql = sql;
+        mStatsKey = SqlStats.i.getKey(sql);
         mAutoCloseConnection = autoCloseConnection;
         mParameters = new ArrayList<Object>();
         mResults = new ArrayList<SqlResult>();
         mWasStatementLogged = false;
     }
 
+    /**
+     * Constructs a {@link SqlStmt} that belongs to the given {@link UnitOfWork}. When it's closed,
+     * the statement is handed back to the unit of work (so it can be reused) rather than closed.
+     */
+    SqlStmt(Connection conn, String sql, PreparedStatement stmt, UnitOfWork unitOfWork,
+            String unitOfWorkKey) {
+        this(conn, sql, stmt, false);
+        mUnitOfWork = unitOfWork;
+        mUnitOfWorkKey = unitOfWorkKey;
+    }
+
     public void setInt(int position, int value) throws SQLException {
         mStmt.setInt(position, value);
         saveParameter(position, value);
@@ -122,7 +139,32 @@ public class SqlStmt implements AutoCloseable {
      */
     public int update() throws SQLException {
         logStatement();
-        return mStmt.executeUpdate();
+        long startTime = System.nanoTime();
+        int numRows = mStmt.executeUpdate();
+        SqlStats.i.recordExecution(mStatsKey, System.nanoTime() - startTime, numRows);
+        return numRows;
+    }
+
+    /**
+     * Adds the current set of parameters to this statement's batch. Call {@link #executeBatch} to
+     * execute all of the batched parameter sets in one round-trip.
+     */
+    public void addBatch() throws SQLException {
+        mStmt.addBatch();
+    }
+
+    public int[] executeBatch() throws SQLException {
+        logStatement();
+        long startTime = System.nanoTime();
+        int[] counts = mStmt.executeBatch();
+        long numRows = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                numRows += count;
+            }
+        }
+        SqlStats.i.recordExecution(mStatsKey, System.nanoTime() - startTime, numRows);
+        return counts;
     }
 
     public int getAutoGeneratedID() throws SQLException {
@@ -146,11 +188,14 @@ public class SqlStmt implements AutoCloseable {
         logStatement();
 
         ResultSet rs = null;
+        long startTime = System.nanoTime();
         try {
             rs = mStmt.executeQuery();
             if (rs.next()) {
+                SqlStats.i.recordExecution(mStatsKey, System.nanoTime() - startTime, 1);
                 return (T) rs.getObject(1);
             }
+            SqlStats.i.recordExecution(mStatsKey, System.nanoTime() - startTime, 0);
             return null;
         } finally {
             if (rs != null) rs.close();
@@ -160,7 +205,9 @@ public class SqlStmt implements AutoCloseable {
     public SqlResult select() throws SQLException {
         logStatement();
 
+        long startTime = System.nanoTime();
         SqlResult result = new SqlResult(mStmt.executeQuery());
+        SqlStats.i.recordExecution(mStatsKey, System.nanoTime() - startTime, 0);
         mResults.add(result);
         return result;
     }
@@ -172,7 +219,9 @@ public class SqlStmt implements AutoCloseable {
      */
     public SqlResult updateAndSelect() throws SQLException {
         logStatement();
+        long startTime = System.nanoTime();
         mStmt.execute();
+        SqlStats.i.recordExecution(mStatsKey, System.nanoTime() - startTime, 0);
 
         do {
             SqlResult res = new SqlResult(mStmt.getResultSet());
@@ -181,6 +230,28 @@ public class SqlStmt implements AutoCloseable {
         } while (mStmt.getMoreResults());
     }
 
+    /**
+     * Executes a statement that's made up of multiple SELECTs (separated by semicolons) in a
+     * single round-trip, and returns the result of each one, in order.
+     */
+    public List<SqlResult> selectMultiple() throws SQLException {
+        logStatement();
+
+        ArrayList<SqlResult> results = new ArrayList<SqlResult>();
+        long startTime = System.nanoTime();
+        boolean isResultSet = mStmt.execute();
+        while (isResultSet || mStmt.getUpdateCount() != -1) {
+            if (isResultSet) {
+                SqlResult res = new SqlResult(mStmt.getResultSet());
+                mResults.add(res);
+                results.add(res);
+            }
+            isResultSet = mStmt.getMoreResults(Statement.KEEP_CURRENT_RESULT);
+        }
+        SqlStats.i.recordExecution(mStatsKey, System.nanoTime() - startTime, 0);
+        return results;
+    }
+
     private void logStatement() {
         if (mWasStatementLogged) {
             return;
@@ -203,10 +274,19 @@ public class SqlStmt implements AutoCloseable {
     public void close() throws Exception {
         logStatement();
 
+        long numRows = 0;
         for (SqlResult res : mResults) {
+            numRows += res.getNumRowsRead();
             res.close();
         }
-        mStmt.close();
+        if (!mResults.isEmpty()) {
+            SqlStats.i.recordRows(mStatsKey, numRows);
+        }
+        if (mUnitOfWork != null) {
+            mUnitOfWork.release(mUnitOfWorkKey, mStmt);
+        } else {
+            mStmt.close();
+        }
         if (mAutoCloseConnection) {
             mConn.close();
         }
@@ -2,16 +2,45 @@ package au.com.codeka.warworlds.server.data;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+
+import au.com.codeka.common.Log;
 
 public class Transaction implements AutoCloseable {
+    private static final Log log = new Log("Transaction");
+
     private Connection mConnection;
+    private UnitOfWork mUnitOfWork;
+    private Transaction mParent;
+    private Savepoint mSavepoint;
     private boolean mWasCommitted;
+    private ArrayList<Runnable> mAfterCommit = new ArrayList<Runnable>();
+    private ArrayList<Runnable> mAfterRollback = new ArrayList<Runnable>();
 
     public Transaction(Connection conn) throws SQLException {
         mConnection = conn;
         mConnection.setAutoCommit(false);
     }
 
+    /**
+     * Constructs a {@link Transaction} on the connection bound to the given {@link UnitOfWork}.
+     * When it's closed, the connection is handed back to the unit of work rather than closed. If
+     * there's already a transaction open on the connection ({@code parent}), this one is nested
+     * inside it as a savepoint: committing it just releases the savepoint, and rolling it back
+     * only undoes what was done since the savepoint.
+     */
+    Transaction(Connection conn, UnitOfWork unitOfWork, Transaction parent) throws SQLException {
+        mConnection = conn;
+        mUnitOfWork = unitOfWork;
+        mParent = parent;
+        if (parent != null) {
+            mSavepoint = conn.setSavepoint();
+        } else {
+            mConnection.setAutoCommit(false);
+        }
+    }
+
     public SqlStmt prepare(String sql) throws SQLException {
         return new SqlStmt(mConnection, sql, mConnection.prepareStatement(sql), false);
     }
@@ -20,22 +49,104 @@ public class Transaction implements AutoCloseable {
         return new SqlStmt(mConnection, sql, mConnection.prepareStatement(sql, autoGenerateKeys), false);
     }
 
+    /**
+     * Runs the given {@link Runnable} once this transaction has been committed (or, if it's nested
+     * inside another one, once the outermost transaction has been committed). If the transaction is
+     * rolled back instead, it's never run. Use this for things like invalidating caches, which
+     * shouldn't happen until everybody else can see the new data.
+     */
+    public void runAfterCommit(Runnable runnable) {
+        mAfterCommit.add(runnable);
+    }
+
+    /**
+     * Runs the given {@link Runnable} if this transaction is rolled back (or closed without being
+     * committed). If it's nested inside another one and committed, it's run if the outer one is
+     * rolled back instead.
+     */
+    public void runAfterRollback(Runnable runnable) {
+        mAfterRollback.add(runnable);
+    }
+
     public void commit() throws SQLException {
-        mConnection.commit();
+        if (mSavepoint != null) {
+            mConnection.releaseSavepoint(mSavepoint);
+            mParent.mAfterCommit.addAll(mAfterCommit);
+            mParent.mAfterRollback.addAll(mAfterRollback);
+        } else {
+            mConnection.commit();
+            for (Runnable runnable : mAfterCommit) {
+                try {
+                    runnable.run();
+                } catch (Exception e) {
+                    log.error("Error running after-commit hook.", e);
+                }
+            }
+        }
+        mAfterCommit.clear();
+        mAfterRollback.clear();
         mWasCommitted = true;
     }
 
     public void rollback() throws SQLException {
-        mConnection.rollback();
+        mAfterCommit.clear();
         mWasCommitted = true;
+        try {
+            if (mSavepoint != null) {
+                mConnection.rollback(mSavepoint);
+            } else {
+                mConnection.rollback();
+            }
+        } finally {
+            runAfterRollbackHooks();
+        }
+    }
+
+    private void runAfterRollbackHooks() {
+        for (Runnable runnable : mAfterRollback) {
+            try {
+                runnable.run();
+            } catch (Exception e) {
+                log.error("Error running after-rollback hook.", e);
+            }
+        }
+        mAfterRollback.clear();
     }
 
     @Override
     public void close() throws Exception {
-        if (!mWasCommitted) {
-            mConnection.rollback();
+        try {
+            if (mSavepoint != null) {
+                if (!mWasCommitted) {
+                    mConnection.rollback(mSavepoint);
+                }
+            } else {
+                if (!mWasCommitted) {
+                    mConnection.rollback();
+                }
+                mConnection.setAutoCommit(true);
+            }
+        } finally {
+            if (!mWasCommitted) {
+                runAfterRollbackHooks();
+            }
+            if (mUnitOfWork != null) {
+                mUnitOfWork.endTransaction(this);
+            } else if (mSavepoint == null) {
+                mConnection.close();
+            }
         }
-        mConnection.setAutoCommit(true);
-        mConnection.close();
+    }
+
+    /**
+     * Called by our {@link UnitOfWork} if it ends while we're still open. We'll close the
+     * connection ourselves when we're done with it.
+     */
+    void detachFromUnitOfWork() {
+        mUnitOfWork = null;
+    }
+
+    Transaction getParent() {
+        return mParent;
     }
 }
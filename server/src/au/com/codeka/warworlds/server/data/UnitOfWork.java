@@ -0,0 +1,154 @@
+package au.com.codeka.warworlds.server.data;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import au.com.codeka.common.Log;
+
+/**
+ * A "unit of work" binds a single database connection to the current thread for the duration of
+ * a request (or simulation step, etc). While one is active, {@link DB#prepare} uses the bound
+ * connection rather than checking out a new one from the pool for every statement, and it keeps
+ * prepared statements around so that they can be reused if the same SQL is executed again.
+ *
+ * <p>The connection is only checked out the first time it's needed, and it's returned to the pool
+ * when the outermost unit of work is closed. Units of work can be nested, inner ones just share
+ * the outer one's connection.
+ *
+ * <p>{@link DB#beginTransaction} uses the bound connection as well, so a request never needs more
+ * than one connection from the pool. That means statements prepared through {@link DB#prepare}
+ * while a transaction is open run as part of it, and a transaction begun while another is open is
+ * nested inside it (as a savepoint).
+ */
+public class UnitOfWork implements AutoCloseable {
+  private static final Log log = new Log("UnitOfWork");
+  private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<UnitOfWork>();
+
+  /** The maximum number of idle prepared statements we'll keep around for reuse. */
+  private static final int MAX_CACHED_STATEMENTS = 50;
+
+  private Connection conn;
+  private int depth;
+  private Transaction transaction;
+  private final Map<String, PreparedStatement> idleStatements =
+      new HashMap<String, PreparedStatement>();
+
+  private UnitOfWork() {
+  }
+
+  /** Gets the {@link UnitOfWork} that's bound to the current thread, or null if there is none. */
+  public static UnitOfWork current() {
+    return current.get();
+  }
+
+  static UnitOfWork begin() {
+    UnitOfWork unitOfWork = current.get();
+    if (unitOfWork == null) {
+      unitOfWork = new UnitOfWork();
+      current.set(unitOfWork);
+    }
+    unitOfWork.depth++;
+    return unitOfWork;
+  }
+
+  /** Begins a {@link Transaction} on our connection, nested inside any that's already open. */
+  Transaction beginTransaction() throws SQLException {
+    if (conn == null) {
+      conn = DB.getConnection(null);
+    }
+    transaction = new Transaction(conn, this, transaction);
+    return transaction;
+  }
+
+  /** Gets the innermost {@link Transaction} that's open on our connection, or null if none is. */
+  Transaction getTransaction() {
+    return transaction;
+  }
+
+  /** Called by a {@link Transaction} we began when it's closed. */
+  void endTransaction(Transaction transaction) {
+    if (this.transaction == transaction) {
+      this.transaction = transaction.getParent();
+    }
+  }
+
+  SqlStmt prepare(String sql) throws SQLException {
+    return prepare(sql, sql, -1);
+  }
+
+  SqlStmt prepare(String sql, int autoGenerateKeys) throws SQLException {
+    return prepare(sql + "\n" + autoGenerateKeys, sql, autoGenerateKeys);
+  }
+
+  private SqlStmt prepare(String key, String sql, int autoGenerateKeys) throws SQLException {
+    if (conn == null) {
+      conn = DB.getConnection(sql);
+    }
+
+    // If the statement is idle we can reuse it, otherwise (e.g. it's still being iterated by
+    // an outer loop) we'll need to make a new one.
+    PreparedStatement stmt = idleStatements.remove(key);
+    if (stmt == null) {
+      if (autoGenerateKeys < 0) {
+        stmt = conn.prepareStatement(sql);
+      } else {
+        stmt = conn.prepareStatement(sql, autoGenerateKeys);
+      }
+    }
+    return new SqlStmt(conn, sql, stmt, this, key);
+  }
+
+  /** Called by {@link SqlStmt} when it's closed, to return the statement to our cache. */
+  void release(String key, PreparedStatement stmt) throws SQLException {
+    if (depth == 0 || idleStatements.containsKey(key)
+        || idleStatements.size() >= MAX_CACHED_STATEMENTS) {
+      stmt.close();
+      return;
+    }
+
+    stmt.clearParameters();
+    stmt.clearBatch();
+    idleStatements.put(key, stmt);
+  }
+
+  @Override
+  public void close() {
+    depth--;
+    if (depth > 0) {
+      return;
+    }
+    current.remove();
+
+    for (PreparedStatement stmt : idleStatements.values()) {
+      try {
+        stmt.close();
+      } catch (SQLException e) {
+        log.warning("Error closing cached statement.", e);
+      }
+    }
+    idleStatements.clear();
+
+    if (transaction != null) {
+      // the transaction outlived us, it'll close the connection when it's done with it.
+      log.warning("Unit of work ended with a transaction still open.");
+      Transaction outerTransaction = transaction;
+      while (outerTransaction.getParent() != null) {
+        outerTransaction = outerTransaction.getParent();
+      }
+      outerTransaction.detachFromUnitOfWork();
+      transaction = null;
+      conn = null;
+    }
+    if (conn != null) {
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        log.error("Error closing connection.", e);
+      }
+      conn = null;
+    }
+  }
+}
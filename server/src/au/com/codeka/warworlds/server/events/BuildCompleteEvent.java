@@ -5,6 +5,7 @@ import java.util.ArrayList;
 import org.joda.time.DateTime;
 
 import au.com.codeka.common.Log;
+import au.com.codeka.common.model.BaseBuildRequest;
 import au.com.codeka.common.model.BaseColony;
 import au.com.codeka.common.model.DesignKind;
 import au.com.codeka.common.model.Simulation;
@@ -34,6 +35,22 @@ public class BuildCompleteEvent extends Event {
         return "SELECT MIN(end_time) FROM build_requests WHERE processing = 0";
     }
 
+    @Override
+    public DateTime getNextEventTime(Star star) {
+        if (star.getBuildRequests() == null) {
+            return null;
+        }
+
+        DateTime next = null;
+        for (BaseBuildRequest buildRequest : star.getBuildRequests()) {
+            DateTime endTime = buildRequest.getEndTime();
+            if (endTime != null && (next == null || endTime.isBefore(next))) {
+                next = endTime;
+            }
+        }
+        return next;
+    }
+
     @Override
     public void process() {
         ArrayList<Integer> processedIDs = new ArrayList<Integer>();
@@ -30,6 +30,18 @@ public class EmpireStarGoodsReachedZeroEvent extends Event {
         return "SELECT MIN(goods_zero_time) FROM empire_presences";
     }
 
+    @Override
+    public DateTime getNextEventTime(Star star) {
+        DateTime next = null;
+        for (BaseEmpirePresence empirePresence : star.getEmpirePresences()) {
+            DateTime goodsZeroTime = empirePresence.getGoodsZeroTime();
+            if (goodsZeroTime != null && (next == null || goodsZeroTime.isBefore(next))) {
+                next = goodsZeroTime;
+            }
+        }
+        return next;
+    }
+
     @Override
     public void process() {
         ArrayList<Integer> processedIDs = new ArrayList<Integer>();
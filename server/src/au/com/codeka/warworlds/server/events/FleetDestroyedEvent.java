@@ -28,6 +28,18 @@ public class FleetDestroyedEvent extends Event {
         return "SELECT MIN(time_destroyed) FROM fleets";
     }
 
+    @Override
+    public DateTime getNextEventTime(Star star) {
+        DateTime next = null;
+        for (BaseFleet fleet : star.getFleets()) {
+            DateTime timeDestroyed = fleet.getTimeDestroyed();
+            if (timeDestroyed != null && (next == null || timeDestroyed.isBefore(next))) {
+                next = timeDestroyed;
+            }
+        }
+        return next;
+    }
+
     @Override
     public void process() {
         String sql = "SELECT id, star_id FROM fleets WHERE time_destroyed < ?";
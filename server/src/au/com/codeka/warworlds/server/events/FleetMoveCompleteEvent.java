@@ -36,6 +36,17 @@ public class FleetMoveCompleteEvent extends Event {
         return "SELECT MIN(eta) FROM fleets";
     }
 
+    @Override
+    public DateTime getNextEventTime(Star star) {
+        DateTime next = null;
+        for (BaseFleet fleet : star.getFleets()) {
+            if (fleet.getEta() != null && (next == null || fleet.getEta().isBefore(next))) {
+                next = fleet.getEta();
+            }
+        }
+        return next;
+    }
+
     @Override
     public void process() {
         String sql = "SELECT id, star_id, target_star_id FROM fleets WHERE eta < ?";
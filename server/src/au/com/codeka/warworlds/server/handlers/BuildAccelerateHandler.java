@@ -13,9 +13,10 @@ import au.com.codeka.warworlds.server.model.Star;
 public class BuildAccelerateHandler extends RequestHandler {
     @Override
     protected void post() throws RequestException {
-        Simulation sim = new Simulation();
+        // we simulate again (or run the build complete event) after accelerating, so there's no
+        // need to run the prediction phase this time.
         Star star = new StarController().getStar(Integer.parseInt(getUrlParameter("starid")));
-        sim.simulate(star);
+        new Simulation(false).simulate(star);
 
         int buildRequestID = Integer.parseInt(getUrlParameter("buildid"));
         int myEmpireID = getSession().getEmpireID();
@@ -48,7 +49,7 @@ public class BuildAccelerateHandler extends RequestHandler {
                     new BuildCompleteEvent().process();
                 } else {
                     // if it's not actually complete yet, just simulate the star again
-                    sim.simulate(star);
+                    new Simulation().simulate(star);
                     new StarController().update(star);
                 }
                 return;
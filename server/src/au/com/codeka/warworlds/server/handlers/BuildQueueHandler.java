@@ -46,7 +46,9 @@ public class BuildQueueHandler extends RequestHandler {
                 throw new RequestException(403);
             }
 
-            new Simulation().simulate(star);
+            // we'll simulate again once the build request has been added, so there's no need
+            // to run the prediction phase this time.
+            new Simulation(false).simulate(star);
 
             BuildRequest buildRequest = new BuildRequest();
             buildRequest.fromProtocolBuffer(build_request_pb);
@@ -1,5 +1,7 @@
 package au.com.codeka.warworlds.server.handlers;
 
+import java.util.List;
+
 import org.joda.time.DateTime;
 
 import au.com.codeka.common.protobuf.Messages;
@@ -55,6 +57,21 @@ public class ChatHandler extends RequestHandler {
             max = 1000;
         }
 
+        // most of the time, we'll have all the messages they're after in memory already.
+        List<ChatMessage> recentMessages = new ChatController().getRecentMessages(
+                getSession().getEmpireID(), getSession().getAllianceID(), getSession().isAdmin(),
+                conversationID, after, before, max);
+        if (recentMessages != null) {
+            Messages.ChatMessages.Builder chat_msgs_pb = Messages.ChatMessages.newBuilder();
+            for (ChatMessage msg : recentMessages) {
+                Messages.ChatMessage.Builder chat_msg_pb = Messages.ChatMessage.newBuilder();
+                msg.toProtocolBuffer(chat_msg_pb, true);
+                chat_msgs_pb.addMessages(chat_msg_pb);
+            }
+            setResponseBody(chat_msgs_pb.build());
+            return;
+        }
+
         String sql = "SELECT * FROM chat_messages" +
                     " WHERE posted_date > ?" +
                       " AND posted_date <= ?" +
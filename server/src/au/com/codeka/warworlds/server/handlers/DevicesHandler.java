@@ -7,6 +7,7 @@ import org.joda.time.DateTime;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.ctrl.NotificationController;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlStmt;
 
@@ -49,6 +50,7 @@ public class DevicesHandler extends RequestHandler {
             if (id == null) {
                 id = (long) sql.getAutoGeneratedID();
             }
+            new NotificationController().onDevicesUpdated(getSession().getEmail());
 
             setResponseBody(Messages.DeviceRegistration.newBuilder()
                                     .setKey(id.toString())
@@ -90,6 +92,7 @@ public class DevicesHandler extends RequestHandler {
                 sql.setInt(2, id);
                 sql.setString(3, getSession().getEmail());
                 sql.update();
+                new NotificationController().onDevicesUpdated(getSession().getEmail());
             } catch (Exception e) {
                 throw new RequestException(e);
             }
@@ -104,6 +107,7 @@ public class DevicesHandler extends RequestHandler {
             sql.setInt(1, id);
             sql.setString(2, getSession().getEmail());
             sql.update();
+            new NotificationController().onDevicesUpdated(getSession().getEmail());
         } catch (Exception e) {
             throw new RequestException(e);
         }
@@ -8,6 +8,7 @@ import au.com.codeka.common.model.BaseColony;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.ctrl.ActiveEmpireCounters;
 import au.com.codeka.warworlds.server.ctrl.EmpireController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.ctrl.StatisticsController;
@@ -56,6 +57,7 @@ public class HelloHandler extends RequestHandler {
     Empire empire = new EmpireController().getEmpire(getSession().getEmpireID());
     if (empire != null) {
       new StatisticsController().registerLogin(getSession().getEmpireID(), hello_request_pb);
+      ActiveEmpireCounters.i.onLogin(getSession().getEmpireID());
       if (empire.getState() == Empire.State.ABANDONED) {
         new EmpireController().markActive(empire);
       }
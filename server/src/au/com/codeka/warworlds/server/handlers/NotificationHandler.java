@@ -13,8 +13,13 @@ import au.com.codeka.warworlds.server.ctrl.NotificationController;
  * This is a special handler that makes use of Jetty continuations to implement long-polling. It
  * works in conjunction with {@see NotificationController} to send notifications to connected
  * clients.
+ *
+ * <p>Clients that support it can instead ask to upgrade the request to a WebSocket (see
+ * {@link NotificationWebSocket}), in which case all of their notifications are pushed over the
+ * one connection. If the upgrade fails, we just fall back to long-polling.
  */
-public class NotificationHandler extends RequestHandler {
+public class NotificationHandler extends RequestHandler
+        implements NotificationController.NotificationListener {
     private static Log log = new Log("NotificationHandler");
     private Continuation mContinuation;
     private int mEmpireID;
@@ -27,6 +32,14 @@ public class NotificationHandler extends RequestHandler {
             mAllianceID = getSession().getAllianceID();
         }
 
+        if (NotificationWebSocket.isUpgradeRequest(getRequest())) {
+            if (NotificationWebSocket.upgrade(getSession().getEmpireID(), mAllianceID,
+                    getRequest(), getResponse())) {
+                return;
+            }
+            log.warning("WebSocket upgrade failed for %d, falling back to long-poll.", mEmpireID);
+        }
+
         mContinuation = ContinuationSupport.getContinuation(getRequest());
         NotificationController.Notification notification = (NotificationController.Notification) mContinuation.getAttribute("notification");
         if (notification != null) {
@@ -56,19 +69,23 @@ public class NotificationHandler extends RequestHandler {
         }
     }
 
+    @Override
     public int getEmpireID() {
         return mEmpireID;
     }
+    @Override
     public int getAllianceID() {
         return mAllianceID;
     }
 
     /**
-     * This is called by the notification controller when a notification is received.
+     * This is called by the notification controller when a notification is received. A long-poll
+     * can only deliver one notification, so we always return false.
      */
-    public void sendNotification(NotificationController.Notification notification) {
+    @Override
+    public boolean sendNotification(NotificationController.Notification notification) {
         if (mContinuation == null || !mContinuation.isSuspended()) {
-            return;
+            return false;
         }
         log.info("Sending notification via NotificationHandler for "+mEmpireID);
         try {
@@ -78,5 +95,6 @@ public class NotificationHandler extends RequestHandler {
             // TODO: have to figure out why this happens
             log.error("Got exception dispatching notification.", e);
         }
+        return false;
     }
 }
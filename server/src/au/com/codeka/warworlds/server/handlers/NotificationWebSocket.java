@@ -0,0 +1,161 @@
+package au.com.codeka.warworlds.server.handlers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.UpgradeRequest;
+import org.eclipse.jetty.websocket.api.UpgradeResponse;
+import org.eclipse.jetty.websocket.api.WebSocketAdapter;
+import org.eclipse.jetty.websocket.api.WebSocketPolicy;
+import org.eclipse.jetty.websocket.server.ServletWebSocketRequest;
+import org.eclipse.jetty.websocket.server.WebSocketServerFactory;
+import org.eclipse.jetty.websocket.servlet.WebSocketCreator;
+
+import au.com.codeka.common.Log;
+import au.com.codeka.common.protobuf.Messages;
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ctrl.NotificationController;
+
+/**
+ * A WebSocket that we push notifications over. Unlike a long-poll {@link NotificationHandler},
+ * which delivers one notification and then has to be re-established by the client, a WebSocket
+ * stays registered with the {@link NotificationController} until the client disconnects.
+ *
+ * <p>Each notification is sent as a binary message containing a {@link Messages.Notifications},
+ * exactly the same as the body of a long-poll response.
+ */
+public class NotificationWebSocket extends WebSocketAdapter
+        implements NotificationController.NotificationListener {
+    private static final Log log = new Log("NotificationWebSocket");
+
+    private static final String EMPIRE_ID_ATTRIBUTE = "notificationEmpireID";
+    private static final String ALLIANCE_ID_ATTRIBUTE = "notificationAllianceID";
+
+    /**
+     * Sockets that are idle for longer than this are closed. Clients are expected to ping us more
+     * often than this (and to reconnect if they get disconnected).
+     */
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000L;
+
+    private static WebSocketServerFactory sFactory;
+
+    private final int mEmpireID;
+    private final int mAllianceID;
+
+    private NotificationWebSocket(int empireID, int allianceID) {
+        mEmpireID = empireID;
+        mAllianceID = allianceID;
+    }
+
+    /** Determines whether the given request is asking to be upgraded to a WebSocket. */
+    public static boolean isUpgradeRequest(HttpServletRequest request) {
+        return "websocket".equalsIgnoreCase(request.getHeader("Upgrade"));
+    }
+
+    /**
+     * Upgrades the given request to a WebSocket for the given empire. Returns {@code false} if the
+     * upgrade failed, in which case the caller should fall back to long-polling.
+     */
+    public static boolean upgrade(int empireID, int allianceID, HttpServletRequest request,
+            HttpServletResponse response) throws RequestException {
+        // the factory creates the socket from inside acceptWebSocket, so this is how we tell it
+        // which empire the socket belongs to.
+        request.setAttribute(EMPIRE_ID_ATTRIBUTE, empireID);
+        request.setAttribute(ALLIANCE_ID_ATTRIBUTE, allianceID);
+        try {
+            WebSocketServerFactory factory = getFactory();
+            return factory.isUpgradeRequest(request, response)
+                && factory.acceptWebSocket(request, response);
+        } catch (IOException e) {
+            log.warning("Error upgrading to WebSocket.", e);
+            return false;
+        }
+    }
+
+    private static synchronized WebSocketServerFactory getFactory() throws RequestException {
+        if (sFactory == null) {
+            WebSocketPolicy policy = WebSocketPolicy.newServerPolicy();
+            policy.setIdleTimeout(IDLE_TIMEOUT_MS);
+            WebSocketServerFactory factory = new WebSocketServerFactory(policy);
+            factory.setCreator(new WebSocketCreator() {
+                @Override
+                public Object createWebSocket(UpgradeRequest req, UpgradeResponse resp) {
+                    Map<String, Object> attributes =
+                        ((ServletWebSocketRequest) req).getServletAttributes();
+                    return new NotificationWebSocket(
+                        (Integer) attributes.get(EMPIRE_ID_ATTRIBUTE),
+                        (Integer) attributes.get(ALLIANCE_ID_ATTRIBUTE));
+                }
+            });
+            try {
+                factory.init();
+            } catch (Exception e) {
+                throw new RequestException(e);
+            }
+            sFactory = factory;
+        }
+        return sFactory;
+    }
+
+    @Override
+    public int getEmpireID() {
+        return mEmpireID;
+    }
+
+    @Override
+    public int getAllianceID() {
+        return mAllianceID;
+    }
+
+    @Override
+    public void onWebSocketConnect(Session session) {
+        super.onWebSocketConnect(session);
+        log.info("WebSocket connected for %d", mEmpireID);
+        new NotificationController().addNotificationHandler(mEmpireID, this);
+    }
+
+    @Override
+    public void onWebSocketClose(int statusCode, String reason) {
+        log.info("WebSocket closed for %d: %d %s", mEmpireID, statusCode, reason);
+        new NotificationController().removeNotificationHandler(mEmpireID, this);
+        super.onWebSocketClose(statusCode, reason);
+    }
+
+    @Override
+    public void onWebSocketError(Throwable cause) {
+        log.warning("WebSocket error for %d", mEmpireID, cause);
+        new NotificationController().removeNotificationHandler(mEmpireID, this);
+    }
+
+    /**
+     * This is called by the notification controller when a notification is received. The message
+     * is sent asynchronously, so we don't hold up whoever is sending the notification.
+     */
+    @Override
+    public boolean sendNotification(NotificationController.Notification notification) {
+        if (!isConnected()) {
+            return false;
+        }
+
+        Messages.Notifications.Builder notifications_pb = Messages.Notifications.newBuilder();
+        for (Map.Entry<String, String> entry : notification.values.entrySet()) {
+            notifications_pb.addNotifications(Messages.Notification.newBuilder()
+                    .setName(entry.getKey())
+                    .setValue(entry.getValue())
+                    .build());
+        }
+        try {
+            getRemote().sendBytesByFuture(ByteBuffer.wrap(notifications_pb.build().toByteArray()));
+        } catch (RuntimeException e) {
+            // the socket was closed underneath us
+            log.warning("Error sending notification to %d", mEmpireID, e);
+            return false;
+        }
+        return true;
+    }
+}
@@ -8,10 +8,10 @@ import au.com.codeka.common.model.BaseStar;
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
-import au.com.codeka.warworlds.server.ctrl.BuildingController;
+import au.com.codeka.warworlds.server.ResponseCache;
+import au.com.codeka.warworlds.server.ctrl.RadarIndex;
 import au.com.codeka.warworlds.server.ctrl.SectorController;
 import au.com.codeka.warworlds.server.ctrl.StarController;
-import au.com.codeka.warworlds.server.model.BuildingPosition;
 import au.com.codeka.warworlds.server.model.Sector;
 import au.com.codeka.warworlds.server.model.Star;
 
@@ -58,26 +58,26 @@ public class SectorsHandler extends RequestHandler {
             generate = false;
         }
 
-        long minSectorX, minSectorY, maxSectorX, maxSectorY;
-        minSectorX = maxSectorX = coords.get(0).one;
-        minSectorY = maxSectorY = coords.get(0).two;
+        boolean isAdmin = isAdmin();
+        StringBuilder cacheKey = new StringBuilder();
+        cacheKey.append(String.format("sectors:%d:%s:%s", myEmpireID, isAdmin, generate));
         for (Pair<Long, Long> xy : coords) {
-            if (xy.one < minSectorX) {
-                minSectorX = xy.one;
-            }
-            if (xy.one > maxSectorX) {
-                maxSectorX = xy.one;
-            }
-            if (xy.two < minSectorY) {
-                minSectorY = xy.two;
-            }
-            if (xy.two > maxSectorY) {
-                maxSectorY = xy.two;
-            }
+            cacheKey.append(String.format(":%d,%d", xy.one, xy.two));
         }
+        long version = ResponseCache.i.getSectorsVersion(coords);
+        ResponseCache.CachedResponse response = ResponseCache.i.get(cacheKey.toString(), version);
+        if (response == null) {
+            Messages.Sectors sectors_pb = buildSectors(myEmpireID, isAdmin, coords, generate);
+            response = ResponseCache.i.put(cacheKey.toString(), version, sectors_pb);
+        }
+
+        setCacheTime(0, response.getETag());
+        setResponseBody(response.getMessage());
+    }
 
-        ArrayList<BuildingPosition> buildings = new BuildingController().getBuildings(
-                myEmpireID, minSectorX, minSectorY, maxSectorX, maxSectorY);
+    private Messages.Sectors buildSectors(int myEmpireID, boolean isAdmin,
+            List<Pair<Long, Long>> coords, boolean generate) throws RequestException {
+        RadarIndex.EmpireRadars radars = isAdmin ? null : RadarIndex.i.getRadars(myEmpireID);
 
         SectorController ctrl = new SectorController();
         List<Sector> sectors = ctrl.getSectors(coords, generate);
@@ -90,15 +90,15 @@ public class SectorsHandler extends RequestHandler {
 
         Messages.Sectors.Builder sectors_pb = Messages.Sectors.newBuilder();
         for (Sector sector : sectors) {
-            if (!isAdmin()) {
+            if (!isAdmin) {
                 for (BaseStar baseStar : sector.getStars()) {
                     Star star = (Star) baseStar;
-                    new StarController().sanitizeStar(star, myEmpireID, buildings, allStars);
+                    new StarController().sanitizeStar(star, myEmpireID, radars, allStars);
                 }
             }
 
             sector.toProtocolBuffer(sectors_pb.addSectorsBuilder());
         }
-        setResponseBody(sectors_pb.build());
+        return sectors_pb.build();
     }
 }
@@ -1,17 +1,15 @@
 package au.com.codeka.warworlds.server.handlers;
 
-import java.util.ArrayList;
-
 import au.com.codeka.common.protobuf.Messages;
 import au.com.codeka.warworlds.server.RequestException;
 import au.com.codeka.warworlds.server.RequestHandler;
+import au.com.codeka.warworlds.server.ResponseCache;
 import au.com.codeka.warworlds.server.ctrl.AllianceController;
-import au.com.codeka.warworlds.server.ctrl.BuildingController;
 import au.com.codeka.warworlds.server.ctrl.PurchaseController;
+import au.com.codeka.warworlds.server.ctrl.RadarIndex;
 import au.com.codeka.warworlds.server.ctrl.StarController;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlStmt;
-import au.com.codeka.warworlds.server.model.BuildingPosition;
 import au.com.codeka.warworlds.server.model.Star;
 
 /**
@@ -21,25 +19,32 @@ public class StarHandler extends RequestHandler {
   @Override
   protected void get() throws RequestException {
     int id = Integer.parseInt(getUrlParameter("starid"));
-    Star star = new StarController().getStar(id);
-    if (star == null) {
-      throw new RequestException(404);
-    }
-
     int myEmpireID = getSession().getEmpireID();
-    ArrayList<BuildingPosition> buildings = new BuildingController()
-        .getBuildings(myEmpireID, star.getSectorX() - 1, star.getSectorY() - 1,
-            star.getSectorX() + 1, star.getSectorY() + 1);
+    boolean isAdmin = isAdmin();
 
-    if (!isAdmin()) {
-      new StarController().sanitizeStar(star, myEmpireID, buildings, null);
-    }
+    // the version has to be fetched before we load the star, so that if the star is updated
+    // while we're building the response, we won't use the cached copy.
+    String cacheKey = String.format("star:%d:%d:%s", id, myEmpireID, isAdmin);
+    long version = ResponseCache.i.getStarVersion(id);
+    ResponseCache.CachedResponse response = ResponseCache.i.get(cacheKey, version);
+    if (response == null) {
+      Star star = new StarController().getStar(id);
+      if (star == null) {
+        throw new RequestException(404);
+      }
 
-    setCacheTime(24, star.getLastSimulation().toString());
+      if (!isAdmin) {
+        new StarController().sanitizeStar(star, myEmpireID,
+            RadarIndex.i.getRadars(myEmpireID), null);
+      }
 
-    Messages.Star.Builder star_pb = Messages.Star.newBuilder();
-    star.toProtocolBuffer(star_pb);
-    setResponseBody(star_pb.build());
+      Messages.Star.Builder star_pb = Messages.Star.newBuilder();
+      star.toProtocolBuffer(star_pb);
+      response = ResponseCache.i.put(cacheKey, version, star_pb.build());
+    }
+
+    setCacheTime(24, response.getETag());
+    setResponseBody(response.getMessage());
   }
 
   @Override
@@ -86,6 +91,7 @@ public class StarHandler extends RequestHandler {
     }
 
     Star star = new StarController().getStar(starID);
+    ResponseCache.i.onStarUpdated(star);
     Messages.Star.Builder star_pb = Messages.Star.newBuilder();
     star.toProtocolBuffer(star_pb);
     setResponseBody(star_pb.build());
@@ -4,6 +4,7 @@ import java.util.TreeMap;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ctrl.ProfanityFilter;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
@@ -58,10 +59,13 @@ public class AdminChatProfanityHandler extends AdminGenericHandler {
                 stmt.setString(2, getRequest().getParameter("strong-words"));
                 stmt.update();
             }
+            t.commit();
         } catch (Exception e) {
             throw new RequestException(e);
         }
 
+        ProfanityFilter.resetFilter();
+
         redirect("/realms/" + getRealm() + "/admin/chat/profanity");
     }
 }
@@ -2,14 +2,19 @@ package au.com.codeka.warworlds.server.handlers.admin;
 
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.TimeZone;
 import java.util.TreeMap;
 
+import org.joda.time.DateMidnight;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.Days;
+import org.joda.time.LocalDate;
 
 import au.com.codeka.common.Log;
 import au.com.codeka.common.TimeFormatter;
 import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.ctrl.ActiveEmpireCounters;
 import au.com.codeka.warworlds.server.data.DB;
 import au.com.codeka.warworlds.server.data.SqlResult;
 import au.com.codeka.warworlds.server.data.SqlStmt;
@@ -27,12 +32,13 @@ public class AdminDashboardHandler extends AdminHandler {
 
     TreeMap<String, Object> data = new TreeMap<String, Object>();
 
-    DateTime now = DateTime.now();
+    // the stats are kept by UTC day (see UpdateDashboardCronJob), so that's what we display.
+    DateMidnight today = DateMidnight.now(DateTimeZone.UTC);
     ArrayList<TreeMap<String, Object>> graphData = new ArrayList<TreeMap<String, Object>>();
     for (int i = 0; i < 60; i++) {
       TreeMap<String, Object> graphEntry = new TreeMap<String, Object>();
-      DateTime dt = now.minusDays(i);
-      Calendar c = Calendar.getInstance();
+      DateMidnight dt = today.minusDays(i);
+      Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
       c.setTime(dt.toDate());
       graphEntry.put("year", c.get(Calendar.YEAR));
       graphEntry.put("month", c.get(Calendar.MONTH) - 1);
@@ -40,27 +46,35 @@ public class AdminDashboardHandler extends AdminHandler {
       graphData.add(graphEntry);
     }
 
-    String sql = "SELECT date, active_1d, active_7d, new_signups" + " FROM dashboard_stats"
+    String sql = "SELECT date, active_1d, active_7d, active_30d, new_signups" + " FROM dashboard_stats"
         + " ORDER BY date DESC" + " LIMIT 60";
     try (SqlStmt stmt = DB.prepare(sql)) {
       SqlResult res = stmt.select();
       while (res.next()) {
-        DateTime dt = res.getDateTime(1);
+        LocalDate date = LocalDate.parse(res.getString(1));
         int oneDA = res.getInt(2);
         int sevenDA = res.getInt(3);
-        int newSignups = res.getInt(4);
+        int thirtyDA = res.getInt(4);
+        int newSignups = res.getInt(5);
 
-        int index = Days.daysBetween(dt, now).getDays();
-        if (index < 60) {
+        int index = Days.daysBetween(date, today.toLocalDate()).getDays();
+        if (index >= 0 && index < 60) {
           TreeMap<String, Object> graphEntry = graphData.get(index);
           graphEntry.put("oneda", oneDA);
           graphEntry.put("sevenda", sevenDA);
+          graphEntry.put("thirtyda", thirtyDA);
           graphEntry.put("signups", newSignups);
         }
       }
     } catch (Exception e) {
       throw new RequestException(e);
     }
+
+    // today's active empires come straight from the counters, so they're always up-to-date.
+    TreeMap<String, Object> todayEntry = graphData.get(0);
+    todayEntry.put("oneda", ActiveEmpireCounters.i.countActiveEmpires(today, 1));
+    todayEntry.put("sevenda", ActiveEmpireCounters.i.countActiveEmpires(today, 7));
+    todayEntry.put("thirtyda", ActiveEmpireCounters.i.countActiveEmpires(today, 30));
     data.put("graph_data", graphData);
 
     render("admin/index.html", data);
@@ -0,0 +1,64 @@
+package au.com.codeka.warworlds.server.handlers.admin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.cron.CronScheduler;
+
+/** Displays the cron jobs run by {@link CronScheduler}, and lets you run them on demand. */
+public class AdminDebugCronHandler extends AdminHandler {
+  @Override
+  protected void get() throws RequestException {
+    if (!isAdmin()) {
+      return;
+    }
+    TreeMap<String, Object> data = new TreeMap<String, Object>();
+
+    ArrayList<TreeMap<String, Object>> jobs = new ArrayList<TreeMap<String, Object>>();
+    List<CronScheduler.ScheduledJob> scheduledJobs = CronScheduler.i.getJobs();
+    for (int i = 0; i < scheduledJobs.size(); i++) {
+      CronScheduler.ScheduledJob scheduledJob = scheduledJobs.get(i);
+      TreeMap<String, Object> job = new TreeMap<String, Object>();
+      job.put("index", i);
+      job.put("name", scheduledJob.getName());
+      job.put("interval_minutes", scheduledJob.getIntervalMinutes());
+      job.put("running", scheduledJob.isRunning());
+      job.put("next_run_time", scheduledJob.getNextRunTime());
+      if (scheduledJob.getLastStartTime() != null) {
+        job.put("last_start_time", scheduledJob.getLastStartTime());
+      }
+      job.put("num_runs", scheduledJob.getNumRuns());
+      job.put("num_failures", scheduledJob.getNumFailures());
+      job.put("num_skipped", scheduledJob.getNumSkipped());
+      job.put("last_ms", scheduledJob.getLastDurationMs());
+      job.put("avg_ms", scheduledJob.getNumRuns() == 0
+          ? 0.0 : (double) scheduledJob.getTotalDurationMs() / scheduledJob.getNumRuns());
+      job.put("max_ms", scheduledJob.getMaxDurationMs());
+      if (scheduledJob.getLastError() != null) {
+        job.put("last_error", scheduledJob.getLastError());
+      }
+      jobs.add(job);
+    }
+    data.put("jobs", jobs);
+
+    render("admin/debug/cron.html", data);
+  }
+
+  @Override
+  protected void post() throws RequestException {
+    if (!isAdmin()) {
+      return;
+    }
+
+    if ("run".equals(getRequest().getParameter("action"))) {
+      List<CronScheduler.ScheduledJob> jobs = CronScheduler.i.getJobs();
+      int index = Integer.parseInt(getRequest().getParameter("job"));
+      if (index >= 0 && index < jobs.size()) {
+        CronScheduler.i.runNow(jobs.get(index));
+      }
+    }
+    redirect("/realms/" + getRealm() + "/admin/debug/cron");
+  }
+}
@@ -0,0 +1,91 @@
+package au.com.codeka.warworlds.server.handlers.admin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+import au.com.codeka.warworlds.server.RequestException;
+import au.com.codeka.warworlds.server.data.SqlStats;
+
+/** Displays the per-statement timing statistics collected by {@link SqlStats}. */
+public class AdminDebugSqlStatsHandler extends AdminHandler {
+  /** We only display this many of the most expensive statements. */
+  private static final int MAX_STATEMENTS = 200;
+
+  @Override
+  protected void get() throws RequestException {
+    if (!isAdmin()) {
+      return;
+    }
+    TreeMap<String, Object> data = new TreeMap<String, Object>();
+
+    List<SqlStats.StatementStats> stats = SqlStats.i.getStatementStats();
+    Collections.sort(stats, new Comparator<SqlStats.StatementStats>() {
+      @Override
+      public int compare(SqlStats.StatementStats lhs, SqlStats.StatementStats rhs) {
+        return Long.compare(rhs.getTotalNanos(), lhs.getTotalNanos());
+      }
+    });
+
+    ArrayList<TreeMap<String, Object>> statements = new ArrayList<TreeMap<String, Object>>();
+    for (SqlStats.StatementStats stmtStats : stats) {
+      if (statements.size() >= MAX_STATEMENTS) {
+        break;
+      }
+
+      TreeMap<String, Object> statement = new TreeMap<String, Object>();
+      statement.put("sql", stmtStats.getSql());
+      statement.put("count", stmtStats.getCount());
+      statement.put("total_ms", stmtStats.getTotalNanos() / 1000000L);
+      statement.put("avg_ms", stmtStats.getCount() == 0
+          ? 0.0 : (stmtStats.getTotalNanos() / 1000000.0) / stmtStats.getCount());
+      statement.put("max_ms", stmtStats.getMaxNanos() / 1000000L);
+      statement.put("rows", stmtStats.getRows());
+      statement.put("wait_ms", stmtStats.getConnectionWaitNanos() / 1000000L);
+      ArrayList<Long> histogram = new ArrayList<Long>();
+      for (long value : stmtStats.getHistogram()) {
+        histogram.add(value);
+      }
+      statement.put("histogram", histogram);
+      statements.add(statement);
+    }
+    data.put("statements", statements);
+
+    ArrayList<String> buckets = new ArrayList<String>();
+    for (long bucketMs : SqlStats.getHistogramBucketsMs()) {
+      buckets.add("<" + bucketMs + "ms");
+    }
+    buckets.add("more");
+    data.put("histogram_buckets", buckets);
+
+    ArrayList<TreeMap<String, Object>> slowQueries = new ArrayList<TreeMap<String, Object>>();
+    for (SqlStats.SlowQuery slowQuery : SqlStats.i.getSlowQueries()) {
+      TreeMap<String, Object> entry = new TreeMap<String, Object>();
+      entry.put("sql", slowQuery.getSql());
+      entry.put("time", slowQuery.getTime());
+      entry.put("duration_ms", slowQuery.getNanos() / 1000000L);
+      slowQueries.add(entry);
+    }
+    data.put("slow_queries", slowQueries);
+
+    data.put("start_time", SqlStats.i.getStartTime());
+    data.put("total_connections", SqlStats.i.getTotalConnections());
+    data.put("total_connection_wait_ms", SqlStats.i.getTotalConnectionWaitNanos() / 1000000L);
+
+    render("admin/debug/sql-stats.html", data);
+  }
+
+  @Override
+  protected void post() throws RequestException {
+    if (!isAdmin()) {
+      return;
+    }
+
+    if ("reset".equals(getRequest().getParameter("action"))) {
+      SqlStats.i.reset();
+    }
+    redirect("/realms/" + getRealm() + "/admin/debug/sql-stats");
+  }
+}
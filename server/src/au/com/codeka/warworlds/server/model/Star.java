@@ -3,6 +3,7 @@ package au.com.codeka.warworlds.server.model;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import au.com.codeka.common.model.BaseBuildRequest;
 import au.com.codeka.common.model.BaseBuilding;
@@ -19,6 +20,7 @@ public class Star extends BaseStar {
     private int mID;
     private int mSectorID;
     private ArrayList<ScoutReport> mScoutReports = new ArrayList<ScoutReport>();
+    private HashMap<String, Object[]> mPersistedRows;
 
     public Star() {
     }
@@ -119,6 +121,18 @@ public class Star extends BaseStar {
         return mScoutReports;
     }
 
+    /**
+     * Gets the column values of this star's child rows (colonies, fleets, etc) as they were when
+     * they were last loaded from (or saved to) the database, so that \c StarController can skip
+     * the ones that haven't changed. Returns null if the star wasn't loaded from the database.
+     */
+    public HashMap<String, Object[]> getPersistedRows() {
+        return mPersistedRows;
+    }
+    public void setPersistedRows(HashMap<String, Object[]> persistedRows) {
+        mPersistedRows = persistedRows;
+    }
+
     @Override
     protected BasePlanet createPlanet(Messages.Planet pb) {
         Planet p = new Planet();
@@ -0,0 +1,75 @@
+package au.com.codeka.warworlds.server.utils;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A HyperLogLog sketch, for estimating the number of distinct values in a set without having to
+ * remember them all. We use 4096 registers, which takes 4KB and gives estimates that are within
+ * about 2% of the real number. Two sketches can be merged to get a sketch of the union of their
+ * sets (e.g. seven daily sketches give a weekly one).
+ */
+public class HyperLogLog {
+    private static final int PRECISION = 12;
+    private static final int NUM_REGISTERS = 1 << PRECISION;
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private final byte[] registers;
+
+    public HyperLogLog() {
+        registers = new byte[NUM_REGISTERS];
+    }
+
+    /** Creates a sketch from the bytes previously returned by {@link #toByteArray}. */
+    public HyperLogLog(byte[] bytes) {
+        if (bytes.length != NUM_REGISTERS) {
+            throw new IllegalArgumentException("Expected " + NUM_REGISTERS + " bytes, got "
+                    + bytes.length);
+        }
+        registers = bytes.clone();
+    }
+
+    public void add(long value) {
+        long hash = HASH_FUNCTION.hashLong(value).asLong();
+        int index = (int) (hash >>> (64 - PRECISION));
+        // the remaining bits, with a 1 at the end so that we never count past them
+        long remaining = (hash << PRECISION) | (1L << (PRECISION - 1));
+        byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+        if (rank > registers[index]) {
+            registers[index] = rank;
+        }
+    }
+
+    /** Adds everything in the given sketch to this one. */
+    public void merge(HyperLogLog other) {
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            if (other.registers[i] > registers[i]) {
+                registers[i] = other.registers[i];
+            }
+        }
+    }
+
+    /** Gets an estimate of the number of distinct values that have been added. */
+    public long estimate() {
+        double sum = 0.0;
+        int numZeros = 0;
+        for (int i = 0; i < NUM_REGISTERS; i++) {
+            sum += 1.0 / (1L << registers[i]);
+            if (registers[i] == 0) {
+                numZeros++;
+            }
+        }
+
+        double alpha = 0.7213 / (1.0 + 1.079 / NUM_REGISTERS);
+        double estimate = alpha * NUM_REGISTERS * NUM_REGISTERS / sum;
+        if (estimate <= 2.5 * NUM_REGISTERS && numZeros > 0) {
+            // for small sets, linear counting is much more accurate
+            estimate = NUM_REGISTERS * Math.log((double) NUM_REGISTERS / numZeros);
+        }
+        return Math.round(estimate);
+    }
+
+    public byte[] toByteArray() {
+        return registers.clone();
+    }
+}